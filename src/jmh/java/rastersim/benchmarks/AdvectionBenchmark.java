@@ -0,0 +1,94 @@
+package rastersim.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rastersim.Advector;
+import rastersim.EdgeMode;
+import rastersim.Raster;
+import rastersim.StencilEngine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks advecting several smooth fields with Raster.advect() and with the schemes of the Advector.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AdvectionBenchmark {
+
+    private static final float DELTA_TIME = 0.02f;
+
+    @Param({"256", "1024", "2048"})
+    public int size;
+
+    @Param({"1", "3"})
+    public int fieldCount;
+
+    @Param({"SEMI_LAGRANGIAN", "MAC_CORMACK", "BFECC"})
+    public Advector.Scheme scheme;
+
+    private Raster[] targets;
+    private Raster[] sources;
+    private int[] boundaries;
+    private Raster xVel;
+    private Raster yVel;
+    private float cellSize;
+    private Advector advector;
+
+    @Setup
+    public void setup() {
+        targets = new Raster[fieldCount];
+        sources = new Raster[fieldCount];
+        boundaries = new int[fieldCount];
+        for (int k = 0; k < fieldCount; k++) {
+            targets[k] = new Raster(size, size, EdgeMode.CLAMP);
+            sources[k] = smoothRaster(k, 1);
+        }
+        xVel = smoothRaster(10, 2);
+        yVel = smoothRaster(11, 2);
+        cellSize = DELTA_TIME;
+
+        advector = new Advector(new StencilEngine(1, true));
+        advector.setScheme(scheme);
+    }
+
+    /**
+     * @return raster of waves about 100 cells long, as velocities and fields in a simulation are mostly smooth.
+     */
+    private Raster smoothRaster(int seed, float amplitude) {
+        final Raster r = new Raster(size, size, EdgeMode.CLAMP);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                r.set(x, y, amplitude * (float) (Math.sin(x * 0.05 + seed) * Math.cos(y * 0.07 - seed)));
+            }
+        }
+        return r;
+    }
+
+    @Benchmark
+    public void rasterAdvect(CellCounter counter) {
+        for (int k = 0; k < fieldCount; k++) {
+            targets[k].advect(0, sources[k], xVel, yVel, DELTA_TIME, cellSize);
+        }
+        counter.cells += (long) size * size * fieldCount;
+    }
+
+    @Benchmark
+    public void advector(CellCounter counter) {
+        advector.advect(targets, boundaries, sources, xVel, yVel, DELTA_TIME, cellSize);
+        counter.cells += (long) size * size * fieldCount;
+    }
+}
@@ -0,0 +1,40 @@
+package rastersim.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that allocation rates are included, and writes the results as JSON.
+ *
+ * Usage: java -jar benchmarks.jar [result file] [JMH options]
+ * The result file defaults to jmh-result.json.  JMH options can be used to select benchmarks or parameters,
+ * e.g. "RasterBenchmark.diffuse -p size=1024".
+ */
+public final class BenchmarkRunner {
+
+    private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        String resultFile = DEFAULT_RESULT_FILE;
+        if (args.length > 0 && args[0].endsWith(".json")) {
+            resultFile = args[0];
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+
+        final ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile);
+
+        new Runner(options.build()).run();
+    }
+}
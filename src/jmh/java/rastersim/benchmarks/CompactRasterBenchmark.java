@@ -0,0 +1,92 @@
+package rastersim.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rastersim.CellEncoding;
+import rastersim.CompactRaster;
+import rastersim.EdgeMode;
+import rastersim.Raster;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks copying, adding and diffusing rasters stored as floats and with the encodings of CompactRaster.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompactRasterBenchmark {
+
+    private static final float DELTA_TIME = 0.02f;
+    private static final float DIFFUSION = 0.0001f;
+
+    @Param({"1024", "4096", "8192"})
+    public int size;
+
+    @Param({"FLOAT", "HALF", "FIXED16", "FIXED8"})
+    public String encoding;
+
+    private Raster source;
+    private Raster target;
+    private CompactRaster compactSource;
+    private CompactRaster compactTarget;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        source = new Raster(size, size, EdgeMode.CLAMP);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                source.set(x, y, random.nextFloat());
+            }
+        }
+        source.updateHalo();
+
+        if (encoding.equals("FLOAT")) {
+            target = new Raster(size, size, EdgeMode.CLAMP);
+        }
+        else {
+            final CellEncoding cellEncoding = encoding.equals("HALF") ? CellEncoding.HALF
+                                              : encoding.equals("FIXED16") ? CellEncoding.fixed16(0, 2)
+                                              : CellEncoding.fixed8(0, 2);
+            compactSource = new CompactRaster(size, size, EdgeMode.CLAMP, cellEncoding);
+            compactTarget = new CompactRaster(size, size, EdgeMode.CLAMP, cellEncoding);
+            compactSource.copyFrom(source);
+            source = null;
+        }
+    }
+
+    @Benchmark
+    public void copy(CellCounter counter) {
+        if (compactSource != null) compactTarget.copyFrom(compactSource);
+        else target.copyFrom(source);
+        counter.cells += (long) size * size;
+    }
+
+    @Benchmark
+    public void add(CellCounter counter) {
+        if (compactSource != null) compactTarget.add(compactSource, 0.5f, 0);
+        else target.add(source, 0.5f, 0);
+        counter.cells += (long) size * size;
+    }
+
+    @Benchmark
+    public void diffuseStep(CellCounter counter) {
+        if (compactSource != null) compactTarget.diffuseStep(compactSource, DIFFUSION, DELTA_TIME, 1f / size);
+        else target.diffuseStep(source, DIFFUSION, DELTA_TIME, 1f / size);
+        counter.cells += (long) size * size;
+    }
+}
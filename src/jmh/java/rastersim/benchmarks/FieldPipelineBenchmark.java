@@ -0,0 +1,74 @@
+package rastersim.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rastersim.EdgeMode;
+import rastersim.FieldPipeline;
+import rastersim.FieldSet;
+import rastersim.Raster;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a density step of a FieldPipeline, with and without fusing the source and diffusion passes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FieldPipelineBenchmark {
+
+    private static final float DELTA_TIME = 0.02f;
+    private static final float DIFFUSION = 0.0001f;
+    private static final int DIFFUSION_ITERATIONS = 20;
+
+    @Param({"256", "1024", "4096"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean fused;
+
+    private FieldPipeline pipeline;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        final FieldSet fields = new FieldSet(size, size, EdgeMode.CLAMP);
+        randomize(fields.addField("density"), random, 0, 1);
+        randomize(fields.addField("source"), random, 0, 1);
+        randomize(fields.addField("xVel"), random, -1, 1);
+        randomize(fields.addField("yVel"), random, -1, 1);
+
+        pipeline = new FieldPipeline(fields)
+                .add("density", "source")
+                .diffuse("density", DIFFUSION, DIFFUSION_ITERATIONS, 0)
+                .advect("density", "xVel", "yVel", 0);
+        pipeline.setFused(fused);
+    }
+
+    private void randomize(Raster raster, Random random, float min, float max) {
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                raster.set(x, y, min + (max - min) * random.nextFloat());
+            }
+        }
+    }
+
+    @Benchmark
+    public void densityStep(CellCounter counter) {
+        pipeline.run(DELTA_TIME, 1f / size);
+        counter.cells += (long) size * size;
+    }
+}
@@ -0,0 +1,114 @@
+package rastersim.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rastersim.EdgeMode;
+import rastersim.Raster;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the Raster kernels.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RasterBenchmark {
+
+    private static final float DELTA_TIME = 0.02f;
+    private static final float DIFFUSION = 0.0001f;
+
+    @Param({"64", "256", "1024", "4096"})
+    public int size;
+
+    @Param({"WRAP", "CLAMP"})
+    public EdgeMode edgeMode;
+
+    private Raster raster;
+    private Raster source;
+    private Raster xVel;
+    private Raster yVel;
+    private float cellSize;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        raster = new Raster(size, size, edgeMode);
+        source = randomRaster(random, 0, 1);
+        xVel = randomRaster(random, -1, 1);
+        yVel = randomRaster(random, -1, 1);
+        cellSize = 1f / size;
+    }
+
+    private Raster randomRaster(Random random, float min, float max) {
+        final Raster r = new Raster(size, size, edgeMode);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                r.set(x, y, min + (max - min) * random.nextFloat());
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Reads and writes every cell, and a one cell ring outside the raster that is mapped back by the edge mode.
+     */
+    @Benchmark
+    public void getSet(CellCounter counter) {
+        for (int y = -1; y <= size; y++) {
+            for (int x = -1; x <= size; x++) {
+                raster.set(x, y, source.get(x, y) + 1f);
+            }
+        }
+        counter.cells += (long) (size + 2) * (size + 2);
+    }
+
+    @Benchmark
+    public float getInterpolated(CellCounter counter) {
+        float sum = 0;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                sum += source.getInterpolated(x + 0.3f, y - 0.6f);
+            }
+        }
+        counter.cells += (long) size * size;
+        return sum;
+    }
+
+    @Benchmark
+    public void diffuseStep(CellCounter counter) {
+        raster.diffuseStep(source, DIFFUSION, DELTA_TIME, cellSize);
+        counter.cells += (long) size * size;
+    }
+
+    @Benchmark
+    public void diffuse(CellCounter counter) {
+        raster.diffuse(source, DIFFUSION, DELTA_TIME, cellSize, 0);
+        counter.cells += (long) size * size;
+    }
+
+    @Benchmark
+    public void advect(CellCounter counter) {
+        raster.advect(0, source, xVel, yVel, DELTA_TIME, cellSize);
+        counter.cells += (long) size * size;
+    }
+
+    @Benchmark
+    public void setBoundaries(CellCounter counter) {
+        raster.setBoundaries(1);
+        counter.cells += 4L * size;
+    }
+}
@@ -0,0 +1,112 @@
+package rastersim.benchmarks;
+
+import org.flowutils.gradient.ColorGradient;
+import org.flowutils.rawimage.RawImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rastersim.ChangedTiles;
+import rastersim.EdgeMode;
+import rastersim.PixelFont;
+import rastersim.Raster;
+import rastersim.RasterRenderer;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks rendering a raster to an image, also redrawing only the tiles changed by a small moving square, and
+ * drawing text on a raster.
+ * The font is read from the file given by the rastersim.font system property, by default assets/font.png.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RenderBenchmark {
+
+    private static final String MESSAGE = "*** Hello World! ***  FiRe EfFeCt wItH SpaRkS aNd sCrOlLEr.";
+    private static final int FONT_SIZE = 3;
+
+    @Param({"64", "256", "1024", "4096"})
+    public int size;
+
+    @Param({"WRAP", "CLAMP"})
+    public EdgeMode edgeMode;
+
+    private Raster raster;
+    private RasterRenderer renderer;
+    private Raster trackedRaster;
+    private RasterRenderer dirtyTileRenderer;
+    private RawImage image;
+    private RawImage dirtyTileImage;
+    private int squareX;
+    private PixelFont font;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        raster = new Raster(size, size, edgeMode);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                raster.set(x, y, random.nextFloat() * 1.4f - 0.4f);
+            }
+        }
+
+        final ColorGradient gradient = new ColorGradient();
+        gradient.addColor(-0.4, 0.0, 0.0, 0.0);
+        gradient.addColor( 0.0, 0.3, 0.3, 0.2);
+        gradient.addColor( 0.4, 0.9, 0.2, 0.0);
+        gradient.addColor( 1.0, 1.0, 1.0, 0.5);
+        renderer = new RasterRenderer(raster, gradient);
+
+        // Render at the raster resolution, scaled up for small rasters
+        final int imageSize = Math.max(size, 512);
+        image = new RawImage(imageSize, imageSize);
+
+        trackedRaster = new Raster(size, size, edgeMode);
+        trackedRaster.copyFrom(raster);
+        trackedRaster.setChangedTiles(new ChangedTiles(size, size));
+        dirtyTileRenderer = new RasterRenderer(trackedRaster, gradient);
+        dirtyTileRenderer.useDirtyTiles(RasterRenderer.DEFAULT_DIRTY_TILE_SIZE, 0);
+        dirtyTileImage = new RawImage(imageSize, imageSize);
+        dirtyTileRenderer.renderImage(dirtyTileImage);
+
+        font = new PixelFont(new File(System.getProperty("rastersim.font", "assets/font.png")));
+    }
+
+    @Benchmark
+    public void renderImage(CellCounter counter) {
+        renderer.renderImage(image);
+        counter.cells += (long) size * size;
+    }
+
+    @Benchmark
+    public void renderChangedTiles(CellCounter counter) {
+        // Moves a square of 8 by 8 cells one cell to the right, wrapping around
+        final int squareSize = Math.min(8, size);
+        trackedRaster.fillRect(squareX, 0, squareSize, squareSize, -0.4f, false);
+        squareX = (squareX + 1) % (size - squareSize + 1);
+        trackedRaster.fillRect(squareX, 0, squareSize, squareSize, 1f, false);
+
+        dirtyTileRenderer.renderImage(dirtyTileImage);
+        counter.cells += (long) size * size;
+    }
+
+    @Benchmark
+    public void drawString(CellCounter counter) {
+        font.drawString(raster, 0, size / 2, MESSAGE, FONT_SIZE, 1.3f, 0);
+        counter.cells += (long) MESSAGE.length() * 8 * 8 * FONT_SIZE * FONT_SIZE;
+    }
+}
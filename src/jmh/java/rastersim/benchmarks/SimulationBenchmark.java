@@ -0,0 +1,49 @@
+package rastersim.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rastersim.RandomSimulation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a full tick of the fire simulation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class SimulationBenchmark {
+
+    private static final double TIME_STEP = 0.02;
+
+    @Param({"64", "256", "1024", "4096"})
+    public int size;
+
+    private RandomSimulation simulation;
+    private double time;
+
+    @Setup
+    public void setup() {
+        simulation = new RandomSimulation(size, size);
+        time = 0;
+    }
+
+    @Benchmark
+    public void update(CellCounter counter) {
+        simulation.update(time, TIME_STEP);
+        time += TIME_STEP;
+        counter.cells += (long) size * size;
+    }
+}
@@ -0,0 +1,247 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of which square tiles of a raster are still changing, so that sparse operations can skip the dormant
+ * ones.
+ *
+ * The sparse operations, such as Raster.diffuseStep() and Raster.advect() with an ActiveTiles argument, only process
+ * the active tiles, and report the largest change of a cell in each.  endStep() is called after all operations of a
+ * simulation step.  A tile that changed by less than epsilon in quietSteps consecutive steps becomes dormant, and keeps
+ * its values until it is woken again.  Tiles are woken when a neighbouring tile changes by epsilon or more, when cells
+ * in them are written by any other operation on a raster that uses this tracker (see Raster), such as add() for a
+ * source term, and every maxDormantSteps steps to check that they are still quiet.
+ *
+ * A dormant tile keeps values that changed less than epsilon per step when last computed, so the error against
+ * computing every tile is at most epsilon per cell for each step the tile is dormant.  quietSteps should be at least
+ * the number of rasters an operation rotates through, so that the skipped tiles have the same values in all of them.
+ * Changes spread by at most one tile per step, so anything moving faster than tileSize cells per step may be missed.
+ *
+ * Writes and steps should be done from the simulation thread.
+ */
+public final class ActiveTiles {
+
+    public static final int DEFAULT_TILE_SIZE = 32;
+    public static final float DEFAULT_EPSILON = 1e-5f;
+    public static final int DEFAULT_QUIET_STEPS = 3;
+    public static final int DEFAULT_MAX_DORMANT_STEPS = 256;
+
+    /**
+     * Processes an area of a raster for a sparse operation.
+     */
+    public interface AreaTask {
+        /**
+         * @param x0 first column to process.
+         * @param x1 column after the last column to process.
+         * @param y0 first row to process.
+         * @param y1 row after the last row to process.
+         * @return the largest absolute change of a cell in the area.
+         */
+        float processArea(int x0, int x1, int y0, int y1);
+    }
+
+    private final int w;
+    private final int h;
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+    private final float epsilon;
+    private final int quietSteps;
+    private final int maxDormantSteps;
+
+    // Consecutive steps each tile has been quiet for; a tile is active while below quietSteps
+    private final int[] quietCounts;
+
+    // Steps each tile has been dormant for
+    private final int[] dormantCounts;
+
+    // Largest change of each tile during the current step, or -1 if it was not processed
+    private final float[] changes;
+
+    private long steps;
+    private long processedTiles;
+
+    public ActiveTiles(int w, int h) {
+        this(w, h, DEFAULT_TILE_SIZE, DEFAULT_EPSILON, DEFAULT_QUIET_STEPS, DEFAULT_MAX_DORMANT_STEPS);
+    }
+
+    /**
+     * @param epsilon change per step below which a tile counts as quiet.
+     * @param quietSteps number of consecutive quiet steps after which a tile becomes dormant.
+     * @param maxDormantSteps number of steps after which a dormant tile is woken to check whether it is still quiet.
+     */
+    public ActiveTiles(int w, int h, int tileSize, float epsilon, int quietSteps, int maxDormantSteps) {
+        Check.positive(w, "w");
+        Check.positive(h, "h");
+        Check.positive(tileSize, "tileSize");
+        Check.positiveOrZero(epsilon, "epsilon");
+        Check.positive(quietSteps, "quietSteps");
+        Check.positive(maxDormantSteps, "maxDormantSteps");
+
+        this.w = w;
+        this.h = h;
+        this.tileSize = tileSize;
+        this.epsilon = epsilon;
+        this.quietSteps = quietSteps;
+        this.maxDormantSteps = maxDormantSteps;
+        tilesX = (w + tileSize - 1) / tileSize;
+        tilesY = (h + tileSize - 1) / tileSize;
+
+        quietCounts = new int[tilesX * tilesY];
+        dormantCounts = new int[tilesX * tilesY];
+        changes = new float[tilesX * tilesY];
+        Arrays.fill(changes, -1);
+    }
+
+    public int getW() {
+        return w;
+    }
+
+    public int getH() {
+        return h;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public float getEpsilon() {
+        return epsilon;
+    }
+
+    public boolean isActive(int tileX, int tileY) {
+        return quietCounts[tileX + tileY * tilesX] < quietSteps;
+    }
+
+    /**
+     * @return number of tiles that the sparse operations will process in the next step.
+     */
+    public int getActiveTileCount() {
+        int count = 0;
+        for (int quietCount : quietCounts) {
+            if (quietCount < quietSteps) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return fraction of the tiles processed by the sparse operations since the tracker was created, counting each
+     *         step once.
+     */
+    public double getProcessedFraction() {
+        return steps > 0 ? (double) processedTiles / ((double) steps * tilesX * tilesY) : 1;
+    }
+
+    /**
+     * Wakes the tile containing the cell, if it is inside the raster.
+     */
+    public void wake(int x, int y) {
+        if (x >= 0 && x < w && y >= 0 && y < h) {
+            final int tile = x / tileSize + (y / tileSize) * tilesX;
+            quietCounts[tile] = 0;
+            dormantCounts[tile] = 0;
+        }
+    }
+
+    /**
+     * Wakes the tiles overlapping the area from x0, y0 (inclusive) to x1, y1 (exclusive), clipped to the raster.
+     */
+    public void wakeArea(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+        x1 = Math.min(w, x1);
+        y1 = Math.min(h, y1);
+        if (x0 >= x1 || y0 >= y1) return;
+
+        for (int ty = y0 / tileSize; ty <= (y1 - 1) / tileSize; ty++) {
+            for (int tx = x0 / tileSize; tx <= (x1 - 1) / tileSize; tx++) {
+                quietCounts[tx + ty * tilesX] = 0;
+                dormantCounts[tx + ty * tilesX] = 0;
+            }
+        }
+    }
+
+    public void wakeAll() {
+        Arrays.fill(quietCounts, 0);
+        Arrays.fill(dormantCounts, 0);
+    }
+
+    /**
+     * Calls the task for the part of each active tile in the tile rows from tileY0 (inclusive) to tileY1 (exclusive)
+     * that lies inside the interior of the raster, leaving out inset cells at each edge, and records the changes.
+     * Each tile row must only be processed by one thread at a time.
+     */
+    public void processTileRows(int tileY0, int tileY1, int inset, AreaTask task) {
+        for (int ty = tileY0; ty < tileY1; ty++) {
+            final int y0 = Math.max(inset, ty * tileSize);
+            final int y1 = Math.min(h - inset, (ty + 1) * tileSize);
+            if (y0 >= y1) continue;
+
+            for (int tx = 0; tx < tilesX; tx++) {
+                final int tile = tx + ty * tilesX;
+                if (quietCounts[tile] >= quietSteps) continue;
+
+                final int x0 = Math.max(inset, tx * tileSize);
+                final int x1 = Math.min(w - inset, (tx + 1) * tileSize);
+                if (x0 >= x1) continue;
+
+                final float change = task.processArea(x0, x1, y0, y1);
+                changes[tile] = Math.max(changes[tile], change);
+            }
+        }
+    }
+
+    /**
+     * Updates the active tiles from the changes recorded during the step.  Call once after all sparse operations of a
+     * step.
+     */
+    public void endStep() {
+        int processed = 0;
+        for (int tile = 0; tile < changes.length; tile++) {
+            if (changes[tile] >= 0) processed++;
+        }
+        processedTiles += processed;
+        steps++;
+
+        for (int tile = 0; tile < changes.length; tile++) {
+            final float change = changes[tile];
+            if (change < 0) {
+                // Dormant, woken now and then to check that it is still quiet
+                if (quietCounts[tile] >= quietSteps && ++dormantCounts[tile] >= maxDormantSteps) {
+                    quietCounts[tile] = 0;
+                    dormantCounts[tile] = 0;
+                }
+            }
+            else if (change < epsilon) {
+                quietCounts[tile]++;
+            }
+        }
+
+        // Tiles that changed wake their neighbours too, as the change spreads to them in the next step
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                if (changes[tx + ty * tilesX] >= epsilon) {
+                    for (int ny = Math.max(0, ty - 1); ny <= Math.min(tilesY - 1, ty + 1); ny++) {
+                        for (int nx = Math.max(0, tx - 1); nx <= Math.min(tilesX - 1, tx + 1); nx++) {
+                            quietCounts[nx + ny * tilesX] = 0;
+                            dormantCounts[nx + ny * tilesX] = 0;
+                        }
+                    }
+                }
+            }
+        }
+
+        Arrays.fill(changes, -1);
+    }
+}
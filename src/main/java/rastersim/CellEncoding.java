@@ -0,0 +1,220 @@
+package rastersim;
+
+/**
+ * How the cells of a CompactRaster are stored, with fewer bits than a float.  Values are converted to floats for
+ * computing, and rounded to the nearest storable value when stored.
+ */
+public abstract class CellEncoding {
+
+    /**
+     * IEEE half precision floats of 16 bits, with about 3 significant decimal digits at any magnitude up to 65504.
+     */
+    public static final CellEncoding HALF = new Half();
+
+    /**
+     * @return encoding storing 65536 evenly spaced values from min to max in 16 bits.  Values outside the range are
+     *         clamped to it.
+     */
+    public static CellEncoding fixed16(float min, float max) {
+        return new Fixed(16, min, max);
+    }
+
+    /**
+     * @return encoding storing 256 evenly spaced values from min to max in 8 bits.  Values outside the range are
+     *         clamped to it.
+     */
+    public static CellEncoding fixed8(float min, float max) {
+        return new Fixed(8, min, max);
+    }
+
+    public abstract int getBitsPerCell();
+
+    /**
+     * @return smallest value that can be stored, values below it are stored as it or as negative infinity.
+     */
+    public abstract float getMin();
+
+    /**
+     * @return largest value that can be stored, values above it are stored as it or as infinity.
+     */
+    public abstract float getMax();
+
+    /**
+     * @return largest error from storing a value of about the specified magnitude within the range.
+     */
+    public abstract float getPrecision(float value);
+
+    abstract Object allocate(int cells);
+
+    abstract float decode(Object data, int index);
+
+    abstract void encode(Object data, int index, float value);
+
+    /**
+     * Converts count stored values starting at index to floats.
+     */
+    abstract void decode(Object data, int index, float[] target, int offset, int count);
+
+    /**
+     * Rounds count floats to stored values starting at index.
+     */
+    abstract void encode(float[] source, int offset, Object data, int index, int count);
+
+    private static final class Half extends CellEncoding {
+        @Override public int getBitsPerCell() {
+            return 16;
+        }
+
+        @Override public float getMin() {
+            return -HalfFloat.MAX_VALUE;
+        }
+
+        @Override public float getMax() {
+            return HalfFloat.MAX_VALUE;
+        }
+
+        @Override public float getPrecision(float value) {
+            // Half of the spacing of half precision values, which have 10 mantissa bits, and are evenly spaced below
+            // the smallest normal value 2^-14
+            return Math.max(Math.ulp(value) * (1 << 12), HalfFloat.MIN_VALUE * 0.5f);
+        }
+
+        @Override Object allocate(int cells) {
+            return new short[cells];
+        }
+
+        @Override float decode(Object data, int index) {
+            return HalfFloat.toFloat(((short[]) data)[index]);
+        }
+
+        @Override void encode(Object data, int index, float value) {
+            ((short[]) data)[index] = HalfFloat.fromFloat(value);
+        }
+
+        @Override void decode(Object data, int index, float[] target, int offset, int count) {
+            HalfFloat.toFloats((short[]) data, index, target, offset, count);
+        }
+
+        @Override void encode(float[] source, int offset, Object data, int index, int count) {
+            HalfFloat.fromFloats(source, offset, (short[]) data, index, count);
+        }
+
+        @Override public String toString() {
+            return "half";
+        }
+    }
+
+    private static final class Fixed extends CellEncoding {
+        private static final float ROUNDING_BIAS = 0x1p23f;
+
+        private final int bits;
+        private final float min;
+        private final float max;
+        private final int levels;
+        private final float maxLevel;
+        private final float step;
+        private final float inverseStep;
+
+        Fixed(int bits, float min, float max) {
+            if (!(max > min) || Float.isInfinite(min) || Float.isInfinite(max)) throw new IllegalArgumentException("Expected a finite range with min < max, but got " + min + " to " + max);
+
+            this.bits = bits;
+            this.min = min;
+            this.max = max;
+            levels = (1 << bits) - 1;
+            maxLevel = levels;
+            step = (max - min) / levels;
+            inverseStep = levels / (max - min);
+        }
+
+        @Override public int getBitsPerCell() {
+            return bits;
+        }
+
+        @Override public float getMin() {
+            return min;
+        }
+
+        @Override public float getMax() {
+            return max;
+        }
+
+        @Override public float getPrecision(float value) {
+            // Half a step, and the rounding of the step count as a float, which has 24 significant bits
+            return step * (0.5f + levels * 0x1p-23f);
+        }
+
+        @Override Object allocate(int cells) {
+            return bits == 8 ? new byte[cells] : new short[cells];
+        }
+
+        /**
+         * @return the value as the number of steps above min, rounded and clamped to the range.  NaN becomes min.
+         */
+        private int quantize(float value) {
+            float level = (value - min) * inverseStep;
+            level = level < 0 ? 0 : level;
+            level = level > maxLevel ? maxLevel : level;
+
+            // Adding 2^23 rounds to the nearest integer, leaving it in the low mantissa bits, which is much faster than
+            // casting to int.  NaN leaves zeros there
+            return Float.floatToRawIntBits(level + ROUNDING_BIAS) & levels;
+        }
+
+        @Override float decode(Object data, int index) {
+            return min + (bits == 8 ? ((byte[]) data)[index] & 0xFF : ((short[]) data)[index] & 0xFFFF) * step;
+        }
+
+        @Override void encode(Object data, int index, float value) {
+            if (bits == 8) ((byte[]) data)[index] = (byte) quantize(value);
+            else ((short[]) data)[index] = (short) quantize(value);
+        }
+
+        @Override void decode(Object data, int index, float[] target, int offset, int count) {
+            // Computing the values instead of looking them up lets the JIT vectorize the loops
+            final float min = this.min;
+            final float step = this.step;
+            if (bits == 8) {
+                final byte[] stored = (byte[]) data;
+                for (int i = 0; i < count; i++) {
+                    target[offset + i] = min + (stored[index + i] & 0xFF) * step;
+                }
+            }
+            else {
+                final short[] stored = (short[]) data;
+                for (int i = 0; i < count; i++) {
+                    target[offset + i] = min + (stored[index + i] & 0xFFFF) * step;
+                }
+            }
+        }
+
+        @Override void encode(float[] source, int offset, Object data, int index, int count) {
+            if (bits == 8) {
+                final byte[] values = (byte[]) data;
+                for (int i = 0; i < count; i++) {
+                    values[index + i] = (byte) quantize(source[offset + i]);
+                }
+            }
+            else {
+                final short[] values = (short[]) data;
+                for (int i = 0; i < count; i++) {
+                    values[index + i] = (short) quantize(source[offset + i]);
+                }
+            }
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Fixed)) return false;
+            final Fixed other = (Fixed) o;
+            return bits == other.bits && Float.compare(min, other.min) == 0 && Float.compare(max, other.max) == 0;
+        }
+
+        @Override public int hashCode() {
+            return 31 * (31 * bits + Float.floatToIntBits(min)) + Float.floatToIntBits(max);
+        }
+
+        @Override public String toString() {
+            return "fixed" + bits + " " + min + " to " + max;
+        }
+    }
+}
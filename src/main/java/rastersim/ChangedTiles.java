@@ -0,0 +1,116 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+/**
+ * Counts the writes to each square tile of a raster, so that readers such as RasterRenderer can skip the tiles that
+ * were not written since they last looked at them.
+ *
+ * Attached to a raster with Raster.setChangedTiles().  Every operation that writes to the raster marks the tiles it
+ * writes (see Raster); only after writing to the backing array directly, call Raster.markChanged() for the changed
+ * area.  The marks are not synchronized, so readers on other threads should only rely on them after the writer has
+ * published the raster, for example through a TripleBuffer.
+ */
+public final class ChangedTiles {
+
+    public static final int DEFAULT_TILE_SIZE = 32;
+
+    private final int w;
+    private final int h;
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+
+    // Number of writes to each tile, wrapping around
+    private final int[] versions;
+
+    public ChangedTiles(int w, int h) {
+        this(w, h, DEFAULT_TILE_SIZE);
+    }
+
+    public ChangedTiles(int w, int h, int tileSize) {
+        Check.positive(w, "w");
+        Check.positive(h, "h");
+        Check.positive(tileSize, "tileSize");
+
+        this.w = w;
+        this.h = h;
+        this.tileSize = tileSize;
+        tilesX = (w + tileSize - 1) / tileSize;
+        tilesY = (h + tileSize - 1) / tileSize;
+        versions = new int[tilesX * tilesY];
+    }
+
+    public int getW() {
+        return w;
+    }
+
+    public int getH() {
+        return h;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    /**
+     * Marks the tile containing the cell changed, if it is inside the raster.
+     */
+    public void markChanged(int x, int y) {
+        if (x >= 0 && x < w && y >= 0 && y < h) {
+            versions[x / tileSize + (y / tileSize) * tilesX]++;
+        }
+    }
+
+    /**
+     * Marks the tiles overlapping the area from x0, y0 (inclusive) to x1, y1 (exclusive) changed, clipped to the raster.
+     */
+    public void markChanged(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+        x1 = Math.min(w, x1);
+        y1 = Math.min(h, y1);
+        if (x0 >= x1 || y0 >= y1) return;
+
+        for (int ty = y0 / tileSize; ty <= (y1 - 1) / tileSize; ty++) {
+            for (int tx = x0 / tileSize; tx <= (x1 - 1) / tileSize; tx++) {
+                versions[tx + ty * tilesX]++;
+            }
+        }
+    }
+
+    public void markAllChanged() {
+        for (int i = 0; i < versions.length; i++) {
+            versions[i]++;
+        }
+    }
+
+    /**
+     * @return a number that changes whenever a tile overlapping the area from x0, y0 (inclusive) to x1, y1 (exclusive)
+     *         is marked changed.
+     */
+    public int getVersion(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+        x1 = Math.min(w, x1);
+        y1 = Math.min(h, y1);
+        if (x0 >= x1 || y0 >= y1) return 0;
+
+        // Each mark increments a tile, so the sum changes with any of them
+        int version = 0;
+        for (int ty = y0 / tileSize; ty <= (y1 - 1) / tileSize; ty++) {
+            for (int tx = x0 / tileSize; tx <= (x1 - 1) / tileSize; tx++) {
+                version += versions[tx + ty * tilesX];
+            }
+        }
+        return version;
+    }
+}
@@ -0,0 +1,116 @@
+package rastersim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Saves and restores the complete state of a simulation, so that a long run can be resumed after it was stopped.
+ *
+ * A checkpoint holds the simulation time, the state written by Simulation.writeState(), such as the step count and
+ * the random seed, and a RasterSnapshot of each raster of the simulation.  It is written to a temporary file that then
+ * replaces the target, so a crash while saving leaves the previous checkpoint intact.
+ */
+public final class Checkpoint {
+
+    /**
+     * "RCKP" in little endian byte order.
+     */
+    public static final int MAGIC = 0x504B4352;
+    public static final int VERSION = 1;
+
+    private Checkpoint() {
+    }
+
+    /**
+     * Saves the state of the simulation.  Must not be called while the simulation is being updated.
+     * @param simulationTime current time of the simulation, returned by restore().
+     */
+    public static void save(Simulation simulation, double simulationTime, File file) throws IOException {
+        final ByteArrayOutputStream stateBytes = new ByteArrayOutputStream();
+        try (DataOutputStream stateOut = new DataOutputStream(stateBytes)) {
+            simulation.writeState(stateOut);
+        }
+        final Map<String, Raster> rasters = simulation.getRasters();
+
+        final File temporaryFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporaryFile.toPath(),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer header = ByteBuffer.allocate(24 + stateBytes.size()).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putDouble(simulationTime);
+            header.putInt(stateBytes.size()).put(stateBytes.toByteArray());
+            header.putInt(rasters.size());
+            header.flip();
+            RasterSnapshot.writeFully(channel, header);
+
+            for (Map.Entry<String, Raster> entry : rasters.entrySet()) {
+                final byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                final ByteBuffer nameBuffer = ByteBuffer.allocate(4 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+                nameBuffer.putInt(name.length).put(name);
+                nameBuffer.flip();
+                RasterSnapshot.writeFully(channel, nameBuffer);
+
+                RasterSnapshot.write(entry.getValue(), channel);
+            }
+
+            channel.force(true);
+        }
+
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the state of the simulation saved in the file.  The simulation must have rasters of the same names and
+     * sizes as the saved one.  Must not be called while the simulation is being updated.
+     * @return the simulation time the checkpoint was saved at.
+     */
+    public static double restore(Simulation simulation, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+            RasterSnapshot.readFully(channel, header);
+            header.flip();
+
+            if (header.getInt() != MAGIC) throw new IOException("Not a checkpoint");
+            final int version = header.getInt();
+            if (version != VERSION) throw new IOException("Unsupported checkpoint version " + version);
+            final double simulationTime = header.getDouble();
+            final int stateSize = header.getInt();
+
+            final ByteBuffer state = ByteBuffer.allocate(stateSize + 4).order(ByteOrder.LITTLE_ENDIAN);
+            RasterSnapshot.readFully(channel, state);
+            final int rasterCount = state.getInt(stateSize);
+
+            final Map<String, Raster> rasters = simulation.getRasters();
+            for (int i = 0; i < rasterCount; i++) {
+                final ByteBuffer nameLength = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                RasterSnapshot.readFully(channel, nameLength);
+                final ByteBuffer nameBuffer = ByteBuffer.allocate(nameLength.getInt(0));
+                RasterSnapshot.readFully(channel, nameBuffer);
+                final String name = new String(nameBuffer.array(), StandardCharsets.UTF_8);
+
+                final Raster raster = rasters.get(name);
+                if (raster == null) throw new IOException("The simulation has no raster named " + name);
+                RasterSnapshot.read(channel, raster);
+            }
+
+            try (DataInputStream stateIn = new DataInputStream(new ByteArrayInputStream(state.array(), 0, stateSize))) {
+                simulation.readState(stateIn);
+            }
+
+            return simulationTime;
+        }
+    }
+}
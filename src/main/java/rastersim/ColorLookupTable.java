@@ -0,0 +1,60 @@
+package rastersim;
+
+import org.flowutils.Check;
+import org.flowutils.gradient.ColorFunction;
+
+/**
+ * Color function sampled at evenly spaced values over a range, so that looking up a color is a single array access.
+ * Values outside the range get the color of the nearest end of the range.
+ */
+public final class ColorLookupTable {
+
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final int[] colors;
+    private final float min;
+    private final float max;
+    private final float scale;
+
+    public ColorLookupTable(ColorFunction colorFunction, float min, float max) {
+        this(colorFunction, min, max, DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size number of samples to take over the range.
+     */
+    public ColorLookupTable(ColorFunction colorFunction, float min, float max, int size) {
+        Check.notNull(colorFunction, "colorFunction");
+        if (max <= min) throw new IllegalArgumentException("The max value (" + max + ") should be larger than the min value (" + min + ")");
+        if (size < 2) throw new IllegalArgumentException("The size should be at least 2, but was " + size);
+
+        this.min = min;
+        this.max = max;
+        scale = (size - 1) / (max - min);
+
+        colors = new int[size];
+        for (int i = 0; i < size; i++) {
+            colors[i] = colorFunction.colorCodeForValue(min + i / scale);
+        }
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public int getSize() {
+        return colors.length;
+    }
+
+    public int colorCodeForValue(float value) {
+        // The comparisons also map NaN to the first color
+        final float position = (value - min) * scale + 0.5f;
+        if (!(position >= 0)) return colors[0];
+        if (position >= colors.length) return colors[colors.length - 1];
+        return colors[(int) position];
+    }
+}
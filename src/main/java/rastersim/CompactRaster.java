@@ -0,0 +1,215 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.util.Arrays;
+
+import static org.flowutils.Maths.*;
+
+/**
+ * Raster storing its cells with fewer bits than a float, as half precision floats or as fixed point values of 16 or 8
+ * bits, for large fields that do not need full precision.  It takes a half or a quarter of the memory of a Raster, so
+ * larger fields fit in memory, and copying moves correspondingly fewer bytes.  The other operations spend more time
+ * converting the cells than they save in memory traffic, and are slower than on a Raster even when the vector kernels
+ * convert the half precision cells.
+ *
+ * The operations convert a few rows at a time to floats, compute them with the same kernels as Raster, and round the
+ * results to the encoding, so the result is that of the Raster operation on the stored values, rounded.  The cells are
+ * stored row by row without a halo.
+ */
+public final class CompactRaster implements FloatGrid {
+
+    private final int w;
+    private final int h;
+    private final EdgeMode edgeMode;
+    private final CellEncoding encoding;
+    private final Object data;
+
+    public CompactRaster(int w, int h, EdgeMode edgeMode, CellEncoding encoding) {
+        Check.positive(w, "w");
+        Check.positive(h, "h");
+        Check.notNull(edgeMode, "edgeMode");
+        Check.notNull(encoding, "encoding");
+        if ((long) w * h > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("A raster of " + w + " x " + h + " cells does not fit in an array");
+
+        this.w = w;
+        this.h = h;
+        this.edgeMode = edgeMode;
+        this.encoding = encoding;
+        data = encoding.allocate(w * h);
+
+        // Zero is not always a storable value, so store the nearest one
+        fill(0);
+    }
+
+    @Override public int getW() {
+        return w;
+    }
+
+    @Override public int getH() {
+        return h;
+    }
+
+    @Override public EdgeMode getEdgeMode() {
+        return edgeMode;
+    }
+
+    @Override public long getCellCount() {
+        return (long) w * h;
+    }
+
+    public CellEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return number of bytes used to store the cells.
+     */
+    public long getByteCount() {
+        return getCellCount() * encoding.getBitsPerCell() / 8;
+    }
+
+    private int index(int x, int y) {
+        if (x < 0 || x >= w) x = edgeMode.resolve(x, w);
+        if (y < 0 || y >= h) y = edgeMode.resolve(y, h);
+
+        return x + y * w;
+    }
+
+    @Override public float get(int x, int y) {
+        return encoding.decode(data, index(x, y));
+    }
+
+    @Override public float getInterpolated(float x, float y) {
+        final int x0 = fastFloor(x);
+        final int y0 = fastFloor(y);
+        final float cx = x - x0;
+        final float cy = y - y0;
+        final float yr0 = mix(cx, get(x0, y0),     get(x0 + 1, y0));
+        final float yr1 = mix(cx, get(x0, y0 + 1), get(x0 + 1, y0 + 1));
+        return mix(cy, yr0, yr1);
+    }
+
+    /**
+     * Stores the value rounded to the nearest value of the encoding.
+     */
+    @Override public void set(int x, int y, float v) {
+        encoding.encode(data, index(x, y), v);
+    }
+
+    @Override public void fill(float v) {
+        final float[] row = new float[w];
+        Arrays.fill(row, v);
+        for (int y = 0; y < h; y++) {
+            encoding.encode(row, 0, data, y * w, w);
+        }
+    }
+
+    @Override public void readRow(int y, float[] target, int offset) {
+        if (y < 0 || y >= h) y = edgeMode.resolve(y, h);
+
+        encoding.decode(data, y * w, target, offset, w);
+    }
+
+    @Override public void writeRow(int y, float[] source, int offset) {
+        if (y < 0 || y >= h) y = edgeMode.resolve(y, h);
+
+        encoding.encode(source, offset, data, y * w, w);
+    }
+
+    /**
+     * Copies the cells of a raster of the same size and encoding without converting them.
+     */
+    public void copyFrom(CompactRaster source) {
+        checkSizeMatches(source);
+        if (!source.encoding.equals(encoding)) throw new IllegalArgumentException("The source is encoded as " + source.encoding + ", not " + encoding);
+
+        System.arraycopy(source.data, 0, data, 0, w * h);
+    }
+
+    /**
+     * Copies the cells of a grid of the same size into this raster, rounding them to the encoding.
+     */
+    public void copyFrom(FloatGrid source) {
+        checkSizeMatches(source);
+
+        final float[] row = new float[w];
+        for (int y = 0; y < h; y++) {
+            source.readRow(y, row, 0);
+            writeRow(y, row, 0);
+        }
+    }
+
+    /**
+     * Copies the cells of this raster into a grid of the same size.
+     */
+    public void copyTo(FloatGrid target) {
+        checkSizeMatches(target);
+
+        final float[] row = new float[w];
+        for (int y = 0; y < h; y++) {
+            readRow(y, row, 0);
+            target.writeRow(y, row, 0);
+        }
+    }
+
+    /**
+     * Same as Raster.add(): each cell += source cell * scale + offset.
+     */
+    public void add(CompactRaster source, float scale, float offset) {
+        checkSizeMatches(source);
+
+        addRows(source, scale, offset, 0, h);
+    }
+
+    void addRows(CompactRaster source, float scale, float offset, int y0, int y1) {
+        final float[] row = new float[w];
+        final float[] sourceRow = new float[w];
+        final RasterKernels kernels = RasterKernels.get();
+        for (int y = y0; y < y1; y++) {
+            encoding.decode(data, y * w, row, 0, w);
+            source.encoding.decode(source.data, y * w, sourceRow, 0, w);
+            kernels.add(row, sourceRow, scale, offset, 0, w);
+            encoding.encode(row, 0, data, y * w, w);
+        }
+    }
+
+    /**
+     * Same as Raster.diffuseStep(): the cells inside the edges get one diffusion step from the source, and the edge
+     * cells are left as they are.  The target may not be the source.
+     */
+    public void diffuseStep(CompactRaster source, float diffusion, float deltaTime, float cellSizeMeter) {
+        checkSizeMatches(source);
+        if (source == this) throw new IllegalArgumentException("The target may not be the source raster");
+
+        diffuseRows(source, Raster.diffusionRate(diffusion, deltaTime, cellSizeMeter), 1, h - 1);
+    }
+
+    /**
+     * Diffuses the interior rows from y0 (inclusive) to y1 (exclusive), which must lie within 1 and h-1.
+     */
+    void diffuseRows(CompactRaster source, float a, int y0, int y1) {
+        if (y0 >= y1 || w < 3) return;
+
+        final float divisor = 1 + 4 * a;
+        final RasterKernels kernels = RasterKernels.get();
+
+        // Three consecutive source rows, and the result for the middle one at the same position
+        final float[] rows = new float[3 * w];
+        final float[] result = new float[3 * w];
+        source.encoding.decode(source.data, (y0 - 1) * w, rows, 0, 2 * w);
+
+        for (int y = y0; y < y1; y++) {
+            source.encoding.decode(source.data, (y + 1) * w, rows, 2 * w, w);
+            kernels.diffuseRow(result, rows, w + 1, w - 2, w, a, divisor);
+            encoding.encode(result, w + 1, data, y * w + 1, w - 2);
+
+            System.arraycopy(rows, w, rows, 0, 2 * w);
+        }
+    }
+
+    private void checkSizeMatches(FloatGrid other) {
+        Check.equal(other.getW(), "width of other grid", w, "width of this raster");
+        Check.equal(other.getH(), "height of other grid", h, "height of this raster");
+    }
+}
@@ -0,0 +1,47 @@
+package rastersim;
+
+/**
+ * How coordinates outside a raster are mapped back onto it.
+ */
+public enum EdgeMode {
+
+    /**
+     * Coordinates wrap around to the opposite edge.
+     */
+    WRAP {
+        @Override int resolve(int c, int size) {
+            final int r = c % size;
+            return r < 0 ? r + size : r;
+        }
+    },
+
+    /**
+     * Coordinates are clamped to the nearest edge cell.
+     */
+    CLAMP {
+        @Override int resolve(int c, int size) {
+            if (c < 0) return 0;
+            if (c >= size) return size - 1;
+            return c;
+        }
+    },
+
+    /**
+     * Coordinates are mirrored at the edge cells, without repeating the edge cell itself (-1 maps to 1).
+     */
+    REFLECT {
+        @Override int resolve(int c, int size) {
+            if (size == 1) return 0;
+
+            final int period = 2 * (size - 1);
+            int r = c % period;
+            if (r < 0) r += period;
+            return r < size ? r : period - r;
+        }
+    };
+
+    /**
+     * @return the coordinate c mapped to the range 0 until size.
+     */
+    abstract int resolve(int c, int size);
+}
@@ -0,0 +1,375 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a simulation headless for every combination of values in a ParameterGrid, many runs at the same time in one
+ * process.
+ *
+ * The steps of each run are split into tasks of a few steps, each of which forks the next one when done, so that the
+ * runs share a work stealing ForkJoinPool and idle threads pick up runs queued behind busy ones.  The stencils of the
+ * simulations run on the same pool.  Only a limited number of runs are in progress at a time, and their rasters are
+ * taken from a RasterPool and returned to it when a run finishes, so that memory use does not grow with the number of
+ * runs.
+ *
+ * Summary statistics of each run are appended to summary.csv in the output directory as soon as it finishes, and the
+ * rasters of each run are saved there as RasterSnapshot files.
+ */
+public final class EnsembleRunner {
+
+    private final ParameterGrid grid;
+    private final SimulationFactory factory;
+    private final RasterPool rasterPool = new RasterPool();
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int maxConcurrentRuns = 0;
+    private int stepsPerTask = 10;
+    private double timeStep = 0.02;
+    private long maxSteps = 1000;
+    private long snapshotInterval = 0;
+    private File outputDirectory;
+
+    private ForkJoinPool pool;
+    private StencilEngine engine;
+    private PrintWriter summary;
+    private boolean summaryHeaderWritten;
+    private int runCount;
+    private AtomicInteger nextRun;
+    private CountDownLatch finishedRuns;
+    private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    private final AtomicLong totalSteps = new AtomicLong();
+    private double elapsedSeconds;
+
+    public EnsembleRunner(ParameterGrid grid, SimulationFactory factory) {
+        Check.notNull(grid, "grid");
+        Check.notNull(factory, "factory");
+        this.grid = grid;
+        this.factory = factory;
+    }
+
+    public ParameterGrid getGrid() {
+        return grid;
+    }
+
+    public RasterPool getRasterPool() {
+        return rasterPool;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism number of threads to run the simulations on, defaults to the number of processors.
+     */
+    public void setParallelism(int parallelism) {
+        Check.positive(parallelism, "parallelism");
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return largest number of runs in progress at the same time.
+     */
+    public int getMaxConcurrentRuns() {
+        return maxConcurrentRuns > 0 ? maxConcurrentRuns : 2 * parallelism;
+    }
+
+    /**
+     * @param maxConcurrentRuns largest number of runs in progress at the same time, or 0 for twice the parallelism.
+     *                          Each run in progress holds its rasters.
+     */
+    public void setMaxConcurrentRuns(int maxConcurrentRuns) {
+        Check.positiveOrZero(maxConcurrentRuns, "maxConcurrentRuns");
+        this.maxConcurrentRuns = maxConcurrentRuns;
+    }
+
+    public int getStepsPerTask() {
+        return stepsPerTask;
+    }
+
+    /**
+     * @param stepsPerTask number of steps in each task of a run.  Between tasks an idle thread can steal the run.
+     */
+    public void setStepsPerTask(int stepsPerTask) {
+        Check.positive(stepsPerTask, "stepsPerTask");
+        this.stepsPerTask = stepsPerTask;
+    }
+
+    public double getTimeStep() {
+        return timeStep;
+    }
+
+    public void setTimeStep(double timeStep) {
+        Check.positive(timeStep, "timeStep");
+        this.timeStep = timeStep;
+    }
+
+    public long getMaxSteps() {
+        return maxSteps;
+    }
+
+    /**
+     * @param maxSteps number of steps to run each simulation.
+     */
+    public void setMaxSteps(long maxSteps) {
+        Check.positive(maxSteps, "maxSteps");
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * @param snapshotInterval number of steps between saving snapshots of the rasters of each run, or 0 to only save
+     *                         them after the last step.
+     */
+    public void setSnapshotInterval(long snapshotInterval) {
+        Check.positiveOrZero(snapshotInterval, "snapshotInterval");
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * @param outputDirectory directory to write the summary and snapshots to, or null to not write anything.
+     */
+    public void setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Runs all combinations of the parameter values, returning when they are done.
+     * If a run fails, no further runs are started, and the error is thrown once the runs in progress are done.
+     */
+    public void run() throws IOException {
+        runCount = grid.getRunCount();
+        nextRun = new AtomicInteger();
+        finishedRuns = new CountDownLatch(runCount);
+        error.set(null);
+        totalSteps.set(0);
+        summaryHeaderWritten = false;
+
+        if (outputDirectory != null) {
+            if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) throw new IOException("Could not create the directory " + outputDirectory);
+            summary = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outputDirectory, "summary.csv")), StandardCharsets.UTF_8)));
+        }
+
+        final long startTime = System.nanoTime();
+        pool = new ForkJoinPool(parallelism);
+        engine = new StencilEngine(pool, true);
+        try {
+            for (int i = 0; i < getMaxConcurrentRuns(); i++) {
+                startNextRun();
+            }
+            finishedRuns.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+            throw new InterruptedIOException("Interrupted while waiting for the runs to finish");
+        } finally {
+            pool.shutdown();
+            if (summary != null) {
+                summary.close();
+                summary = null;
+            }
+            elapsedSeconds = (System.nanoTime() - startTime) * 1e-9;
+        }
+
+        final Throwable e = error.get();
+        if (e instanceof IOException) throw (IOException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        if (e != null) throw new IllegalStateException("A run failed", e);
+    }
+
+    /**
+     * @return number of steps taken by all runs of the latest call to run().
+     */
+    public long getTotalSteps() {
+        return totalSteps.get();
+    }
+
+    /**
+     * @return wall clock time used by the last call to run().
+     */
+    public double getElapsedSeconds() {
+        return elapsedSeconds;
+    }
+
+    public double getStepsPerSecond() {
+        return elapsedSeconds > 0 ? totalSteps.get() / elapsedSeconds : 0;
+    }
+
+    /**
+     * Starts the next run that has not been started yet, if any.  After a failure the remaining runs are skipped.
+     */
+    private void startNextRun() {
+        int index;
+        while ((index = nextRun.getAndIncrement()) < runCount) {
+            if (error.get() == null) {
+                schedule(new RunTask(new Run(index, grid.getParameters(index))));
+                return;
+            }
+            finishedRuns.countDown();
+        }
+    }
+
+    private void schedule(RunTask task) {
+        // Forked tasks go to the deque of the current worker, where idle workers can steal them
+        if (ForkJoinTask.getPool() == pool) task.fork();
+        else pool.execute(task);
+    }
+
+    private void finish(Run run, Throwable failure) {
+        if (failure != null) error.compareAndSet(null, failure);
+
+        if (run.simulation != null) {
+            try {
+                // Runs stopped early because another run failed are left out of the summary
+                if (failure == null && run.steps == maxSteps && outputDirectory != null) writeSummary(run);
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                run.simulation.dispose();
+                run.simulation = null;
+            }
+        }
+
+        finishedRuns.countDown();
+        startNextRun();
+    }
+
+    private void writeSummary(Run run) throws IOException {
+        final Map<String, Raster> rasters = run.simulation.getRasters();
+        final StringBuilder line = new StringBuilder();
+        line.append(run.index);
+        for (double value : run.parameters.values()) {
+            line.append(',').append(value);
+        }
+        line.append(',').append(run.steps);
+        line.append(',').append(String.format(Locale.ROOT, "%.3f", run.elapsedSeconds));
+        for (Raster raster : rasters.values()) {
+            appendStatistics(line, raster);
+        }
+
+        synchronized (this) {
+            if (!summaryHeaderWritten) {
+                final StringBuilder header = new StringBuilder("run");
+                for (String name : run.parameters.keySet()) {
+                    header.append(',').append(name);
+                }
+                header.append(",steps,seconds");
+                for (String name : rasters.keySet()) {
+                    header.append(',').append(name).append("_mean");
+                    header.append(',').append(name).append("_min");
+                    header.append(',').append(name).append("_max");
+                }
+                summary.println(header);
+                summaryHeaderWritten = true;
+            }
+            summary.println(line);
+            summary.flush();
+            if (summary.checkError()) throw new IOException("Could not write the summary of run " + run.index);
+        }
+    }
+
+    private static void appendStatistics(StringBuilder line, Raster raster) {
+        final float[] data = raster.getData();
+        double sum = 0;
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int y = 0; y < raster.getH(); y++) {
+            int i = raster.rawIndex(0, y);
+            for (int x = 0; x < raster.getW(); x++, i++) {
+                final float value = data[i];
+                sum += value;
+                if (value < min) min = value;
+                if (value > max) max = value;
+            }
+        }
+        line.append(',').append(sum / ((double) raster.getW() * raster.getH()));
+        line.append(',').append(min);
+        line.append(',').append(max);
+    }
+
+    private void writeSnapshots(Run run) throws IOException {
+        for (Map.Entry<String, Raster> entry : run.simulation.getRasters().entrySet()) {
+            final String fileName = "run-" + run.index + "-" + entry.getKey() + "-" + run.steps + ".snapshot";
+            RasterSnapshot.write(entry.getValue(), new File(outputDirectory, fileName));
+        }
+    }
+
+    /**
+     * State of one run in progress.
+     */
+    private static final class Run {
+        final int index;
+        final Map<String, Double> parameters;
+        Simulation simulation;
+        long steps;
+        double simulationTime;
+        double elapsedSeconds;
+
+        Run(int index, Map<String, Double> parameters) {
+            this.index = index;
+            this.parameters = parameters;
+        }
+    }
+
+    /**
+     * Takes a number of steps of a run, and forks a task for the next steps, or finishes the run.
+     */
+    private final class RunTask extends RecursiveAction {
+        private final Run run;
+
+        RunTask(Run run) {
+            this.run = run;
+        }
+
+        @Override protected void compute() {
+            try {
+                if (error.get() != null) {
+                    finish(run, null);
+                    return;
+                }
+
+                final long startTime = System.nanoTime();
+                if (run.simulation == null) {
+                    run.simulation = factory.create(run.parameters, rasterPool, engine);
+                }
+
+                final long startStep = run.steps;
+                final long endStep = Math.min(maxSteps, startStep + stepsPerTask);
+                while (run.steps < endStep) {
+                    run.simulation.update(run.simulationTime, timeStep);
+                    run.steps++;
+                    run.simulationTime += timeStep;
+
+                    if (outputDirectory != null && ((snapshotInterval > 0 && run.steps % snapshotInterval == 0) || run.steps == maxSteps)) {
+                        writeSnapshots(run);
+                    }
+                }
+                totalSteps.addAndGet(endStep - startStep);
+                run.elapsedSeconds += (System.nanoTime() - startTime) * 1e-9;
+
+                if (run.steps < maxSteps) schedule(new RunTask(run));
+                else finish(run, null);
+            } catch (Throwable e) {
+                finish(run, e);
+            }
+        }
+    }
+}
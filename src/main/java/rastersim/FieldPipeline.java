@@ -0,0 +1,486 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sequence of operations on the fields of a FieldSet, run once per simulation step.
+ *
+ * When fused (the default), point-wise operations are applied row by row just ahead of the diffusions that follow
+ * them, and consecutive diffusions run their Jacobi iterations as a wavefront moving down the rows, keeping only a few
+ * rows of each intermediate iteration.  A run of point-wise operations and diffusions thus reads and writes each field
+ * about once, instead of once per operation and iteration.  Wide fields are processed in column strips so that the
+ * kept rows stay in the cache, recomputing a few columns at the sides of each strip.  Advection and projection read
+ * the fields at arbitrary positions, so they run as separate passes.
+ *
+ * The fused and unfused pipelines give identical results.
+ */
+public final class FieldPipeline {
+
+    /**
+     * Approximate size of the intermediate rows kept by a fused pass, which is split into column strips to fit.
+     */
+    private static final int FUSED_BLOCK_BYTES = 256 * 1024;
+
+    private final FieldSet fields;
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private boolean fused = true;
+    private Advector advector;
+
+    public FieldPipeline(FieldSet fields) {
+        Check.notNull(fields, "fields");
+        if (fields.getW() < 3 || fields.getH() < 3) throw new IllegalArgumentException("The fields must be at least 3 by 3 cells");
+
+        this.fields = fields;
+    }
+
+    public FieldSet getFields() {
+        return fields;
+    }
+
+    public boolean isFused() {
+        return fused;
+    }
+
+    /**
+     * @param fused false to run every operation and diffusion iteration as a separate pass over the fields,
+     *              for comparison.
+     */
+    public void setFused(boolean fused) {
+        this.fused = fused;
+    }
+
+    public Advector getAdvector() {
+        return advector;
+    }
+
+    /**
+     * @param advector advector used by the advection stages, or null to advect each field with Raster.advect().
+     */
+    public void setAdvector(Advector advector) {
+        this.advector = advector;
+    }
+
+    /**
+     * Adds the source field times the time step to the target field.
+     */
+    public FieldPipeline add(String target, String source) {
+        stages.add(new AddStage(checkField(target), checkField(source)));
+        return this;
+    }
+
+    /**
+     * Diffuses the field with Jacobi iterations of the implicit diffusion equation, setting its boundaries after each.
+     * One iteration gives the same result as Raster.diffuse().
+     * @param b boundary type, as in Raster.setBoundaries().
+     */
+    public FieldPipeline diffuse(String field, float diffusion, int iterations, int b) {
+        Check.positive(iterations, "iterations");
+        stages.add(new DiffuseStage(checkField(field), diffusion, iterations, b));
+        return this;
+    }
+
+    /**
+     * Moves the field along the velocity fields, as in Raster.advect().
+     */
+    public FieldPipeline advect(String field, String xVelocity, String yVelocity, int b) {
+        return advect(new String[]{field}, xVelocity, yVelocity, b);
+    }
+
+    /**
+     * Moves the fields along the velocity fields.  With an advector, they are all moved in one pass.
+     */
+    public FieldPipeline advect(String[] fieldNames, String xVelocity, String yVelocity, int b) {
+        Check.positive(fieldNames.length, "number of fields");
+        for (String field : fieldNames) {
+            checkField(field);
+        }
+        stages.add(new AdvectStage(fieldNames.clone(), checkField(xVelocity), checkField(yVelocity), b));
+        return this;
+    }
+
+    /**
+     * Moves the velocity fields along themselves, both using the velocity from before the advection.
+     */
+    public FieldPipeline advectVelocity(String xVelocity, String yVelocity) {
+        stages.add(new AdvectVelocityStage(checkField(xVelocity), checkField(yVelocity)));
+        return this;
+    }
+
+    /**
+     * Removes the divergence from the velocity fields, as in Raster.project(), with pressure and divergence scratch
+     * rasters owned by the pipeline.
+     */
+    public FieldPipeline project(String xVelocity, String yVelocity, PressureSolver pressureSolver) {
+        Check.notNull(pressureSolver, "pressureSolver");
+        stages.add(new ProjectStage(checkField(xVelocity), checkField(yVelocity), pressureSolver));
+        return this;
+    }
+
+    /**
+     * Runs the operations in the order they were added.
+     */
+    public void run(float deltaTime, float cellSizeMeter) {
+        int i = 0;
+        while (i < stages.size()) {
+            // Point-wise operations followed by diffusions of distinct fields make up one fused pass
+            final List<AddStage> pointStages = new ArrayList<AddStage>();
+            while (i < stages.size() && stages.get(i) instanceof AddStage) {
+                pointStages.add((AddStage) stages.get(i++));
+            }
+            final List<DiffuseStage> diffuseStages = new ArrayList<DiffuseStage>();
+            while (i < stages.size() && stages.get(i) instanceof DiffuseStage && !diffuses(diffuseStages, ((DiffuseStage) stages.get(i)).field)) {
+                diffuseStages.add((DiffuseStage) stages.get(i++));
+            }
+
+            if (fused) {
+                runFused(pointStages, diffuseStages, deltaTime, cellSizeMeter);
+            }
+            else {
+                for (AddStage stage : pointStages) {
+                    stage.prepare(deltaTime);
+                    for (int y = 0; y < fields.getH(); y++) {
+                        stage.processRow(y);
+                    }
+                }
+                for (DiffuseStage stage : diffuseStages) {
+                    stage.runUnfused(deltaTime, cellSizeMeter);
+                }
+            }
+
+            if (pointStages.isEmpty() && diffuseStages.isEmpty()) {
+                stages.get(i++).run(deltaTime, cellSizeMeter);
+            }
+        }
+    }
+
+    private void runFused(List<AddStage> pointStages, List<DiffuseStage> diffuseStages, float deltaTime, float cellSizeMeter) {
+        final int w = fields.getW();
+        final int h = fields.getH();
+
+        int maxIterations = 0;
+        for (AddStage stage : pointStages) {
+            stage.prepare(deltaTime);
+        }
+        for (DiffuseStage stage : diffuseStages) {
+            stage.prepare(deltaTime, cellSizeMeter);
+            maxIterations = Math.max(maxIterations, stage.iterations);
+        }
+
+        int totalIterations = 0;
+        for (DiffuseStage stage : diffuseStages) {
+            totalIterations += stage.iterations;
+        }
+        final int stripWidth = Math.max(4 * maxIterations, FUSED_BLOCK_BYTES / (16 * (totalIterations + 1)));
+
+        for (int x0 = 0; x0 < w; x0 += stripWidth) {
+            final int x1 = Math.min(w, x0 + stripWidth);
+
+            // Iteration k computes row time - k, after iteration k - 1 has computed the row below it.
+            // It covers iterations - k more columns on each side than the strip, as the later iterations read them.
+            for (int time = 0; time < h + maxIterations; time++) {
+                if (time < h && x0 == 0) {
+                    for (AddStage stage : pointStages) {
+                        stage.processRow(time);
+                    }
+                }
+                for (DiffuseStage stage : diffuseStages) {
+                    for (int k = 1; k <= stage.iterations; k++) {
+                        final int y = time - k;
+                        final int margin = stage.iterations - k;
+                        if (y >= 1 && y < h - 1) stage.relaxRow(k, y, Math.max(0, x0 - margin), Math.min(w, x1 + margin));
+                    }
+                }
+            }
+        }
+
+        for (AddStage stage : pointStages) {
+            stage.finish();
+        }
+        for (DiffuseStage stage : diffuseStages) {
+            stage.finish();
+        }
+    }
+
+    private static boolean diffuses(List<DiffuseStage> stages, String field) {
+        for (DiffuseStage stage : stages) {
+            if (stage.field.equals(field)) return true;
+        }
+        return false;
+    }
+
+    private String checkField(String name) {
+        fields.get(name);
+        return name;
+    }
+
+    private abstract class Stage {
+        abstract void run(float deltaTime, float cellSizeMeter);
+    }
+
+    private final class AddStage extends Stage {
+        private final String target;
+        private final String source;
+
+        private Raster targetRaster;
+        private float[] targetData;
+        private float[] sourceData;
+        private float scale;
+
+        AddStage(String target, String source) {
+            this.target = target;
+            this.source = source;
+        }
+
+        void prepare(float deltaTime) {
+            targetRaster = fields.get(target);
+            targetData = targetRaster.getData();
+            sourceData = fields.get(source).getData();
+            scale = deltaTime;
+        }
+
+        void processRow(int y) {
+            final int rowStart = targetRaster.rawIndex(0, y);
+            RasterKernels.get().add(targetData, sourceData, scale, 0, rowStart, rowStart + fields.getW());
+        }
+
+        void finish() {
+            targetRaster.markAdded(fields.get(source), 0);
+        }
+
+        @Override void run(float deltaTime, float cellSizeMeter) {
+            prepare(deltaTime);
+            for (int y = 0; y < fields.getH(); y++) {
+                processRow(y);
+            }
+            finish();
+        }
+    }
+
+    private final class DiffuseStage extends Stage {
+        private final String field;
+        private final float diffusion;
+        private final int iterations;
+        private final int b;
+
+        // Four rows of each intermediate iteration, enough to keep the rows read by the next iteration
+        private float[][][] rings;
+        private Raster scratch;
+
+        private Raster source;
+        private Raster target;
+        private float a;
+        private float divisor;
+
+        DiffuseStage(String field, float diffusion, int iterations, int b) {
+            this.field = field;
+            this.diffusion = diffusion;
+            this.iterations = iterations;
+            this.b = b;
+        }
+
+        void prepare(float deltaTime, float cellSizeMeter) {
+            source = fields.get(field);
+            target = fields.getNext(field);
+            a = Raster.diffusionRate(diffusion, deltaTime, cellSizeMeter);
+            divisor = 1 + 4 * a;
+            if (rings == null) rings = new float[iterations - 1][4][fields.getW()];
+        }
+
+        /**
+         * Computes the columns x0 (inclusive) to x1 (exclusive) of row y of iteration k, including the edge cells,
+         * from the rows around it in iteration k-1.  Also sets the top or bottom edge row of iteration k when y is next
+         * to it.
+         */
+        void relaxRow(int k, int y, int x0, int x1) {
+            final int w = fields.getW();
+            final int h = fields.getH();
+
+            final float[] out = row(k, y);
+            final int outStart = rowStart(k, y);
+            relax(out, outStart,
+                  source.getData(), source.rawIndex(0, y),
+                  row(k - 1, y - 1), rowStart(k - 1, y - 1),
+                  row(k - 1, y), rowStart(k - 1, y),
+                  row(k - 1, y + 1), rowStart(k - 1, y + 1),
+                  Math.max(1, x0), Math.min(w - 1, x1), a, divisor);
+
+            final float columnSign = b == 1 ? -1 : 1;
+            if (x0 == 0) out[outStart]         = columnSign * out[outStart + 1];
+            if (x1 == w) out[outStart + w - 1] = columnSign * out[outStart + w - 2];
+
+            if (y == 1) setEdgeRow(k, 0, 1, x0, x1);
+            if (y == h - 2) setEdgeRow(k, h - 1, h - 2, x0, x1);
+        }
+
+        private void setEdgeRow(int k, int edgeY, int innerY, int x0, int x1) {
+            final int w = fields.getW();
+            final float[] edge = row(k, edgeY);
+            final int edgeStart = rowStart(k, edgeY);
+            final float[] inner = row(k, innerY);
+            final int innerStart = rowStart(k, innerY);
+
+            final int copyStart = Math.max(1, x0);
+            RasterKernels.get().scaleCopy(edge, edgeStart + copyStart, inner, innerStart + copyStart, Math.min(w - 1, x1) - copyStart, b == 2 ? -1 : 1);
+
+            // Corners, as in Raster.setBoundaryCorners()
+            if (x0 == 0) edge[edgeStart]         = (edge[edgeStart + 1]     + inner[innerStart])         / 2f;
+            if (x1 == w) edge[edgeStart + w - 1] = (edge[edgeStart + w - 2] + inner[innerStart + w - 1]) / 2f;
+        }
+
+        void finish() {
+            target.markChanged(0, 0, fields.getW(), fields.getH());
+            fields.swap(field);
+        }
+
+        private float[] row(int k, int y) {
+            if (k == 0) return source.getData();
+            if (k == iterations) return target.getData();
+            return rings[k - 1][y & 3];
+        }
+
+        private int rowStart(int k, int y) {
+            if (k == 0 || k == iterations) return source.rawIndex(0, y);
+            return 0;
+        }
+
+        void runUnfused(float deltaTime, float cellSizeMeter) {
+            final Raster rhs = fields.get(field);
+            final Raster result = fields.getNext(field);
+            if (scratch == null && iterations > 1) scratch = fields.createScratch();
+
+            final float a = Raster.diffusionRate(diffusion, deltaTime, cellSizeMeter);
+            final float divisor = 1 + 4 * a;
+            final int w = fields.getW();
+            final int stride = rhs.getStride();
+
+            // Alternate between the scratch and result rasters so that the last iteration ends up in the result
+            Raster previous = rhs;
+            for (int k = 1; k <= iterations; k++) {
+                final Raster current = (iterations - k) % 2 == 0 ? result : scratch;
+                final float[] previousData = previous.getData();
+                for (int y = 1; y < fields.getH() - 1; y++) {
+                    final int rowStart = rhs.rawIndex(0, y);
+                    relax(current.getData(), rowStart,
+                          rhs.getData(), rowStart,
+                          previousData, rowStart - stride,
+                          previousData, rowStart,
+                          previousData, rowStart + stride,
+                          1, w - 1, a, divisor);
+                }
+                current.setBoundaries(b);
+                previous = current;
+            }
+            result.markChanged(0, 0, fields.getW(), fields.getH());
+
+            fields.swap(field);
+        }
+
+        @Override void run(float deltaTime, float cellSizeMeter) {
+            runUnfused(deltaTime, cellSizeMeter);
+        }
+    }
+
+    /**
+     * Computes the cells x0 (inclusive) to x1 (exclusive) of a row of a Jacobi iteration of the implicit diffusion
+     * equation, from the right hand side row and the rows above, at and below it in the previous iteration.
+     */
+    private static void relax(float[] out, int outStart,
+                              float[] rhs, int rhsStart,
+                              float[] up, int upStart,
+                              float[] middle, int middleStart,
+                              float[] down, int downStart,
+                              int x0, int x1, float a, float divisor) {
+        for (int x = x0; x < x1; x++) {
+            out[outStart + x] = (rhs[rhsStart + x] +
+                                 a * (middle[middleStart + x + 1] +
+                                      middle[middleStart + x - 1] +
+                                      down[downStart + x] +
+                                      up[upStart + x]))
+                                / divisor;
+        }
+    }
+
+    private final class AdvectStage extends Stage {
+        private final String[] fieldNames;
+        private final String xVelocity;
+        private final String yVelocity;
+        private final int b;
+
+        AdvectStage(String[] fieldNames, String xVelocity, String yVelocity, int b) {
+            this.fieldNames = fieldNames;
+            this.xVelocity = xVelocity;
+            this.yVelocity = yVelocity;
+            this.b = b;
+        }
+
+        @Override void run(float deltaTime, float cellSizeMeter) {
+            final Raster xVel = fields.get(xVelocity);
+            final Raster yVel = fields.get(yVelocity);
+            if (advector != null) {
+                final Raster[] targets = new Raster[fieldNames.length];
+                final Raster[] sources = new Raster[fieldNames.length];
+                final int[] boundaries = new int[fieldNames.length];
+                for (int k = 0; k < fieldNames.length; k++) {
+                    targets[k] = fields.getNext(fieldNames[k]);
+                    sources[k] = fields.get(fieldNames[k]);
+                    boundaries[k] = b;
+                }
+                advector.advect(targets, boundaries, sources, xVel, yVel, deltaTime, cellSizeMeter);
+            }
+            else {
+                for (String field : fieldNames) {
+                    fields.getNext(field).advect(b, fields.get(field), xVel, yVel, deltaTime, cellSizeMeter);
+                }
+            }
+            for (String field : fieldNames) {
+                fields.swap(field);
+            }
+        }
+    }
+
+    private final class AdvectVelocityStage extends Stage {
+        private final String xVelocity;
+        private final String yVelocity;
+
+        AdvectVelocityStage(String xVelocity, String yVelocity) {
+            this.xVelocity = xVelocity;
+            this.yVelocity = yVelocity;
+        }
+
+        @Override void run(float deltaTime, float cellSizeMeter) {
+            final Raster xVel = fields.get(xVelocity);
+            final Raster yVel = fields.get(yVelocity);
+            if (advector != null) {
+                advector.advect(new Raster[]{fields.getNext(xVelocity), fields.getNext(yVelocity)}, new int[]{1, 2},
+                                new Raster[]{xVel, yVel}, xVel, yVel, deltaTime, cellSizeMeter);
+            }
+            else {
+                fields.getNext(xVelocity).advect(1, xVel, xVel, yVel, deltaTime, cellSizeMeter);
+                fields.getNext(yVelocity).advect(2, yVel, xVel, yVel, deltaTime, cellSizeMeter);
+            }
+            fields.swap(xVelocity);
+            fields.swap(yVelocity);
+        }
+    }
+
+    private final class ProjectStage extends Stage {
+        private final String xVelocity;
+        private final String yVelocity;
+        private final PressureSolver pressureSolver;
+        private final Raster pressure = fields.createScratch();
+        private final Raster divergence = fields.createScratch();
+
+        ProjectStage(String xVelocity, String yVelocity, PressureSolver pressureSolver) {
+            this.xVelocity = xVelocity;
+            this.yVelocity = yVelocity;
+            this.pressureSolver = pressureSolver;
+        }
+
+        @Override void run(float deltaTime, float cellSizeMeter) {
+            Raster.project(fields.get(xVelocity), fields.get(yVelocity), pressure, divergence, cellSizeMeter, pressureSolver);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Named rasters of the same size holding the state of a simulation.
+ *
+ * Each field has a current raster and a next raster.  Operations that can not work in place write their result into
+ * the next raster and swap the two, so callers only refer to fields by name and always read the current raster.
+ */
+public final class FieldSet {
+
+    private final int w;
+    private final int h;
+    private final EdgeMode edgeMode;
+    private final int halo;
+
+    // Current and next raster of each field
+    private final Map<String, Raster[]> fields = new LinkedHashMap<String, Raster[]>();
+
+    public FieldSet(int w, int h, EdgeMode edgeMode) {
+        this(w, h, edgeMode, Raster.DEFAULT_HALO);
+    }
+
+    /**
+     * @param halo number of ghost cells around the rasters of the fields.
+     */
+    public FieldSet(int w, int h, EdgeMode edgeMode, int halo) {
+        Check.positive(w, "w");
+        Check.positive(h, "h");
+        Check.notNull(edgeMode, "edgeMode");
+        Check.positiveOrZero(halo, "halo");
+
+        this.w = w;
+        this.h = h;
+        this.edgeMode = edgeMode;
+        this.halo = halo;
+    }
+
+    /**
+     * Adds a field with all cells zero.
+     * @return the current raster of the field.
+     */
+    public Raster addField(String name) {
+        Check.notNull(name, "name");
+        if (fields.containsKey(name)) throw new IllegalArgumentException("A field named '" + name + "' already exists");
+
+        final Raster[] buffers = {createScratch(), createScratch()};
+        fields.put(name, buffers);
+        return buffers[0];
+    }
+
+    public boolean hasField(String name) {
+        return fields.containsKey(name);
+    }
+
+    /**
+     * @return the current raster of the field.
+     */
+    public Raster get(String name) {
+        return buffers(name)[0];
+    }
+
+    /**
+     * @return the raster that operations on the field write into before calling swap().
+     */
+    public Raster getNext(String name) {
+        return buffers(name)[1];
+    }
+
+    /**
+     * Makes the next raster of the field the current one, and the current one the next.
+     */
+    public void swap(String name) {
+        final Raster[] buffers = buffers(name);
+        final Raster current = buffers[0];
+        buffers[0] = buffers[1];
+        buffers[1] = current;
+    }
+
+    /**
+     * @return the names of the fields, in the order they were added.
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(fields.keySet());
+    }
+
+    /**
+     * @return the current raster of each field, by name.  The rasters change when fields are swapped.
+     */
+    public Map<String, Raster> getRasters() {
+        final Map<String, Raster> rasters = new LinkedHashMap<String, Raster>();
+        for (Map.Entry<String, Raster[]> entry : fields.entrySet()) {
+            rasters.put(entry.getKey(), entry.getValue()[0]);
+        }
+        return rasters;
+    }
+
+    /**
+     * @return a new raster with the size, edge mode and halo of the fields, that is not part of the set.
+     */
+    public Raster createScratch() {
+        return new Raster(w, h, edgeMode, halo);
+    }
+
+    public int getW() {
+        return w;
+    }
+
+    public int getH() {
+        return h;
+    }
+
+    public EdgeMode getEdgeMode() {
+        return edgeMode;
+    }
+
+    public int getHalo() {
+        return halo;
+    }
+
+    private Raster[] buffers(String name) {
+        final Raster[] buffers = fields.get(name);
+        if (buffers == null) throw new IllegalArgumentException("No field named '" + name + "'");
+        return buffers;
+    }
+}
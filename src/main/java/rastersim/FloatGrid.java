@@ -0,0 +1,38 @@
+package rastersim;
+
+/**
+ * Two dimensional grid of float values, independent of how the values are stored.
+ *
+ * Coordinates outside the grid are mapped onto it according to the edge mode.
+ */
+public interface FloatGrid {
+
+    int getW();
+
+    int getH();
+
+    EdgeMode getEdgeMode();
+
+    /**
+     * @return number of cells in the grid, which may exceed the range of an int.
+     */
+    long getCellCount();
+
+    float get(int x, int y);
+
+    float getInterpolated(float x, float y);
+
+    void set(int x, int y, float v);
+
+    void fill(float v);
+
+    /**
+     * Copies a row of the grid to the target array.
+     */
+    void readRow(int y, float[] target, int offset);
+
+    /**
+     * Copies a row of the grid from the source array.
+     */
+    void writeRow(int y, float[] source, int offset);
+}
@@ -0,0 +1,86 @@
+package rastersim;
+
+/**
+ * Compresses frames by XORing the bits of each value with the same value in the previous frame, and leaving out the
+ * high bytes of the result that are zero.  Values that change slowly differ mostly in the low mantissa bits, and
+ * unchanged values take no bytes at all.
+ *
+ * The values are coded in groups of four, each preceded by a tag byte with two bits per value: 0 if the value is
+ * unchanged, or 1, 2 or 3 if the low 2, 3 or 4 bytes of the difference follow.  Key frames are coded against zero, so
+ * they can be decoded without the previous frame.  The stored bytes are in little endian order.
+ */
+final class FrameCodec {
+
+    private FrameCodec() {
+    }
+
+    /**
+     * @return largest number of bytes the specified number of values can be coded into.
+     */
+    static int maxEncodedBytes(int count) {
+        // The encoder always writes four bytes for a value, even if it keeps fewer of them
+        return count * 4 + (count + 3) / 4 + 4;
+    }
+
+    /**
+     * Codes the values into the array, and stores their bits in previous for coding the next frame.
+     * @param previous bits of the previous frame, ignored for key frames.
+     * @param out array with room for maxEncodedBytes() of the values.
+     * @return number of bytes written to out.
+     */
+    static int encode(float[] values, int[] previous, boolean keyFrame, byte[] out) {
+        final int count = values.length;
+        int pos = 0;
+        for (int i = 0; i < count; i += 4) {
+            final int tagPosition = pos++;
+
+            int tag = 0;
+            final int n = Math.min(4, count - i);
+            for (int k = 0; k < n; k++) {
+                final int bits = Float.floatToRawIntBits(values[i + k]);
+                final int d = keyFrame ? bits : bits ^ previous[i + k];
+                previous[i + k] = bits;
+
+                // Number of low bytes stored: 0, 2, 3 or 4
+                final int code = d == 0 ? 0 : (d >>> 16) == 0 ? 1 : (d >>> 24) == 0 ? 2 : 3;
+                out[pos]     = (byte) d;
+                out[pos + 1] = (byte) (d >>> 8);
+                out[pos + 2] = (byte) (d >>> 16);
+                out[pos + 3] = (byte) (d >>> 24);
+                pos += code == 0 ? 0 : code + 1;
+                tag |= code << (2 * k);
+            }
+            out[tagPosition] = (byte) tag;
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes the values from the array, and stores their bits in previous for decoding the next frame.
+     * @param previous bits of the previous frame, ignored for key frames.
+     * @return number of bytes read from in.
+     */
+    static int decode(byte[] in, int[] previous, boolean keyFrame, float[] values) {
+        final int count = values.length;
+        int pos = 0;
+        for (int i = 0; i < count; i += 4) {
+            final int tag = in[pos++] & 0xFF;
+            final int n = Math.min(4, count - i);
+            for (int k = 0; k < n; k++) {
+                final int code = (tag >>> (2 * k)) & 3;
+                int d = 0;
+                if (code != 0) {
+                    d = (in[pos] & 0xFF) | (in[pos + 1] & 0xFF) << 8;
+                    if (code >= 2) d |= (in[pos + 2] & 0xFF) << 16;
+                    if (code == 3) d |= (in[pos + 3] & 0xFF) << 24;
+                    pos += code + 1;
+                }
+
+                final int bits = keyFrame ? d : d ^ previous[i + k];
+                previous[i + k] = bits;
+                values[i + k] = Float.intBitsToFloat(bits);
+            }
+        }
+        return pos;
+    }
+}
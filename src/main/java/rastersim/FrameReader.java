@@ -0,0 +1,123 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the frames of a file written by FrameRecorder, in order.
+ *
+ * A frame cut short at the end of the file, as left by a crash while recording, is treated as the end of the file.
+ */
+public final class FrameReader implements Closeable {
+
+    private final FileChannel channel;
+    private final int w;
+    private final int h;
+    private final EdgeMode edgeMode;
+    private final boolean compressed;
+
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(FrameRecorder.FRAME_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer payload;
+    private final float[] values;
+    private final int[] previous;
+    private boolean previousRead;
+    private long step = -1;
+
+    public FrameReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(FrameRecorder.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            RasterSnapshot.readFully(channel, header);
+
+            if (header.getInt(0) != FrameRecorder.MAGIC) throw new IOException("Not a frame recording");
+            if (header.getShort(4) != FrameRecorder.VERSION) throw new IOException("Unsupported frame recording version " + header.getShort(4));
+            if (header.get(6) < 0 || header.get(6) >= EdgeMode.values().length) throw new IOException("Unknown edge mode " + header.get(6));
+            if (header.get(7) != FrameRecorder.ENCODING_RAW && header.get(7) != FrameRecorder.ENCODING_DELTA) throw new IOException("Unknown encoding " + header.get(7));
+
+            edgeMode = EdgeMode.values()[header.get(6)];
+            compressed = header.get(7) == FrameRecorder.ENCODING_DELTA;
+            w = header.getInt(8);
+            h = header.getInt(12);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        values = new float[w * h];
+        previous = compressed ? new int[w * h] : null;
+        payload = compressed ? ByteBuffer.allocate(FrameCodec.maxEncodedBytes(w * h))
+                             : ByteBuffer.allocateDirect(4 * w * h).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getW() {
+        return w;
+    }
+
+    public int getH() {
+        return h;
+    }
+
+    public EdgeMode getEdgeMode() {
+        return edgeMode;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @return step of the frame read last, or -1 if none has been read.
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /**
+     * Reads the next frame into the target, which must have the same size as the recording.
+     * @return false if there were no more frames.
+     */
+    public boolean next(FloatGrid target) throws IOException {
+        Check.equal(target.getW(), "target width", w, "recorded width");
+        Check.equal(target.getH(), "target height", h, "recorded height");
+
+        frameHeader.clear();
+        if (!RasterSnapshot.readAvailable(channel, frameHeader)) return false;
+
+        final int size = frameHeader.getInt(8);
+        final boolean keyFrame = frameHeader.get(12) != 0;
+        if (size < 0 || size > payload.capacity()) throw new IOException("Invalid frame size " + size);
+
+        payload.clear();
+        payload.limit(size);
+        if (!RasterSnapshot.readAvailable(channel, payload)) return false;
+        payload.flip();
+
+        if (compressed) {
+            if (!keyFrame && !previousRead) throw new IOException("The recording does not start with a key frame");
+            if (FrameCodec.decode(payload.array(), previous, keyFrame, values) != size) throw new IOException("Invalid frame data");
+            previousRead = true;
+        }
+        else {
+            payload.asFloatBuffer().get(values);
+        }
+
+        for (int y = 0; y < h; y++) {
+            target.writeRow(y, values, y * w);
+        }
+        if (target instanceof Raster) ((Raster) target).updateHalo();
+
+        step = frameHeader.getLong(0);
+        return true;
+    }
+
+    @Override public void close() throws IOException {
+        channel.close();
+    }
+}
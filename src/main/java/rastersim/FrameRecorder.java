@@ -0,0 +1,249 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the frames of a raster to an append-only file, which can be read back with FrameReader.
+ *
+ * record() only copies the raster to a free frame buffer; the frames are compressed and written by a background
+ * thread.  When the writer falls behind and all frame buffers are in use, frames are dropped rather than stalling the
+ * caller, and counted in getDroppedFrames().
+ *
+ * The file starts with a header like the one of RasterSnapshot, with the encoding and the key frame interval.  Each
+ * frame follows with its step, payload size and key frame flag.  All values are little endian.
+ */
+public final class FrameRecorder implements Closeable {
+
+    /**
+     * "RREC" in little endian byte order.
+     */
+    public static final int MAGIC = 0x43455252;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 20;
+    public static final int FRAME_HEADER_BYTES = 16;
+
+    public static final int ENCODING_RAW = 0;
+    public static final int ENCODING_DELTA = 1;
+
+    public static final int DEFAULT_KEY_FRAME_INTERVAL = 60;
+    public static final int DEFAULT_BUFFER_COUNT = 8;
+
+    private static final Frame END = new Frame(null);
+
+    private final File file;
+    private final int w;
+    private final int h;
+    private final boolean compressed;
+    private final int keyFrameInterval;
+    private final FileChannel channel;
+
+    private final BlockingQueue<Frame> freeFrames;
+    private final BlockingQueue<Frame> pendingFrames;
+    private final Thread writer;
+    private final AtomicLong recordedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private volatile IOException writeError;
+    private boolean closed;
+
+    public FrameRecorder(File file, int w, int h, EdgeMode edgeMode, boolean compressed) throws IOException {
+        this(file, w, h, edgeMode, compressed, DEFAULT_KEY_FRAME_INTERVAL, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Creates the file, replacing any existing one, and starts the writer thread.
+     *
+     * @param compressed true to code the frames as differences to the previous frame with FrameCodec, false to store
+     *                   the values as they are.
+     * @param keyFrameInterval every this many frames is coded without the previous frame, so that reading can start
+     *                         there.  Ignored if not compressed.
+     * @param bufferCount number of frames that can wait to be written before frames are dropped.
+     */
+    public FrameRecorder(File file, int w, int h, EdgeMode edgeMode, boolean compressed, int keyFrameInterval, int bufferCount) throws IOException {
+        Check.notNull(file, "file");
+        Check.positive(w, "w");
+        Check.positive(h, "h");
+        Check.notNull(edgeMode, "edgeMode");
+        Check.positive(keyFrameInterval, "keyFrameInterval");
+        Check.positive(bufferCount, "bufferCount");
+
+        this.file = file;
+        this.w = w;
+        this.h = h;
+        this.compressed = compressed;
+        this.keyFrameInterval = keyFrameInterval;
+
+        freeFrames = new ArrayBlockingQueue<Frame>(bufferCount);
+        pendingFrames = new ArrayBlockingQueue<Frame>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; i++) {
+            freeFrames.add(new Frame(new float[w * h]));
+        }
+
+        channel = FileChannel.open(file.toPath(),
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putShort((short) VERSION).put((byte) edgeMode.ordinal());
+        header.put((byte) (compressed ? ENCODING_DELTA : ENCODING_RAW));
+        header.putInt(w).putInt(h).putInt(keyFrameInterval);
+        header.flip();
+        try {
+            RasterSnapshot.writeFully(channel, header);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override public void run() {
+                writeFrames();
+            }
+        }, "FrameRecorder " + file.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getW() {
+        return w;
+    }
+
+    public int getH() {
+        return h;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @return number of frames handed to the writer so far.
+     */
+    public long getRecordedFrames() {
+        return recordedFrames.get();
+    }
+
+    /**
+     * @return number of frames dropped because the writer had fallen behind.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Copies the raster and queues it for writing, without waiting for the writer.
+     *
+     * @param step step of the simulation the frame is from, stored with the frame.
+     * @return true if the frame was queued, false if it was dropped because all frame buffers were in use.
+     * @throws IOException if writing an earlier frame failed.
+     */
+    public boolean record(FloatGrid raster, long step) throws IOException {
+        if (closed) throw new IllegalStateException("The recorder has been closed");
+        Check.equal(raster.getW(), "raster width", w, "recorded width");
+        Check.equal(raster.getH(), "raster height", h, "recorded height");
+        if (writeError != null) throw writeError;
+
+        final Frame frame = freeFrames.poll();
+        if (frame == null) {
+            droppedFrames.incrementAndGet();
+            return false;
+        }
+
+        for (int y = 0; y < h; y++) {
+            raster.readRow(y, frame.values, y * w);
+        }
+        frame.step = step;
+
+        pendingFrames.add(frame);
+        recordedFrames.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Writes the queued frames, stops the writer thread and closes the file.
+     * @throws IOException if writing a frame failed.
+     */
+    @Override public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            // There is always room for the end marker, as there are more places in the queue than frames
+            pendingFrames.add(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.interrupt();
+        } finally {
+            channel.close();
+        }
+
+        if (writeError != null) throw writeError;
+    }
+
+    private void writeFrames() {
+        final ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteBuffer payload = compressed ? ByteBuffer.wrap(new byte[FrameCodec.maxEncodedBytes(w * h)])
+                                              : ByteBuffer.allocateDirect(4 * w * h).order(ByteOrder.LITTLE_ENDIAN);
+        final int[] previous = compressed ? new int[w * h] : null;
+        final ByteBuffer[] buffers = {frameHeader, payload};
+
+        long frameCount = 0;
+        try {
+            while (true) {
+                final Frame frame = pendingFrames.take();
+                if (frame == END) break;
+
+                final boolean keyFrame = !compressed || frameCount % keyFrameInterval == 0;
+                payload.clear();
+                if (compressed) {
+                    payload.limit(FrameCodec.encode(frame.values, previous, keyFrame, payload.array()));
+                }
+                else {
+                    payload.asFloatBuffer().put(frame.values);
+                }
+
+                frameHeader.clear();
+                frameHeader.putLong(frame.step).putInt(payload.remaining()).put((byte) (keyFrame ? 1 : 0));
+                frameHeader.putShort((short) 0).put((byte) 0);
+                frameHeader.flip();
+
+                // The frame buffer can be reused as soon as it has been coded
+                freeFrames.add(frame);
+
+                while (payload.hasRemaining()) {
+                    channel.write(buffers);
+                }
+                frameCount++;
+            }
+        } catch (IOException e) {
+            writeError = e;
+        } catch (InterruptedException e) {
+            // Stopped by close()
+        }
+    }
+
+    private static final class Frame {
+        final float[] values;
+        long step;
+
+        Frame(float[] values) {
+            this.values = values;
+        }
+    }
+}
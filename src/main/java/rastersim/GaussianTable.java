@@ -0,0 +1,63 @@
+package rastersim;
+
+/**
+ * Maps uniformly distributed random bits to normally distributed values, by interpolating in a table of the inverse
+ * of the normal cumulative distribution function.  The tails are cut off at about 4.2 standard deviations.
+ */
+final class GaussianTable {
+
+    private static final int INDEX_BITS = 14;
+    private static final int SIZE = 1 << INDEX_BITS;
+    private static final int FRACTION_BITS = 16;
+    private static final float FRACTION_SCALE = 1f / (1 << FRACTION_BITS);
+
+    private static final float[] QUANTILES = new float[SIZE + 1];
+    static {
+        for (int i = 0; i <= SIZE; i++) {
+            QUANTILES[i] = (float) inverseNormalCdf((i + 0.5) / (SIZE + 1));
+        }
+    }
+
+    /**
+     * @param bits random value, of which the lowest 30 bits are used.
+     * @return normally distributed value with mean 0 and standard deviation 1.
+     */
+    static float gaussian(long bits) {
+        final int index = (int) (bits >>> FRACTION_BITS) & (SIZE - 1);
+        final float fraction = (bits & ((1 << FRACTION_BITS) - 1)) * FRACTION_SCALE;
+        return QUANTILES[index] + fraction * (QUANTILES[index + 1] - QUANTILES[index]);
+    }
+
+    /**
+     * Acklam's rational approximation of the inverse normal cumulative distribution function,
+     * with a relative error below 1.2e-9.
+     */
+    private static double inverseNormalCdf(double p) {
+        final double a1 = -3.969683028665376e+01, a2 = 2.209460984245205e+02, a3 = -2.759285104469687e+02;
+        final double a4 = 1.383577518672690e+02, a5 = -3.066479806614716e+01, a6 = 2.506628277459239e+00;
+        final double b1 = -5.447609879822406e+01, b2 = 1.615858368580409e+02, b3 = -1.556989798598866e+02;
+        final double b4 = 6.680131188771972e+01, b5 = -1.328068155288572e+01;
+        final double c1 = -7.784894002430293e-03, c2 = -3.223964580411365e-01, c3 = -2.400758277161838e+00;
+        final double c4 = -2.549732539343734e+00, c5 = 4.374664141464968e+00, c6 = 2.938163982698783e+00;
+        final double d1 = 7.784695709041462e-03, d2 = 3.224671290700398e-01, d3 = 2.445134137142996e+00;
+        final double d4 = 3.754408661907416e+00;
+        final double low = 0.02425;
+
+        if (p < low) {
+            final double q = Math.sqrt(-2 * Math.log(p));
+            return (((((c1 * q + c2) * q + c3) * q + c4) * q + c5) * q + c6) / ((((d1 * q + d2) * q + d3) * q + d4) * q + 1);
+        }
+        else if (p <= 1 - low) {
+            final double q = p - 0.5;
+            final double r = q * q;
+            return (((((a1 * r + a2) * r + a3) * r + a4) * r + a5) * r + a6) * q / (((((b1 * r + b2) * r + b3) * r + b4) * r + b5) * r + 1);
+        }
+        else {
+            final double q = Math.sqrt(-2 * Math.log(1 - p));
+            return -(((((c1 * q + c2) * q + c3) * q + c4) * q + c5) * q + c6) / ((((d1 * q + d2) * q + d3) * q + d4) * q + 1);
+        }
+    }
+
+    private GaussianTable() {
+    }
+}
@@ -0,0 +1,103 @@
+package rastersim;
+
+/**
+ * Conversion between floats and IEEE 754 half precision (binary16) values stored in shorts, for Java versions without
+ * Float.floatToFloat16().
+ *
+ * Half precision values have 11 significant bits and range up to 65504.  Conversion to half precision rounds to the
+ * nearest value, ties to even, with larger values becoming infinite and smaller ones subnormal or zero.
+ *
+ * The array conversions run in RasterKernels.  The scalar kernels use toFloat() and fromFloat(), and the vector kernels
+ * convert with bit operations without tables or branches, which give the same results.
+ */
+public final class HalfFloat {
+
+    /**
+     * Largest finite half precision value.
+     */
+    public static final float MAX_VALUE = 65504f;
+
+    /**
+     * Smallest positive half precision value, which is subnormal.
+     */
+    public static final float MIN_VALUE = 0x1p-24f;
+
+    // Every half precision value as a float, so that converting to floats is a single lookup
+    static final float[] FLOATS = new float[1 << 16];
+    static {
+        for (int half = 0; half < FLOATS.length; half++) {
+            FLOATS[half] = convertToFloat(half);
+        }
+    }
+
+    /**
+     * @return the half precision value converted to a float, which is exact.
+     */
+    public static float toFloat(short half) {
+        return FLOATS[half & 0xFFFF];
+    }
+
+    /**
+     * Converts count half precision values starting at sourceStart to floats.
+     */
+    public static void toFloats(short[] source, int sourceStart, float[] target, int targetStart, int count) {
+        RasterKernels.get().halfToFloat(target, targetStart, source, sourceStart, count);
+    }
+
+    /**
+     * @return the float rounded to the nearest half precision value.
+     */
+    public static short fromFloat(float value) {
+        final int bits = Float.floatToRawIntBits(value);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int abs = bits & 0x7FFFFFFF;
+
+        if (abs >= 0x47800000) {
+            // Too large for a half, or infinite or NaN, keeping NaNs quiet
+            if (abs > 0x7F800000) return (short) (sign | 0x7E00 | (abs >>> 13) & 0x3FF);
+            return (short) (sign | 0x7C00);
+        }
+        if (abs >= 0x38800000) {
+            // Normal half: rebias the exponent and round away the 13 lowest mantissa bits, a carry may make it infinite
+            final int rebiased = abs - 0x38000000;
+            return (short) (sign | (rebiased + 0xFFF + ((rebiased >>> 13) & 1)) >>> 13);
+        }
+        if (abs < 0x33000000) {
+            // Half of the smallest subnormal or less rounds to zero
+            return (short) sign;
+        }
+
+        // Subnormal half, rounding the shifted out bits
+        final int shift = 126 - (abs >>> 23);
+        final int mantissa = (abs & 0x7FFFFF) | 0x800000;
+        int result = mantissa >>> shift;
+        final int remainder = mantissa & ((1 << shift) - 1);
+        final int halfway = 1 << (shift - 1);
+        if (remainder > halfway || (remainder == halfway && (result & 1) != 0)) result++;
+        return (short) (sign | result);
+    }
+
+    /**
+     * Converts count floats starting at sourceStart to half precision values.
+     */
+    public static void fromFloats(float[] source, int sourceStart, short[] target, int targetStart, int count) {
+        RasterKernels.get().floatToHalf(target, targetStart, source, sourceStart, count);
+    }
+
+    private static float convertToFloat(int half) {
+        final int sign = (half & 0x8000) << 16;
+        final int exponent = (half >>> 10) & 0x1F;
+        final int mantissa = half & 0x3FF;
+
+        if (exponent == 0) {
+            // Zero or subnormal, which is exactly representable as a float
+            final float magnitude = mantissa * MIN_VALUE;
+            return sign != 0 ? -magnitude : magnitude;
+        }
+        if (exponent == 31) return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
+    private HalfFloat() {
+    }
+}
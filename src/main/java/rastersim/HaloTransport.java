@@ -0,0 +1,34 @@
+package rastersim;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Carries the halo rows between the workers of a distributed simulation, each identified by its rank.
+ *
+ * Messages between two workers arrive in the order they were sent.
+ */
+public interface HaloTransport extends Closeable {
+
+    /**
+     * @return rank of this worker, from 0 until getSize().
+     */
+    int getRank();
+
+    /**
+     * @return number of workers.
+     */
+    int getSize();
+
+    /**
+     * Sends the values to the worker with the specified rank, without waiting for it to receive them.
+     * The values are copied, so the array can be modified after the call returns.
+     */
+    void send(int rank, float[] values, int offset, int length) throws IOException;
+
+    /**
+     * Receives the next values sent by the worker with the specified rank, waiting until they arrive.
+     * @param length number of values expected, must match the length they were sent with.
+     */
+    void receive(int rank, float[] values, int offset, int length) throws IOException;
+}
@@ -0,0 +1,153 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Steps a simulation as fast as possible in the calling thread, without creating any user interface.
+ * Runs for a number of steps or an amount of simulated time, optionally dumping the rasters of the simulation,
+ * recording frames of a raster and saving checkpoints at regular intervals.
+ */
+public final class HeadlessRunner {
+
+    private final Simulation simulation;
+
+    private double timeStep = 0.02;
+    private long maxSteps = 0;
+    private double maxSimulatedSeconds = 0;
+    private long dumpInterval = 0;
+    private RasterDumper dumper;
+    private FrameRecorder recorder;
+    private String recordedRaster;
+    private long checkpointInterval = 0;
+    private File checkpointFile;
+
+    private long steps;
+    private double simulationTime;
+    private double elapsedSeconds;
+
+    public HeadlessRunner(Simulation simulation) {
+        Check.notNull(simulation, "simulation");
+        this.simulation = simulation;
+    }
+
+    public double getTimeStep() {
+        return timeStep;
+    }
+
+    public void setTimeStep(double timeStep) {
+        Check.positive(timeStep, "timeStep");
+        this.timeStep = timeStep;
+    }
+
+    /**
+     * @param maxSteps number of steps to run, or 0 for no limit.
+     */
+    public void setMaxSteps(long maxSteps) {
+        Check.positiveOrZero(maxSteps, "maxSteps");
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * @param maxSimulatedSeconds amount of simulated time to run, or 0 for no limit.
+     */
+    public void setMaxSimulatedSeconds(double maxSimulatedSeconds) {
+        Check.positiveOrZero(maxSimulatedSeconds, "maxSimulatedSeconds");
+        this.maxSimulatedSeconds = maxSimulatedSeconds;
+    }
+
+    /**
+     * @param dumpInterval number of steps between dumping the rasters of the simulation, or 0 to not dump them.
+     * @param dumper used to write the rasters.
+     */
+    public void setDumping(long dumpInterval, RasterDumper dumper) {
+        Check.positiveOrZero(dumpInterval, "dumpInterval");
+        this.dumpInterval = dumpInterval;
+        this.dumper = dumper;
+    }
+
+    /**
+     * @param recordedRaster name of the raster to record after each step.
+     * @param recorder used to record the raster, or null to not record.  Not closed by the runner.
+     */
+    public void setRecording(String recordedRaster, FrameRecorder recorder) {
+        if (recorder != null) Check.notNull(recordedRaster, "recordedRaster");
+        this.recordedRaster = recordedRaster;
+        this.recorder = recorder;
+    }
+
+    /**
+     * @param checkpointInterval number of steps between saving checkpoints, or 0 to not save them.
+     * @param checkpointFile file to save the checkpoints to, replacing the previous one.
+     */
+    public void setCheckpointing(long checkpointInterval, File checkpointFile) {
+        Check.positiveOrZero(checkpointInterval, "checkpointInterval");
+        if (checkpointInterval > 0) Check.notNull(checkpointFile, "checkpointFile");
+        this.checkpointInterval = checkpointInterval;
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Restores the simulation from a checkpoint, continuing from the simulation time it was saved at.
+     * The step and time limits still count from the start of the run.
+     */
+    public void restore(File checkpointFile) throws IOException {
+        simulationTime = Checkpoint.restore(simulation, checkpointFile);
+    }
+
+    /**
+     * Runs the simulation until the step or time limit is reached.
+     */
+    public void run() throws IOException {
+        if (maxSteps <= 0 && maxSimulatedSeconds <= 0) throw new IllegalStateException("No step or time limit set, the run would never end");
+
+        if (recorder != null && !simulation.getRasters().containsKey(recordedRaster)) throw new IllegalStateException("The simulation has no raster named " + recordedRaster);
+
+        final long startTime = System.nanoTime();
+        final double startSimulationTime = simulationTime;
+
+        while ((maxSteps <= 0 || steps < maxSteps) &&
+               (maxSimulatedSeconds <= 0 || simulationTime - startSimulationTime < maxSimulatedSeconds)) {
+            final long updateStartTime = Instrumentation.start();
+            simulation.update(simulationTime, timeStep);
+            Instrumentation.stop(Instrumentation.UPDATE, updateStartTime);
+
+            steps++;
+            simulationTime += timeStep;
+
+            if (dumpInterval > 0 && steps % dumpInterval == 0) dump();
+            if (recorder != null) recorder.record(simulation.getRasters().get(recordedRaster), steps);
+            if (checkpointInterval > 0 && steps % checkpointInterval == 0) Checkpoint.save(simulation, simulationTime, checkpointFile);
+        }
+
+        elapsedSeconds = (System.nanoTime() - startTime) * 1e-9;
+    }
+
+    private void dump() throws IOException {
+        for (Map.Entry<String, Raster> entry : simulation.getRasters().entrySet()) {
+            dumper.dump(entry.getValue(), entry.getKey(), steps);
+        }
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public double getSimulationTime() {
+        return simulationTime;
+    }
+
+    /**
+     * @return wall clock time used by the last run.
+     */
+    public double getElapsedSeconds() {
+        return elapsedSeconds;
+    }
+
+    public double getStepsPerSecond() {
+        return elapsedSeconds > 0 ? steps / elapsedSeconds : 0;
+    }
+}
@@ -0,0 +1,177 @@
+package rastersim;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timings and counters for the phases of the simulations, collected when enabled.
+ *
+ * Instrumented code calls start() before a phase and stop() after it.  When disabled, start() returns 0 without reading
+ * the clock and stop() ignores it, so the cost is a flag check per phase, not per cell.  Enabled with setEnabled() or
+ * the system property rastersim.instrumentation=true.
+ */
+public final class Instrumentation {
+
+    public static final String MBEAN_NAME = "rastersim:type=Instrumentation";
+
+    private static final Map<String, LatencyHistogram> timings = new LinkedHashMap<String, LatencyHistogram>();
+    private static final Map<String, AtomicLong> counters = new LinkedHashMap<String, AtomicLong>();
+
+    public static final LatencyHistogram UPDATE = timing("update");
+    public static final LatencyHistogram RENDER = timing("render");
+    public static final LatencyHistogram DIFFUSE = timing("diffuse");
+    public static final LatencyHistogram ADVECT = timing("advect");
+    public static final LatencyHistogram PROJECT = timing("project");
+
+    public static final AtomicLong DROPPED_STEPS = counter("droppedSteps");
+    public static final AtomicLong MERGED_STEPS = counter("mergedSteps");
+
+    private static volatile boolean enabled = Boolean.getBoolean("rastersim.instrumentation");
+
+    private Instrumentation() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Instrumentation.enabled = enabled;
+    }
+
+    /**
+     * @return the timing with the specified name, created if it does not exist yet.
+     */
+    public static LatencyHistogram timing(String name) {
+        synchronized (timings) {
+            LatencyHistogram timing = timings.get(name);
+            if (timing == null) {
+                timing = new LatencyHistogram(name);
+                timings.put(name, timing);
+            }
+            return timing;
+        }
+    }
+
+    /**
+     * @return the counter with the specified name, created if it does not exist yet.
+     */
+    public static AtomicLong counter(String name) {
+        synchronized (counters) {
+            AtomicLong counter = counters.get(name);
+            if (counter == null) {
+                counter = new AtomicLong();
+                counters.put(name, counter);
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * @return the timings by name, in the order they were created.
+     */
+    public static Map<String, LatencyHistogram> getTimings() {
+        synchronized (timings) {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, LatencyHistogram>(timings));
+        }
+    }
+
+    /**
+     * @return the counters by name, in the order they were created.
+     */
+    public static Map<String, AtomicLong> getCounters() {
+        synchronized (counters) {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, AtomicLong>(counters));
+        }
+    }
+
+    /**
+     * @return start time of a phase to pass to stop(), or 0 if disabled.
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records the time since the start of a phase, if it was started while enabled.
+     */
+    public static void stop(LatencyHistogram timing, long startTime) {
+        if (startTime != 0L) timing.record(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Records an already measured duration, if enabled.
+     */
+    public static void record(LatencyHistogram timing, long nanos) {
+        if (enabled) timing.record(nanos);
+    }
+
+    /**
+     * Adds to a counter, if enabled.
+     */
+    public static void count(AtomicLong counter, long amount) {
+        if (enabled) counter.addAndGet(amount);
+    }
+
+    /**
+     * Clears all timings and counters.
+     */
+    public static void reset() {
+        for (LatencyHistogram timing : getTimings().values()) {
+            timing.reset();
+        }
+        for (AtomicLong counter : getCounters().values()) {
+            counter.set(0);
+        }
+    }
+
+    /**
+     * Registers an InstrumentationMXBean under MBEAN_NAME with the platform MBean server, if not already registered,
+     * so that the timings can be viewed with JConsole or other JMX clients.
+     */
+    public static synchronized void registerMBean() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(MBEAN_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(new InstrumentationMXBeanImpl(), name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the instrumentation MBean: " + e.getMessage(), e);
+        }
+    }
+
+    private static final class InstrumentationMXBeanImpl implements InstrumentationMXBean {
+        @Override public boolean isEnabled() {
+            return Instrumentation.isEnabled();
+        }
+
+        @Override public void setEnabled(boolean enabled) {
+            Instrumentation.setEnabled(enabled);
+        }
+
+        @Override public Map<String, TimingStatistics> getTimings() {
+            final Map<String, TimingStatistics> statistics = new LinkedHashMap<String, TimingStatistics>();
+            for (Map.Entry<String, LatencyHistogram> entry : Instrumentation.getTimings().entrySet()) {
+                statistics.put(entry.getKey(), new TimingStatistics(entry.getValue()));
+            }
+            return statistics;
+        }
+
+        @Override public Map<String, Long> getCounters() {
+            final Map<String, Long> values = new LinkedHashMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> entry : Instrumentation.getCounters().entrySet()) {
+                values.put(entry.getKey(), entry.getValue().get());
+            }
+            return values;
+        }
+
+        @Override public void reset() {
+            Instrumentation.reset();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package rastersim;
+
+import java.util.Map;
+
+/**
+ * JMX view of the Instrumentation timings and counters.
+ */
+public interface InstrumentationMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return statistics of each timing, by name.
+     */
+    Map<String, TimingStatistics> getTimings();
+
+    /**
+     * @return value of each counter, by name.
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * Clears all timings and counters.
+     */
+    void reset();
+}
@@ -0,0 +1,84 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Draws the instrumentation timings and counters as text onto a raster with a PixelFont, to watch them in a running
+ * simulation.  Draws nothing while the instrumentation is disabled.
+ *
+ * The text is only updated a couple of times per second, so that it can be read and its rendering stays cached.
+ */
+public final class InstrumentationOverlay {
+
+    private static final long REFRESH_INTERVAL_NANOS = 500000000L;
+
+    private final PixelFont font;
+    private int x = 2;
+    private int y = 2;
+    private int fontSize = 1;
+    private float intensity = 1f;
+
+    private String text = "";
+    private long lastRefreshTime;
+
+    public InstrumentationOverlay(PixelFont font) {
+        Check.notNull(font, "font");
+        this.font = font;
+    }
+
+    /**
+     * @param x position of the top left corner of the text on the raster.
+     * @param y position of the top left corner of the text on the raster.
+     */
+    public void setPosition(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
+
+    public void setFontSize(int fontSize) {
+        Check.positive(fontSize, "fontSize");
+        this.fontSize = fontSize;
+    }
+
+    /**
+     * @param intensity value the text is drawn with.
+     */
+    public void setIntensity(float intensity) {
+        this.intensity = intensity;
+    }
+
+    public void draw(Raster raster) {
+        if (!Instrumentation.isEnabled()) return;
+
+        final long now = System.nanoTime();
+        if (lastRefreshTime == 0 || now - lastRefreshTime >= REFRESH_INTERVAL_NANOS) {
+            text = describe();
+            lastRefreshTime = now;
+        }
+
+        font.drawString(raster, x, y, text, fontSize, intensity, 0);
+    }
+
+    /**
+     * @return one line for each timing and counter that has recorded something.
+     */
+    public static String describe() {
+        final StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> entry : Instrumentation.getTimings().entrySet()) {
+            final LatencyHistogram timing = entry.getValue();
+            if (timing.getCount() > 0) {
+                text.append(String.format("%s %.2f p99 %.2f ms\n",
+                                          entry.getKey(),
+                                          timing.getMean() * 1e-6,
+                                          timing.getPercentile(99) * 1e-6));
+            }
+        }
+        for (Map.Entry<String, AtomicLong> entry : Instrumentation.getCounters().entrySet()) {
+            if (entry.getValue().get() > 0) text.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        return text.toString();
+    }
+}
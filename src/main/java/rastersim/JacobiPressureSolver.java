@@ -0,0 +1,76 @@
+package rastersim;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Solves the pressure equation with Jacobi iterations.
+ * Converges slowly, but every cell of an iteration is independent, so the rows can be processed in parallel.
+ */
+public final class JacobiPressureSolver extends PressureSolverBase {
+
+    private final StencilEngine engine;
+
+    private Raster scratch;
+
+    public JacobiPressureSolver() {
+        this(DEFAULT_TOLERANCE, 1000);
+    }
+
+    public JacobiPressureSolver(float tolerance, int maxIterations) {
+        this(tolerance, maxIterations, null);
+    }
+
+    /**
+     * @param engine engine used to process the rows in parallel, or null to process them in the calling thread.
+     */
+    public JacobiPressureSolver(float tolerance, int maxIterations, StencilEngine engine) {
+        super(tolerance, maxIterations);
+        this.engine = engine;
+    }
+
+    @Override public int solve(Raster p, Raster div) {
+        p.checkSizeMatches(div);
+
+        if (scratch == null || scratch.getW() != p.getW() || scratch.getH() != p.getH() || scratch.getHalo() != p.getHalo()) {
+            scratch = new Raster(p.getW(), p.getH(), p.getEdgeMode(), p.getHalo());
+        }
+
+        Raster current = p;
+        Raster next = scratch;
+        int iteration = 0;
+        float residual = Float.POSITIVE_INFINITY;
+        while (iteration < getMaxIterations()) {
+            residual = relax(next, current, div);
+            if (residual <= getTolerance()) break;
+
+            next.setBoundaries(0);
+            iteration++;
+
+            Raster t = current;
+            current = next;
+            next = t;
+        }
+
+        if (current != p) p.copyFrom(current);
+        else p.markChanged(0, 0, p.getW(), p.getH());
+
+        setResidual(residual);
+        return iteration;
+    }
+
+    private float relax(final Raster target, final Raster previous, final Raster div) {
+        if (engine == null) {
+            return target.relaxJacobiRows(previous, div, 1, 4, 1, target.getH() - 1);
+        }
+        else {
+            final AtomicInteger maxResidualBits = new AtomicInteger();
+            engine.forEachBand(1, target.getH() - 1, target.getW(), new StencilEngine.BandTask() {
+                @Override public void processRows(int y0, int y1) {
+                    final float residual = target.relaxJacobiRows(previous, div, 1, 4, y0, y1);
+                    StencilEngine.accumulateMax(maxResidualBits, residual);
+                }
+            });
+            return Float.intBitsToFloat(maxResidualBits.get());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * HaloTransport between workers running on threads of the same JVM, for testing distributed simulations locally.
+ */
+public final class LocalHaloTransport implements HaloTransport {
+
+    private final int rank;
+    private final int size;
+
+    // Queue of messages from each worker to each worker, indexed by sender * size + receiver
+    private final List<BlockingQueue<float[]>> queues;
+
+    private LocalHaloTransport(int rank, int size, List<BlockingQueue<float[]>> queues) {
+        this.rank = rank;
+        this.size = size;
+        this.queues = queues;
+    }
+
+    /**
+     * @return connected transports for the specified number of workers, indexed by rank.
+     */
+    public static LocalHaloTransport[] createGroup(int size) {
+        Check.positive(size, "size");
+
+        final List<BlockingQueue<float[]>> queues = new ArrayList<BlockingQueue<float[]>>(size * size);
+        for (int i = 0; i < size * size; i++) {
+            queues.add(new LinkedBlockingQueue<float[]>());
+        }
+
+        final LocalHaloTransport[] group = new LocalHaloTransport[size];
+        for (int rank = 0; rank < size; rank++) {
+            group[rank] = new LocalHaloTransport(rank, size, queues);
+        }
+        return group;
+    }
+
+    @Override public int getRank() {
+        return rank;
+    }
+
+    @Override public int getSize() {
+        return size;
+    }
+
+    @Override public void send(int rank, float[] values, int offset, int length) throws IOException {
+        queues.get(this.rank * size + rank).add(Arrays.copyOfRange(values, offset, offset + length));
+    }
+
+    @Override public void receive(int rank, float[] values, int offset, int length) throws IOException {
+        final float[] message;
+        try {
+            message = queues.get(rank * size + this.rank).take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for halo rows from worker " + rank);
+        }
+
+        if (message.length != length) throw new IOException("Expected " + length + " values from worker " + rank + ", but received " + message.length);
+        System.arraycopy(message, 0, values, offset, length);
+    }
+
+    @Override public void close() {
+    }
+}
@@ -3,17 +3,186 @@ package rastersim;
 
 import org.flowutils.SimpleFrame;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
 /**
+ * Runs the simulation in a window, or headless with the --headless option.
+ *
+ * Headless options:
+ *   --steps N              number of steps to run
+ *   --seconds S            amount of simulated time to run
+ *   --size W H             size of the simulated raster
+ *   --dump-every N         dump the rasters every N steps
+ *   --dump-dir DIR         directory to dump the rasters to, defaults to "dump"
+ *   --record FILE          record the frames of the first raster to a file, readable with FrameReader
+ *   --record-compressed    code the recorded frames as differences to the previous frame
+ *   --checkpoint-every N   save a checkpoint every N steps
+ *   --checkpoint FILE      file to save the checkpoints to, defaults to "checkpoint.bin"
+ *   --restore FILE         continue from a checkpoint
+ *
+ * Ensemble options, running the simulation headless once for every combination of parameter values:
+ *   --ensemble NAME=V,...  values of a parameter to run, seed or cooldown, can be repeated
+ *   --ensemble-dir DIR     directory to write the summary and snapshots to, defaults to "ensemble"
+ *   --snapshot-every N     save snapshots of each run every N steps, by default only after the last step
+ *   --threads N            number of threads, defaults to the number of processors
  *
+ * Other options:
+ *   --font FILE            font for the scrolling text, defaults to "assets/font.png"
+ *   --instrument           collect timings, print them when headless, show them on the raster when windowed,
+ *                          and make them available through JMX
  */
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        boolean headless = false;
+        long steps = 0;
+        double seconds = 0;
+        int width = 200;
+        int height = 160;
+        long dumpInterval = 0;
+        File dumpDirectory = new File("dump");
+        File recordFile = null;
+        boolean recordCompressed = false;
+        long checkpointInterval = 0;
+        File checkpointFile = new File("checkpoint.bin");
+        File restoreFile = null;
+        boolean instrument = false;
+        final ParameterGrid ensemble = new ParameterGrid();
+        File ensembleDirectory = new File("ensemble");
+        long snapshotInterval = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File fontFile = RandomSimulation.DEFAULT_FONT_FILE;
+
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("--headless")) headless = true;
+            else if (arg.equals("--steps")) steps = Long.parseLong(args[++i]);
+            else if (arg.equals("--seconds")) seconds = Double.parseDouble(args[++i]);
+            else if (arg.equals("--size")) {
+                width = Integer.parseInt(args[++i]);
+                height = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("--dump-every")) dumpInterval = Long.parseLong(args[++i]);
+            else if (arg.equals("--dump-dir")) dumpDirectory = new File(args[++i]);
+            else if (arg.equals("--record")) recordFile = new File(args[++i]);
+            else if (arg.equals("--record-compressed")) recordCompressed = true;
+            else if (arg.equals("--checkpoint-every")) checkpointInterval = Long.parseLong(args[++i]);
+            else if (arg.equals("--checkpoint")) checkpointFile = new File(args[++i]);
+            else if (arg.equals("--restore")) restoreFile = new File(args[++i]);
+            else if (arg.equals("--instrument")) instrument = true;
+            else if (arg.equals("--font")) fontFile = new File(args[++i]);
+            else if (arg.equals("--ensemble")) addEnsembleParameter(ensemble, args[++i]);
+            else if (arg.equals("--ensemble-dir")) ensembleDirectory = new File(args[++i]);
+            else if (arg.equals("--snapshot-every")) snapshotInterval = Long.parseLong(args[++i]);
+            else if (arg.equals("--threads")) threads = Integer.parseInt(args[++i]);
+            else throw new IllegalArgumentException("Unknown argument " + arg);
+        }
+
+        if (instrument) {
+            Instrumentation.setEnabled(true);
+            Instrumentation.registerMBean();
+        }
+
+        // Loaded once, and shared by all the simulations
+        final PixelFont font = new PixelFont(fontFile);
+
+        if (!ensemble.getNames().isEmpty()) {
+            runEnsemble(ensemble, width, height, steps > 0 ? steps : 1000, snapshotInterval, threads, ensembleDirectory, font);
+            if (instrument) System.out.print(InstrumentationOverlay.describe());
+            return;
+        }
 
         // Create simulation
-        RandomSimulation simulation = new RandomSimulation();
+        RandomSimulation simulation = new RandomSimulation(width, height, System.nanoTime(), new XoroshiroNoise(), StencilEngine.getShared(), null, font);
+
+        if (headless) {
+            if (steps <= 0 && seconds <= 0) steps = 1000;
+            final HeadlessRunner runner = new HeadlessRunner(simulation);
+            runner.setMaxSteps(steps);
+            runner.setMaxSimulatedSeconds(seconds);
+            runner.setDumping(dumpInterval, new RasterDumper(dumpDirectory));
+            runner.setCheckpointing(checkpointInterval, checkpointFile);
+            if (restoreFile != null) runner.restore(restoreFile);
+
+            if (recordFile != null) {
+                final Map.Entry<String, Raster> recorded = simulation.getRasters().entrySet().iterator().next();
+                final Raster raster = recorded.getValue();
+                try (FrameRecorder recorder = new FrameRecorder(recordFile, raster.getW(), raster.getH(), raster.getEdgeMode(), recordCompressed)) {
+                    runner.setRecording(recorded.getKey(), recorder);
+                    runHeadless(runner);
+                    System.out.printf("Recorded %d frames, dropped %d%n", recorder.getRecordedFrames(), recorder.getDroppedFrames());
+                }
+            }
+            else {
+                runHeadless(runner);
+            }
+
+            if (instrument) System.out.print(InstrumentationOverlay.describe());
+        }
+        else {
+            simulation.setOverlayShown(instrument);
+            runWindowed(simulation);
+        }
+    }
+
+    private static void runHeadless(HeadlessRunner runner) throws IOException {
+        runner.run();
+
+        System.out.printf("Ran %d steps (%.2f simulated seconds) in %.2f seconds, %.1f steps/second%n",
+                          runner.getSteps(),
+                          runner.getSimulationTime(),
+                          runner.getElapsedSeconds(),
+                          runner.getStepsPerSecond());
+    }
+
+    private static void addEnsembleParameter(ParameterGrid ensemble, String definition) {
+        final int separator = definition.indexOf('=');
+        if (separator <= 0) throw new IllegalArgumentException("Expected NAME=VALUE,VALUE,... but got " + definition);
+
+        final String name = definition.substring(0, separator);
+        if (!name.equals("seed") && !name.equals("cooldown")) throw new IllegalArgumentException("Unknown ensemble parameter " + name);
+
+        final String[] parts = definition.substring(separator + 1).split(",");
+        final double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Double.parseDouble(parts[i]);
+        }
+        ensemble.addParameter(name, values);
+    }
+
+    private static void runEnsemble(ParameterGrid ensemble, final int width, final int height, long steps, long snapshotInterval, int threads, File directory, final PixelFont font) throws IOException {
+        final EnsembleRunner runner = new EnsembleRunner(ensemble, new SimulationFactory() {
+            @Override public Simulation create(Map<String, Double> parameters, RasterPool rasters, StencilEngine engine) {
+                final Double seed = parameters.get("seed");
+                final Double cooldown = parameters.get("cooldown");
+                final RandomSimulation simulation = new RandomSimulation(width, height,
+                                                                         seed != null ? seed.longValue() : 0,
+                                                                         new XoroshiroNoise(),
+                                                                         engine,
+                                                                         rasters,
+                                                                         font);
+                if (cooldown != null) simulation.setCooldownRate(cooldown.floatValue());
+                return simulation;
+            }
+        });
+        runner.setParallelism(threads);
+        runner.setMaxSteps(steps);
+        runner.setSnapshotInterval(snapshotInterval);
+        runner.setOutputDirectory(directory);
+        runner.run();
+
+        System.out.printf("Ran %d simulations of %d steps in %.2f seconds, %.1f steps/second, allocated %d rasters%n",
+                          ensemble.getRunCount(),
+                          steps,
+                          runner.getElapsedSeconds(),
+                          runner.getStepsPerSecond(),
+                          runner.getRasterPool().getCreatedRasters());
+    }
 
+    private static void runWindowed(Simulation simulation) {
         // Start simulator
-        new Simulator(simulation);
+        new Simulator(simulation).start();
 
         // Open frame showing simulated thing
         new SimpleFrame("Simulatator", simulation.getUI());
@@ -0,0 +1,369 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static org.flowutils.Maths.*;
+
+/**
+ * Raster stored outside the Java heap, in direct buffers or in a memory mapped file, for grids too large for a float
+ * array or for the heap.
+ *
+ * The cells are stored in square tiles of TILE_SIZE x TILE_SIZE cells, row by row within each tile, so that a stencil
+ * working on one tile touches a few contiguous pages.  When backed by a file, the operating system pages the tiles in
+ * and out as needed, and the values remain in the file for the next run.
+ *
+ * Large sweeps are best done one tile at a time with processTiles(), which lets the ordinary Raster operations work on
+ * a heap copy of each tile.
+ */
+public final class MappedRaster implements FloatGrid {
+
+    public static final int TILE_SHIFT = 6;
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    private static final int TILE_CELLS_SHIFT = 2 * TILE_SHIFT;
+    private static final long TILE_BYTES = 4L << TILE_CELLS_SHIFT;
+
+    // A buffer holds at most 2 GiB, so the tiles are split into chunks of 1 GiB
+    private static final int CHUNK_TILES_SHIFT = 16;
+    private static final long CHUNK_TILES_MASK = (1L << CHUNK_TILES_SHIFT) - 1;
+    private static final int CHUNK_CELLS_SHIFT = CHUNK_TILES_SHIFT + TILE_CELLS_SHIFT;
+    private static final long CHUNK_CELLS_MASK = (1L << CHUNK_CELLS_SHIFT) - 1;
+
+    private final int w;
+    private final int h;
+    private final EdgeMode edgeMode;
+    private final int tilesX;
+    private final int tilesY;
+    private final File file;
+
+    private final ByteBuffer[] chunkBytes;
+    private final FloatBuffer[] chunks;
+
+    /**
+     * Creates a raster in direct buffers, initialized to zero.
+     */
+    public MappedRaster(int w, int h, EdgeMode edgeMode) {
+        this(w, h, edgeMode, null, allocateChunks(tileCount(w, h)));
+    }
+
+    /**
+     * Creates a raster backed by the specified file.  The file is created or extended as needed, new cells are zero
+     * and existing values are kept, so a raster of the same size can be opened from the file again later.
+     */
+    public MappedRaster(int w, int h, EdgeMode edgeMode, File file) throws IOException {
+        this(w, h, edgeMode, file, mapChunks(file, tileCount(w, h)));
+    }
+
+    private MappedRaster(int w, int h, EdgeMode edgeMode, File file, ByteBuffer[] chunkBytes) {
+        Check.notNull(edgeMode, "edgeMode");
+
+        this.w = w;
+        this.h = h;
+        this.edgeMode = edgeMode;
+        this.file = file;
+        this.chunkBytes = chunkBytes;
+        tilesX = tilesAlong(w);
+        tilesY = tilesAlong(h);
+
+        chunks = new FloatBuffer[chunkBytes.length];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = chunkBytes[i].order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+    }
+
+    public int getW() {
+        return w;
+    }
+
+    public int getH() {
+        return h;
+    }
+
+    public EdgeMode getEdgeMode() {
+        return edgeMode;
+    }
+
+    public long getCellCount() {
+        return (long) w * h;
+    }
+
+    /**
+     * @return the backing file, or null if the raster is stored in direct buffers.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of tiles in the horizontal direction.
+     */
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    /**
+     * @return number of tiles in the vertical direction.
+     */
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public float get(int x, int y) {
+        if (x < 0 || x >= w) x = edgeMode.resolve(x, w);
+        if (y < 0 || y >= h) y = edgeMode.resolve(y, h);
+
+        return getAt(cellIndex(x, y));
+    }
+
+    public float getInterpolated(float x, float y) {
+        int x0 = fastFloor(x);
+        int y0 = fastFloor(y);
+        float cx = x - x0;
+        float cy = y - y0;
+        final float yr0 = mix(cx, get(x0, y0),     get(x0 + 1, y0));
+        final float yr1 = mix(cx, get(x0, y0 + 1), get(x0 + 1, y0 + 1));
+        return mix(cy, yr0, yr1);
+    }
+
+    public void set(int x, int y, float v) {
+        if (x < 0 || x >= w) x = edgeMode.resolve(x, w);
+        if (y < 0 || y >= h) y = edgeMode.resolve(y, h);
+
+        setAt(cellIndex(x, y), v);
+    }
+
+    /**
+     * @return position of the specified cell in the storage, which is ordered by tile.
+     *         The coordinates must be inside the raster.
+     */
+    public long cellIndex(int x, int y) {
+        final long tile = (long) (y >>> TILE_SHIFT) * tilesX + (x >>> TILE_SHIFT);
+        return tile << TILE_CELLS_SHIFT | (y & TILE_MASK) << TILE_SHIFT | (x & TILE_MASK);
+    }
+
+    /**
+     * @return value at the specified position in the storage, as returned by cellIndex().
+     */
+    public float getAt(long cellIndex) {
+        return chunks[(int) (cellIndex >>> CHUNK_CELLS_SHIFT)].get(chunkOffset(cellIndex));
+    }
+
+    /**
+     * Sets the value at the specified position in the storage, as returned by cellIndex().
+     */
+    public void setAt(long cellIndex, float v) {
+        chunks[(int) (cellIndex >>> CHUNK_CELLS_SHIFT)].put(chunkOffset(cellIndex), v);
+    }
+
+    public void fill(float v) {
+        for (FloatBuffer chunk : chunks) {
+            final int size = chunk.capacity();
+            for (int i = 0; i < size; i++) {
+                chunk.put(i, v);
+            }
+        }
+    }
+
+    public void readRow(int y, float[] target, int offset) {
+        if (y < 0 || y >= h) y = edgeMode.resolve(y, h);
+
+        readSpan(0, y, target, offset, w);
+    }
+
+    public void writeRow(int y, float[] source, int offset) {
+        if (y < 0 || y >= h) y = edgeMode.resolve(y, h);
+
+        writeSpan(0, y, source, offset, w);
+    }
+
+    /**
+     * Copies count cells of row y starting from column x to the target array.  The cells must be inside the raster.
+     */
+    public void readSpan(int x, int y, float[] target, int offset, int count) {
+        final int end = x + count;
+        while (x < end) {
+            final int n = Math.min(end, (x | TILE_MASK) + 1) - x;
+            final long start = cellIndex(x, y);
+            final FloatBuffer chunk = chunks[(int) (start >>> CHUNK_CELLS_SHIFT)];
+            final int i = chunkOffset(start);
+            for (int k = 0; k < n; k++) {
+                target[offset++] = chunk.get(i + k);
+            }
+            x += n;
+        }
+    }
+
+    /**
+     * Copies count values from the source array to row y starting from column x.  The cells must be inside the raster.
+     */
+    public void writeSpan(int x, int y, float[] source, int offset, int count) {
+        final int end = x + count;
+        while (x < end) {
+            final int n = Math.min(end, (x | TILE_MASK) + 1) - x;
+            final long start = cellIndex(x, y);
+            final FloatBuffer chunk = chunks[(int) (start >>> CHUNK_CELLS_SHIFT)];
+            final int i = chunkOffset(start);
+            for (int k = 0; k < n; k++) {
+                chunk.put(i + k, source[offset++]);
+            }
+            x += n;
+        }
+    }
+
+    /**
+     * Copies the area starting at x0, y0 to the target raster, including the cells covered by its halo, which are
+     * mapped onto this raster according to the edge mode.
+     */
+    public void copyTo(Raster target, int x0, int y0) {
+        final int tw = target.getW();
+        final int th = target.getH();
+        final int halo = target.getHalo();
+        final float[] data = target.getData();
+
+        for (int yy = -halo; yy < th + halo; yy++) {
+            final int y = y0 + yy;
+            final int row = target.rawIndex(0, yy);
+            final int inside0 = Math.max(-halo, -x0);
+            final int inside1 = Math.min(tw + halo, w - x0);
+            if (y >= 0 && y < h && inside0 < inside1) {
+                // Copy the part inside this raster directly, and map the rest
+                for (int xx = -halo; xx < inside0; xx++) data[row + xx] = get(x0 + xx, y);
+                readSpan(x0 + inside0, y, data, row + inside0, inside1 - inside0);
+                for (int xx = inside1; xx < tw + halo; xx++) data[row + xx] = get(x0 + xx, y);
+            }
+            else {
+                for (int xx = -halo; xx < tw + halo; xx++) data[row + xx] = get(x0 + xx, y);
+            }
+        }
+        target.markChanged(0, 0, tw, th);
+    }
+
+    /**
+     * Copies the source raster, without its halo, to the area starting at x0, y0.  Cells outside this raster are
+     * skipped.
+     */
+    public void copyFrom(Raster source, int x0, int y0) {
+        final int xs = Math.max(0, -x0);
+        final int xe = Math.min(source.getW(), w - x0);
+        if (xs >= xe) return;
+
+        final int ys = Math.max(0, -y0);
+        final int ye = Math.min(source.getH(), h - y0);
+        for (int yy = ys; yy < ye; yy++) {
+            writeSpan(x0 + xs, y0 + yy, source.getData(), source.rawIndex(xs, yy), xe - xs);
+        }
+    }
+
+    /**
+     * Calculates the target from this raster one tile at a time, in storage order.  Each tile of this raster is
+     * copied with a halo of the specified width to a heap raster, the kernel calculates the tile of the target from
+     * it, and the result is copied to the target.  The target may not be this raster.
+     */
+    public void processTiles(MappedRaster target, int halo, TileKernel kernel) {
+        Check.equal(target.w, "target width", w, "source width");
+        Check.equal(target.h, "target height", h, "source height");
+        Check.notNull(kernel, "kernel");
+        if (target == this) throw new IllegalArgumentException("The target may not be the source raster");
+
+        // Only the tiles at the right and bottom edges may be smaller
+        Raster source = null;
+        Raster result = null;
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                final int x0 = tx << TILE_SHIFT;
+                final int y0 = ty << TILE_SHIFT;
+                final int tw = Math.min(TILE_SIZE, w - x0);
+                final int th = Math.min(TILE_SIZE, h - y0);
+                if (source == null || source.getW() != tw || source.getH() != th) {
+                    source = new Raster(tw, th, edgeMode, halo);
+                    result = new Raster(tw, th, edgeMode, halo);
+                }
+
+                copyTo(source, x0, y0);
+                kernel.processTile(source, result, x0, y0);
+                target.copyFrom(result, x0, y0);
+            }
+        }
+    }
+
+    /**
+     * Writes changes to a file backed raster to the file.
+     */
+    public void flush() {
+        for (ByteBuffer chunk : chunkBytes) {
+            if (chunk instanceof MappedByteBuffer) ((MappedByteBuffer) chunk).force();
+        }
+    }
+
+    /**
+     * Calculates one tile of the target raster for processTiles().
+     */
+    public interface TileKernel {
+
+        /**
+         * @param source the source tile, with its halo filled from the surrounding cells.
+         * @param target raster of the same size to store the result in.  Its halo is not copied back.
+         * @param x0 position of the tile in the whole raster.
+         * @param y0 position of the tile in the whole raster.
+         */
+        void processTile(Raster source, Raster target, int x0, int y0);
+    }
+
+    private static int chunkOffset(long cellIndex) {
+        return (int) (cellIndex & CHUNK_CELLS_MASK);
+    }
+
+    private static int tilesAlong(int size) {
+        return (size + TILE_MASK) >>> TILE_SHIFT;
+    }
+
+    private static long tileCount(int w, int h) {
+        Check.positive(w, "w");
+        Check.positive(h, "h");
+
+        return (long) tilesAlong(w) * tilesAlong(h);
+    }
+
+    private static long chunkBytes(long tileCount, int chunk) {
+        return Math.min(tileCount - ((long) chunk << CHUNK_TILES_SHIFT), 1L << CHUNK_TILES_SHIFT) * TILE_BYTES;
+    }
+
+    private static int chunkCount(long tileCount) {
+        return (int) ((tileCount + CHUNK_TILES_MASK) >>> CHUNK_TILES_SHIFT);
+    }
+
+    private static ByteBuffer[] allocateChunks(long tileCount) {
+        final ByteBuffer[] chunks = new ByteBuffer[chunkCount(tileCount)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect((int) chunkBytes(tileCount, i));
+        }
+        return chunks;
+    }
+
+    private static ByteBuffer[] mapChunks(File file, long tileCount) throws IOException {
+        Check.notNull(file, "file");
+
+        // The mappings stay valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            final ByteBuffer[] chunks = new ByteBuffer[chunkCount(tileCount)];
+            for (int i = 0; i < chunks.length; i++) {
+                final long position = ((long) i << CHUNK_CELLS_SHIFT) * 4;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, chunkBytes(tileCount, i));
+            }
+            return chunks;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package rastersim;
+
+/**
+ * Solves the pressure equation with multigrid V-cycles.
+ *
+ * The error left by relaxation is smooth, so it is solved for on successively coarser grids where it converges
+ * quickly, and then interpolated back.  The cost of a V-cycle is proportional to the number of cells, and the number
+ * of V-cycles needed does not grow with the raster size, unlike for Jacobi or SOR iterations.
+ *
+ * The levels are cell centered grids with a ghost cell ring, using 2x2 averaging for restriction, bilinear
+ * interpolation for prolongation and red-black Gauss-Seidel for smoothing.
+ */
+public final class MultigridPressureSolver extends PressureSolverBase {
+
+    private static final int COARSEST_SIZE = 4;
+    private static final int MAX_COARSEST_SWEEPS = 1000;
+
+    private final int preSmoothingSweeps;
+    private final int postSmoothingSweeps;
+
+    private int levelCount;
+    private int[] levelW;
+    private int[] levelH;
+    private float[][] solution;
+    private float[][] rhs;
+    private float[][] residual;
+
+    public MultigridPressureSolver() {
+        this(DEFAULT_TOLERANCE, 50);
+    }
+
+    public MultigridPressureSolver(float tolerance, int maxCycles) {
+        this(tolerance, maxCycles, 2, 2);
+    }
+
+    /**
+     * @param maxCycles maximum number of V-cycles to run.
+     * @param preSmoothingSweeps number of relaxation sweeps before moving to the coarser level.
+     * @param postSmoothingSweeps number of relaxation sweeps after correcting from the coarser level.
+     */
+    public MultigridPressureSolver(float tolerance, int maxCycles, int preSmoothingSweeps, int postSmoothingSweeps) {
+        super(tolerance, maxCycles);
+        this.preSmoothingSweeps = preSmoothingSweeps;
+        this.postSmoothingSweeps = postSmoothingSweeps;
+    }
+
+    @Override public int solve(Raster p, Raster div) {
+        p.checkSizeMatches(div);
+
+        allocateLevels(p.getW() - 2, p.getH() - 2);
+
+        copyInterior(p, solution[0]);
+        copyInterior(div, rhs[0]);
+
+        int cycle = 0;
+        float maxResidual = computeResidual(0);
+        while (maxResidual > getTolerance() && cycle < getMaxIterations()) {
+            vCycle(0);
+            cycle++;
+            maxResidual = computeResidual(0);
+        }
+
+        // Copy back the result
+        final float[] data = p.getData();
+        final float[] x = solution[0];
+        final int w = levelW[0];
+        for (int y = 0; y < levelH[0]; y++) {
+            System.arraycopy(x, (y + 1) * (w + 2) + 1, data, p.rawIndex(1, y + 1), w);
+        }
+        p.markChanged(0, 0, p.getW(), p.getH());
+        p.setBoundaries(0);
+
+        setResidual(maxResidual);
+        return cycle;
+    }
+
+    private void vCycle(int level) {
+        if (level == levelCount - 1) {
+            solveCoarsest(level);
+        }
+        else {
+            smooth(level, preSmoothingSweeps);
+
+            computeResidual(level);
+            restrict(level);
+            vCycle(level + 1);
+            prolongate(level);
+
+            smooth(level, postSmoothingSweeps);
+        }
+    }
+
+    private void solveCoarsest(int level) {
+        // The equation only has a solution if the right hand side sums to zero, so remove any remaining mean
+        final float[] b = rhs[level];
+        final int w = levelW[level];
+        final int h = levelH[level];
+        double sum = 0;
+        for (int y = 1; y <= h; y++) {
+            for (int x = 1; x <= w; x++) {
+                sum += b[x + y * (w + 2)];
+            }
+        }
+        final float mean = (float) (sum / (w * h));
+        for (int y = 1; y <= h; y++) {
+            for (int x = 1; x <= w; x++) {
+                b[x + y * (w + 2)] -= mean;
+            }
+        }
+
+        smooth(level, Math.min(MAX_COARSEST_SWEEPS, 2 * (w + h) * (w + h)));
+    }
+
+    private void smooth(int level, int sweeps) {
+        final float[] x = solution[level];
+        final float[] b = rhs[level];
+        final int w = levelW[level];
+        final int h = levelH[level];
+        final int stride = w + 2;
+
+        for (int sweep = 0; sweep < sweeps; sweep++) {
+            for (int parity = 0; parity < 2; parity++) {
+                updateGhostCells(x, w, h);
+
+                for (int y = 1; y <= h; y++) {
+                    final int rowStart = y * stride;
+                    for (int i = rowStart + 1 + ((y + 1 + parity) & 1); i <= rowStart + w; i += 2) {
+                        x[i] = (b[i] + x[i + 1] + x[i - 1] + x[i + stride] + x[i - stride]) * 0.25f;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the residual of the level in the residual buffer.
+     * @return the largest absolute residual.
+     */
+    private float computeResidual(int level) {
+        final float[] x = solution[level];
+        final float[] b = rhs[level];
+        final float[] r = residual[level];
+        final int w = levelW[level];
+        final int h = levelH[level];
+        final int stride = w + 2;
+
+        updateGhostCells(x, w, h);
+
+        float maxResidual = 0;
+        for (int y = 1; y <= h; y++) {
+            final int rowStart = y * stride;
+            for (int i = rowStart + 1; i <= rowStart + w; i++) {
+                final float v = b[i] - (4 * x[i] - (x[i + 1] + x[i - 1] + x[i + stride] + x[i - stride]));
+                r[i] = v;
+                maxResidual = Math.max(maxResidual, Math.abs(v));
+            }
+        }
+        return maxResidual;
+    }
+
+    /**
+     * Sets the right hand side of the next level to the residual of this level, and its solution to zero.
+     */
+    private void restrict(int level) {
+        final float[] r = residual[level];
+        final int w = levelW[level];
+        final int h = levelH[level];
+        final int stride = w + 2;
+
+        final float[] coarseRhs = rhs[level + 1];
+        final float[] coarseSolution = solution[level + 1];
+        final int coarseW = levelW[level + 1];
+        final int coarseH = levelH[level + 1];
+        final int coarseStride = coarseW + 2;
+
+        for (int cy = 0; cy < coarseH; cy++) {
+            final int y0 = 2 * cy + 1;
+            final int y1 = Math.min(y0 + 1, h);
+            for (int cx = 0; cx < coarseW; cx++) {
+                final int x0 = 2 * cx + 1;
+                final int x1 = Math.min(x0 + 1, w);
+
+                // With twice the cell size the equation is scaled by four, so the average residual is multiplied by four
+                float sum = r[x0 + y0 * stride];
+                int count = 1;
+                if (x1 != x0) { sum += r[x1 + y0 * stride]; count++; }
+                if (y1 != y0) { sum += r[x0 + y1 * stride]; count++; }
+                if (x1 != x0 && y1 != y0) { sum += r[x1 + y1 * stride]; count++; }
+
+                final int ci = cx + 1 + (cy + 1) * coarseStride;
+                coarseRhs[ci] = sum * 4f / count;
+                coarseSolution[ci] = 0;
+            }
+        }
+    }
+
+    /**
+     * Adds the bilinearly interpolated solution of the next level to this level.
+     */
+    private void prolongate(int level) {
+        final float[] fine = solution[level];
+        final int w = levelW[level];
+        final int h = levelH[level];
+        final int stride = w + 2;
+
+        final float[] coarse = solution[level + 1];
+        final int coarseW = levelW[level + 1];
+        final int coarseH = levelH[level + 1];
+        final int coarseStride = coarseW + 2;
+
+        for (int y = 0; y < h; y++) {
+            // Fine cell centers lie a quarter of a coarse cell from the center of the coarse cell containing them
+            final int cy = y >> 1;
+            final int ny = Math.max(0, Math.min(coarseH - 1, (y & 1) == 0 ? cy - 1 : cy + 1));
+            final int row = (cy + 1) * coarseStride + 1;
+            final int neighbourRow = (ny + 1) * coarseStride + 1;
+            for (int x = 0; x < w; x++) {
+                final int cx = x >> 1;
+                final int nx = Math.max(0, Math.min(coarseW - 1, (x & 1) == 0 ? cx - 1 : cx + 1));
+
+                fine[x + 1 + (y + 1) * stride] += 0.5625f * coarse[row + cx] +
+                                                  0.1875f * (coarse[row + nx] + coarse[neighbourRow + cx]) +
+                                                  0.0625f * coarse[neighbourRow + nx];
+            }
+        }
+    }
+
+    /**
+     * Mirrors the edge cells to the ghost cells, so that the edges have zero gradient.
+     */
+    private static void updateGhostCells(float[] x, int w, int h) {
+        final int stride = w + 2;
+        for (int y = 1; y <= h; y++) {
+            x[y * stride] = x[y * stride + 1];
+            x[y * stride + w + 1] = x[y * stride + w];
+        }
+        System.arraycopy(x, stride, x, 0, stride);
+        System.arraycopy(x, h * stride, x, (h + 1) * stride, stride);
+    }
+
+    private void copyInterior(Raster raster, float[] target) {
+        final float[] data = raster.getData();
+        final int w = levelW[0];
+        for (int y = 0; y < levelH[0]; y++) {
+            System.arraycopy(data, raster.rawIndex(1, y + 1), target, (y + 1) * (w + 2) + 1, w);
+        }
+    }
+
+    private void allocateLevels(int w, int h) {
+        if (levelW != null && levelW[0] == w && levelH[0] == h) return;
+
+        levelCount = 1;
+        for (int lw = w, lh = h; lw > COARSEST_SIZE && lh > COARSEST_SIZE; lw = (lw + 1) / 2, lh = (lh + 1) / 2) {
+            levelCount++;
+        }
+
+        levelW = new int[levelCount];
+        levelH = new int[levelCount];
+        solution = new float[levelCount][];
+        rhs = new float[levelCount][];
+        residual = new float[levelCount][];
+        for (int level = 0, lw = w, lh = h; level < levelCount; level++, lw = (lw + 1) / 2, lh = (lh + 1) / 2) {
+            levelW[level] = lw;
+            levelH[level] = lh;
+            solution[level] = new float[(lw + 2) * (lh + 2)];
+            rhs[level] = new float[(lw + 2) * (lh + 2)];
+            residual[level] = new float[(lw + 2) * (lh + 2)];
+        }
+    }
+}
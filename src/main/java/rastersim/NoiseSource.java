@@ -0,0 +1,35 @@
+package rastersim;
+
+/**
+ * Source of random numbers for stochastic simulation effects.
+ *
+ * Implementations are not thread safe, so each thread or tile should use its own instance, created with copy() and
+ * seeded with NoiseStreams.seedFor() so that the results do not depend on how the work is divided.
+ */
+public interface NoiseSource {
+
+    /**
+     * Restarts the sequence of numbers from the specified seed.
+     */
+    void setSeed(long seed);
+
+    /**
+     * @return uniformly distributed value in the range 0 (inclusive) to 1 (exclusive).
+     */
+    float nextFloat();
+
+    /**
+     * @return uniformly distributed value in the range 0 (inclusive) to bound (exclusive).
+     */
+    int nextInt(int bound);
+
+    /**
+     * @return normally distributed value with mean 0 and standard deviation 1.
+     */
+    float nextGaussian();
+
+    /**
+     * @return a new noise source of the same kind, with an unspecified seed.
+     */
+    NoiseSource copy();
+}
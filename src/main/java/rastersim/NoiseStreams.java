@@ -0,0 +1,29 @@
+package rastersim;
+
+/**
+ * Derives seeds for independent streams of random numbers from a base seed.
+ */
+public final class NoiseStreams {
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /**
+     * @return seed for the specified stream at the specified step, well mixed so that neighbouring streams and steps
+     *         are uncorrelated.
+     */
+    public static long seedFor(long seed, long step, long stream) {
+        return mix(mix(mix(seed) + step * GOLDEN_GAMMA) + stream * GOLDEN_GAMMA);
+    }
+
+    /**
+     * The SplitMix64 finalizer.
+     */
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private NoiseStreams() {
+    }
+}
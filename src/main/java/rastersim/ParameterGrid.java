@@ -0,0 +1,73 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Values to try for each parameter of a simulation.  Every combination of the values is one run, numbered so that the
+ * last added parameter changes fastest.
+ */
+public final class ParameterGrid {
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<double[]> values = new ArrayList<double[]>();
+
+    /**
+     * Adds a parameter with the values to try for it.
+     * @return this grid, for chaining.
+     */
+    public ParameterGrid addParameter(String name, double... parameterValues) {
+        Check.notNull(name, "name");
+        Check.notNull(parameterValues, "parameterValues");
+        Check.positive(parameterValues.length, "number of values");
+        if (names.contains(name)) throw new IllegalArgumentException("A parameter named '" + name + "' already exists");
+
+        names.add(name);
+        values.add(parameterValues.clone());
+        return this;
+    }
+
+    /**
+     * @return the names of the parameters, in the order they were added.
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @return number of combinations of the parameter values.
+     */
+    public int getRunCount() {
+        long count = 1;
+        for (double[] parameterValues : values) {
+            count *= parameterValues.length;
+            if (count > Integer.MAX_VALUE) throw new IllegalStateException("Too many combinations of parameter values");
+        }
+        return (int) count;
+    }
+
+    /**
+     * @return the value of each parameter for the specified run, by name in the order the parameters were added.
+     */
+    public Map<String, Double> getParameters(int run) {
+        if (run < 0 || run >= getRunCount()) throw new IllegalArgumentException("No run " + run + " in a grid of " + getRunCount() + " runs");
+
+        final double[] runValues = new double[names.size()];
+        for (int i = names.size() - 1; i >= 0; i--) {
+            final double[] parameterValues = values.get(i);
+            runValues[i] = parameterValues[run % parameterValues.length];
+            run /= parameterValues.length;
+        }
+
+        final Map<String, Double> parameters = new LinkedHashMap<String, Double>();
+        for (int i = 0; i < names.size(); i++) {
+            parameters.put(names.get(i), runValues[i]);
+        }
+        return parameters;
+    }
+}
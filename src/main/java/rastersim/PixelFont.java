@@ -1,17 +1,28 @@
 package rastersim;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
 
 /**
+ * Bitmap font that draws text onto rasters.
  *
+ * The glyphs are decoded once when the font is loaded, and drawn strings are rendered into cached spans of cell
+ * coverage, so that drawing the same string again only copies the span into the raster row by row.
  */
 public class PixelFont {
 
-    private final BufferedImage fontImage;
+    /**
+     * Glyph pixels with a brightness at or below this are left transparent.
+     */
+    private static final float COVERAGE_THRESHOLD = 0.2f;
+
+    private static final int NOISE_TABLE_SIZE = 4096;
+    private static final long NOISE_TABLE_SEED = 4242;
+    private static final int DEFAULT_SPAN_CACHE_SIZE = 16;
+
     private final int firstCharCode;
     private final int charW;
     private final int charH;
@@ -21,6 +32,21 @@ public class PixelFont {
     private final int charsAlongY;
     private final int lastCharCode;
 
+    /**
+     * Coverage of each glyph pixel, glyph after glyph, with 0 for transparent pixels.
+     */
+    private final float[] glyphCoverage;
+
+    /**
+     * Precalculated gaussian noise, so that no random numbers need to be generated per pixel.
+     */
+    private final float[] noise;
+
+    private final int spanCacheSize;
+    private final Map<SpanKey, TextSpan> spanCache;
+
+    private float noiseAmount = 0.05f;
+
     private Random random = new Random();
 
 
@@ -33,12 +59,22 @@ public class PixelFont {
     }
 
     public PixelFont(File fontFile, int charW, int charH, int firstCharCode) {
+        this(fontFile, charW, charH, firstCharCode, DEFAULT_SPAN_CACHE_SIZE);
+    }
+
+    /**
+     * @param spanCacheSize number of rendered strings to keep, or 0 to not cache them.
+     */
+    public PixelFont(File fontFile, int charW, int charH, int firstCharCode, final int spanCacheSize) {
         this.charW = charW;
         this.charH = charH;
         this.firstCharCode = firstCharCode;
+        this.spanCacheSize = spanCacheSize;
 
+        // Decoded without ImageIO, so that no AWT classes are loaded when running headless
+        final PngDecoder fontImage;
         try {
-            fontImage = ImageIO.read(fontFile);
+            fontImage = new PngDecoder(fontFile);
         } catch (IOException e) {
             e.printStackTrace();
             throw new IllegalStateException("Could not load font file " + fontFile.getPath() + ": " + e.getMessage());
@@ -48,46 +84,232 @@ public class PixelFont {
         charsAlongY = fontImage.getHeight() / charH;
         int numChars = charsAlongX * charsAlongY;
         lastCharCode = firstCharCode + numChars;
+
+        glyphCoverage = decodeGlyphs(fontImage, numChars);
+
+        noise = new float[NOISE_TABLE_SIZE];
+        final Random noiseRandom = new Random(NOISE_TABLE_SEED);
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = (float) noiseRandom.nextGaussian();
+        }
+
+        spanCache = createSpanCache(spanCacheSize);
+    }
+
+    private PixelFont(PixelFont font) {
+        charW = font.charW;
+        charH = font.charH;
+        firstCharCode = font.firstCharCode;
+        charsAlongX = font.charsAlongX;
+        charsAlongY = font.charsAlongY;
+        lastCharCode = font.lastCharCode;
+        glyphCoverage = font.glyphCoverage;
+        noise = font.noise;
+        noiseAmount = font.noiseAmount;
+        spanCacheSize = font.spanCacheSize;
+        spanCache = createSpanCache(spanCacheSize);
+    }
+
+    /**
+     * @return a font sharing the decoded glyphs of this one, without loading the font file again.  It has its own
+     *         cache of drawn strings and its own noise seed, so that it can be used in another thread.
+     */
+    public PixelFont copy() {
+        return new PixelFont(this);
+    }
+
+    private Map<SpanKey, TextSpan> createSpanCache(final int spanCacheSize) {
+        return new LinkedHashMap<SpanKey, TextSpan>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<SpanKey, TextSpan> eldest) {
+                return size() > spanCacheSize;
+            }
+        };
+    }
+
+    private float[] decodeGlyphs(PngDecoder fontImage, int numChars) {
+        final int[] pixels = fontImage.getPixels();
+        final int imageW = fontImage.getWidth();
+
+        final float[] coverage = new float[numChars * charW * charH];
+        for (int glyph = 0; glyph < numChars; glyph++) {
+            int srcX = charW * (glyph % charsAlongX);
+            int srcY = charH * (glyph / charsAlongX);
+
+            for (int y = 0; y < charH; y++) {
+                for (int x = 0; x < charW; x++) {
+                    final int rgbaColor = pixels[srcX + x + (srcY + y) * imageW];
+                    float value = (rgbaColor & 0xFF) / 255f;  // TODO: Get luminosity
+                    if (value > COVERAGE_THRESHOLD) {
+                        coverage[(glyph * charH + y) * charW + x] = value;
+                    }
+                }
+            }
+        }
+        return coverage;
+    }
+
+    /**
+     * @return relative amount of random variation in the drawn intensity.
+     */
+    public float getNoiseAmount() {
+        return noiseAmount;
+    }
+
+    public void setNoiseAmount(float noiseAmount) {
+        this.noiseAmount = noiseAmount;
+    }
+
+    /**
+     * Sets the seed for the noise, so that the drawn text can be reproduced.
+     */
+    public void setSeed(long seed) {
+        random.setSeed(seed);
     }
 
     public void drawString(Raster raster, int x, int y, String text, int fontSize, float intensityScale, float intensityOffset) {
-        int xPos = x;
-        int yPos = y;
+        final SpanKey key = new SpanKey(text, fontSize);
+        TextSpan span = spanCache.get(key);
+        if (span == null) {
+            span = renderSpan(text, fontSize);
+            spanCache.put(key, span);
+        }
+
+        blit(raster, x, y, span, intensityScale, intensityOffset);
+    }
+
+    /**
+     * Renders the coverage of the text, with the glyph pixels scaled up to blocks of the font size.
+     */
+    private TextSpan renderSpan(String text, int fontSize) {
+        final int advanceX = charW * fontSize + xGap * fontSize;
+        final int advanceY = charH * fontSize + yGap * fontSize;
+
+        // Measure
+        int lines = 1;
+        int columns = 0;
+        int lineLength = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+                lineLength = 0;
+            }
+            else {
+                lineLength++;
+                columns = Math.max(columns, lineLength);
+            }
+        }
+
+        final TextSpan span = new TextSpan(columns * advanceX, (lines - 1) * advanceY + charH * fontSize);
+
+        int xPos = 0;
+        int yPos = 0;
         for (int i = 0; i < text.length(); i++) {
             final char c = text.charAt(i);
 
             if (c == '\n') {
                 // Next line
-                xPos = x;
-                yPos = yPos + charH * fontSize + yGap * fontSize;
+                xPos = 0;
+                yPos = yPos + advanceY;
             }
             else {
-                drawChar(raster, xPos, yPos, c, fontSize, intensityScale, intensityOffset);
+                drawChar(span, xPos, yPos, c, fontSize);
 
-                xPos += charW * fontSize + xGap * fontSize;
+                xPos += advanceX;
             }
         }
+
+        return span;
     }
 
-    private void drawChar(Raster raster, int xPos, int yPos, char c, int fontSize, float intensityScale, float intensityOffset) {
-        if (c >= firstCharCode && c <= lastCharCode) {
-            int srcX = charW * ((c - firstCharCode) % charsAlongX);
-            int srcY = charH * ((c - firstCharCode) / charsAlongX);
+    private void drawChar(TextSpan span, int xPos, int yPos, char c, int fontSize) {
+        if (c >= firstCharCode && c < lastCharCode) {
+            final int glyphStart = (c - firstCharCode) * charW * charH;
 
             int pixelSize = Math.max(1, fontSize - 1);
 
             for (int y = 0; y < charH; y++) {
                 for (int x = 0; x < charW; x++) {
-                    final int rgbaColor = fontImage.getRGB(srcX + x, srcY + y);
-                    float value = (rgbaColor & 0xFF) / 255f;  // TODO: Get luminosity
-                    if (value > 0.2f) {
-                        final float old = raster.get(xPos + x, yPos + y);
-                        final float v = 0.0f*old + intensityScale*(value * (1 +0.05f*(float) random.nextGaussian())) + intensityOffset;
-                        raster.fillRect(xPos + x*fontSize, yPos + y*fontSize, pixelSize, pixelSize, v, false);
+                    final float value = glyphCoverage[glyphStart + y * charW + x];
+                    if (value > 0) {
+                        span.fillRect(xPos + x*fontSize, yPos + y*fontSize, pixelSize, pixelSize, value);
                     }
                 }
             }
 
         }
     }
+
+    /**
+     * Writes the covered cells of the span into the raster, clipped to its edges.
+     */
+    private void blit(Raster raster, int x, int y, TextSpan span, float intensityScale, float intensityOffset) {
+        final int x0 = Math.max(0, x);
+        final int x1 = Math.min(raster.getW(), x + span.w);
+        final int y0 = Math.max(0, y);
+        final int y1 = Math.min(raster.getH(), y + span.h);
+        if (x0 >= x1 || y0 >= y1) return;
+
+        final float[] data = raster.getData();
+        final float[] coverage = span.coverage;
+        final float noiseScale = intensityScale * noiseAmount;
+        int noiseIndex = random.nextInt(NOISE_TABLE_SIZE);
+
+        for (int ry = y0; ry < y1; ry++) {
+            final int spanRow = (ry - y) * span.w - x;
+            final int rasterRow = raster.rawIndex(0, ry);
+            for (int rx = x0; rx < x1; rx++) {
+                final float value = coverage[spanRow + rx];
+                if (value > 0) {
+                    noiseIndex = (noiseIndex + 1) & (NOISE_TABLE_SIZE - 1);
+                    data[rasterRow + rx] = value * (intensityScale + noiseScale * noise[noiseIndex]) + intensityOffset;
+                }
+            }
+        }
+
+        raster.markChanged(x0, y0, x1, y1);
+    }
+
+    /**
+     * Rendered coverage of a string.
+     */
+    private static final class TextSpan {
+        private final int w;
+        private final int h;
+        private final float[] coverage;
+
+        private TextSpan(int w, int h) {
+            this.w = w;
+            this.h = h;
+            coverage = new float[w * h];
+        }
+
+        private void fillRect(int x, int y, int rectW, int rectH, float value) {
+            for (int yp = y; yp < Math.min(h, y + rectH); yp++) {
+                for (int xp = x; xp < Math.min(w, x + rectW); xp++) {
+                    coverage[xp + yp * w] = value;
+                }
+            }
+        }
+    }
+
+    private static final class SpanKey {
+        private final String text;
+        private final int fontSize;
+
+        private SpanKey(String text, int fontSize) {
+            this.text = text;
+            this.fontSize = fontSize;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SpanKey)) return false;
+            final SpanKey other = (SpanKey) o;
+            return fontSize == other.fontSize && text.equals(other.text);
+        }
+
+        @Override public int hashCode() {
+            return 31 * text.hashCode() + fontSize;
+        }
+    }
 }
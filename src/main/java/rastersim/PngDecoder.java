@@ -0,0 +1,181 @@
+package rastersim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads PNG images into ARGB pixel arrays without using ImageIO, so that no AWT classes are loaded.
+ * Supports non-interlaced images with 8 bits per channel, in grayscale, RGB, grayscale with alpha and RGBA.
+ */
+final class PngDecoder {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    private static final int GRAY = 0;
+    private static final int RGB = 2;
+    private static final int GRAY_ALPHA = 4;
+    private static final int RGBA = 6;
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    PngDecoder(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            final byte[] signature = new byte[SIGNATURE.length];
+            in.readFully(signature);
+            if (!Arrays.equals(signature, SIGNATURE)) throw new IOException("Not a PNG file");
+
+            int w = 0;
+            int h = 0;
+            int colorType = -1;
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            while (true) {
+                final int length = in.readInt();
+                final byte[] type = new byte[4];
+                in.readFully(type);
+                final byte[] chunk = new byte[length];
+                in.readFully(chunk);
+                in.readInt(); // CRC
+
+                final String chunkType = new String(type, "US-ASCII");
+                if (chunkType.equals("IHDR")) {
+                    final DataInputStream header = new DataInputStream(new ByteArrayInputStream(chunk));
+                    w = header.readInt();
+                    h = header.readInt();
+                    final int bitDepth = header.readUnsignedByte();
+                    colorType = header.readUnsignedByte();
+                    header.readUnsignedByte(); // Compression, always deflate
+                    header.readUnsignedByte(); // Filter method, always adaptive
+                    final int interlace = header.readUnsignedByte();
+                    if (bitDepth != 8 || interlace != 0 || channels(colorType) == 0) {
+                        throw new IOException("Unsupported PNG format, only non-interlaced 8 bit gray, RGB, gray-alpha and RGBA images are supported");
+                    }
+                }
+                else if (chunkType.equals("IDAT")) {
+                    compressed.write(chunk);
+                }
+                else if (chunkType.equals("IEND")) {
+                    break;
+                }
+            }
+
+            width = w;
+            height = h;
+            pixels = decode(inflate(compressed.toByteArray(), h * (1 + w * channels(colorType))), w, h, colorType);
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the pixels row by row, in the same ARGB format as BufferedImage.getRGB.
+     */
+    int[] getPixels() {
+        return pixels;
+    }
+
+    private static int channels(int colorType) {
+        switch (colorType) {
+            case GRAY: return 1;
+            case RGB: return 3;
+            case GRAY_ALPHA: return 2;
+            case RGBA: return 4;
+            default: return 0;
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed, int size) throws IOException {
+        final Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        final byte[] result = new byte[size];
+        try {
+            int read = 0;
+            while (read < size && !inflater.finished()) {
+                final int n = inflater.inflate(result, read, size - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                read += n;
+            }
+            if (read < size) throw new IOException("Truncated PNG image data");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt PNG image data: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+
+    private static int[] decode(byte[] raw, int w, int h, int colorType) throws IOException {
+        final int channels = channels(colorType);
+        final int rowBytes = w * channels;
+        final byte[] previous = new byte[rowBytes];
+        final byte[] current = new byte[rowBytes];
+        final int[] pixels = new int[w * h];
+
+        int pos = 0;
+        for (int y = 0; y < h; y++) {
+            final int filter = raw[pos++];
+            System.arraycopy(raw, pos, current, 0, rowBytes);
+            pos += rowBytes;
+
+            unfilter(filter, current, previous, channels);
+
+            for (int x = 0; x < w; x++) {
+                final int i = x * channels;
+                final int r, g, b, a;
+                switch (colorType) {
+                    case GRAY:       r = g = b = current[i] & 0xFF; a = 0xFF; break;
+                    case GRAY_ALPHA: r = g = b = current[i] & 0xFF; a = current[i + 1] & 0xFF; break;
+                    case RGB:        r = current[i] & 0xFF; g = current[i + 1] & 0xFF; b = current[i + 2] & 0xFF; a = 0xFF; break;
+                    default:         r = current[i] & 0xFF; g = current[i + 1] & 0xFF; b = current[i + 2] & 0xFF; a = current[i + 3] & 0xFF; break;
+                }
+                pixels[x + y * w] = a << 24 | r << 16 | g << 8 | b;
+            }
+
+            System.arraycopy(current, 0, previous, 0, rowBytes);
+        }
+        return pixels;
+    }
+
+    private static void unfilter(int filter, byte[] row, byte[] previous, int bytesPerPixel) throws IOException {
+        for (int i = 0; i < row.length; i++) {
+            final int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+            final int up = previous[i] & 0xFF;
+            final int upLeft = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+
+            final int predictor;
+            switch (filter) {
+                case 0: predictor = 0; break;
+                case 1: predictor = left; break;
+                case 2: predictor = up; break;
+                case 3: predictor = (left + up) >> 1; break;
+                case 4: predictor = paeth(left, up, upLeft); break;
+                default: throw new IOException("Unknown PNG filter type " + filter);
+            }
+            row[i] = (byte) (row[i] + predictor);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        final int p = a + b - c;
+        final int pa = Math.abs(p - a);
+        final int pb = Math.abs(p - b);
+        final int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        else if (pb <= pc) return b;
+        else return c;
+    }
+}
@@ -0,0 +1,30 @@
+package rastersim;
+
+/**
+ * Solves the pressure equation of the fluid projection step.
+ */
+public interface PressureSolver {
+
+    /**
+     * Solves 4 * p - (sum of the neighbours of p) = div for the interior cells of p, with the edge cells of p mirroring
+     * their inner neighbours (as set by setBoundaries(0)).  The current values of p are used as the initial guess.
+     *
+     * Iterates until the largest residual drops below the tolerance, or the maximum number of iterations is reached.
+     *
+     * @return number of iterations used.
+     */
+    int solve(Raster p, Raster div);
+
+    /**
+     * @return largest residual of the pressure equation at the end of the last solve.
+     */
+    float getResidual();
+
+    float getTolerance();
+
+    void setTolerance(float tolerance);
+
+    int getMaxIterations();
+
+    void setMaxIterations(int maxIterations);
+}
@@ -0,0 +1,46 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+/**
+ * Common functionality for iterative pressure solvers.
+ */
+public abstract class PressureSolverBase implements PressureSolver {
+
+    public static final float DEFAULT_TOLERANCE = 1e-4f;
+
+    private float tolerance;
+    private int maxIterations;
+    private float residual;
+
+    protected PressureSolverBase(float tolerance, int maxIterations) {
+        setTolerance(tolerance);
+        setMaxIterations(maxIterations);
+    }
+
+    @Override public final float getResidual() {
+        return residual;
+    }
+
+    protected final void setResidual(float residual) {
+        this.residual = residual;
+    }
+
+    @Override public final float getTolerance() {
+        return tolerance;
+    }
+
+    @Override public final void setTolerance(float tolerance) {
+        Check.positiveOrZero(tolerance, "tolerance");
+        this.tolerance = tolerance;
+    }
+
+    @Override public final int getMaxIterations() {
+        return maxIterations;
+    }
+
+    @Override public final void setMaxIterations(int maxIterations) {
+        Check.positive(maxIterations, "maxIterations");
+        this.maxIterations = maxIterations;
+    }
+}
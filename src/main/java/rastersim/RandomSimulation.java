@@ -1,28 +1,54 @@
 package rastersim;
 
+import org.flowutils.Check;
 import org.flowutils.gradient.ColorGradient;
-import org.flowutils.rawimage.RawImagePanel;
 
 import javax.swing.*;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 /**
  *
  */
 public class RandomSimulation implements Simulation {
-    private final Random random = new Random();
-    private final RawImagePanel screen;
+    /**
+     * Largest amount each cell cools down by in a step.
+     */
+    public static final float DEFAULT_COOLDOWN_RATE = 0.01f;
+
+    /**
+     * Font for the scrolling text, relative to the working directory.
+     */
+    public static final File DEFAULT_FONT_FILE = new File("assets/font.png");
+
+    // Loaded on first use, and copied for each simulation
+    private static PixelFont defaultFont;
+
+    private long seed;
+    private final NoiseSource noise;
+    private StencilRule fireRule;
+    private final SparkEmitter smallSparks = new SparkEmitter(0.0001);
+    private final SparkEmitter bigSparks = new SparkEmitter(0.00002);
+    private final StencilEngine engine;
+    private long step;
+    private SimulationScreen screen;
     private final int width;
     private final int height;
+    private final RasterPool rasterPool;
+    private final Raster[] frameRasters;
+    private float cooldownRate = DEFAULT_COOLDOWN_RATE;
 
-    private Raster updatedRaster;
-    private Raster visibleRaster;
+    private final TripleBuffer<Raster> frames;
+    private Raster currentRaster;
 
-    private RasterRenderer renderer;
-
-    private PixelFont font;
+    private final PixelFont font;
+    private InstrumentationOverlay overlay;
 
     private float messageTimeLeft = 0;
     private int messageX;
@@ -34,24 +60,55 @@ public class RandomSimulation implements Simulation {
     }
 
     public RandomSimulation(int width, int height) {
-        this.width = width;
-        this.height = height;
+        this(width, height, System.nanoTime());
+    }
 
-        final ColorGradient gradient = new ColorGradient();
-        gradient.addColor(-0.4, 0.0, 0.0, 0.0);
-        gradient.addColor( 0.0, 0.3, 0.3, 0.2);
-        gradient.addColor( 0.2, 0.6, 0.2, 0.1);
-        gradient.addColor( 0.4, 0.9, 0.2, 0.0);
-        gradient.addColor( 0.6, 1.0, 0.4, 0.0);
-        gradient.addColor( 0.8, 1.0, 1.0, 0.0);
-        gradient.addColor( 1.0, 1.0, 1.0, 0.5);
+    /**
+     * @param seed seed for all random effects, the simulation runs the same way each time with the same seed.
+     */
+    public RandomSimulation(int width, int height, long seed) {
+        this(width, height, seed, new XoroshiroNoise(), StencilEngine.getShared());
+    }
 
-        font = new PixelFont(new File("assets/font.png"));
+    /**
+     * @param noise used for the random effects, reseeded from the seed.
+     * @param engine used to update the rows in parallel.
+     */
+    public RandomSimulation(int width, int height, long seed, NoiseSource noise, StencilEngine engine) {
+        this(width, height, seed, noise, engine, null);
+    }
 
-        updatedRaster = new Raster(width, height, true);
-        visibleRaster = new Raster(width, height, true);
-        renderer = new RasterRenderer(visibleRaster, gradient, 0, 0, 1, 4);
-        screen = new RawImagePanel(renderer);
+    /**
+     * @param rasterPool pool to take the rasters from and return them to in dispose(), or null to allocate them.
+     */
+    public RandomSimulation(int width, int height, long seed, NoiseSource noise, StencilEngine engine, RasterPool rasterPool) {
+        this(width, height, seed, noise, engine, rasterPool, getDefaultFont());
+    }
+
+    /**
+     * @param font font for the scrolling text.  The simulation draws with a copy of it, so that the simulations of an
+     *             ensemble can share one loaded font.
+     */
+    public RandomSimulation(int width, int height, long seed, NoiseSource noise, StencilEngine engine, RasterPool rasterPool, PixelFont font) {
+        Check.notNull(font, "font");
+        this.width = width;
+        this.height = height;
+        this.seed = seed;
+        this.noise = noise;
+        this.engine = engine;
+        this.rasterPool = rasterPool;
+
+        noise.setSeed(seed);
+        fireRule = createFireRule(cooldownRate);
+        this.font = font.copy();
+
+        // The second buffer starts out as the published one
+        frameRasters = new Raster[3];
+        for (int i = 0; i < frameRasters.length; i++) {
+            frameRasters[i] = rasterPool != null ? rasterPool.acquire(width, height, EdgeMode.WRAP) : new Raster(width, height, true);
+        }
+        currentRaster = frameRasters[1];
+        frames = new TripleBuffer<Raster>(frameRasters[0], frameRasters[1], frameRasters[2]);
 
         final String msg = "*** Hello World! ***           FiRe EfFeCt wItH SpaRkS aNd sCrOlLEr. .. :: \\-o_o-/ :: ..   .        .                  .";
 
@@ -68,6 +125,14 @@ public class RandomSimulation implements Simulation {
 
     }
 
+    /**
+     * @return the font loaded from DEFAULT_FONT_FILE, loading it the first time.
+     */
+    public static synchronized PixelFont getDefaultFont() {
+        if (defaultFont == null) defaultFont = new PixelFont(DEFAULT_FONT_FILE);
+        return defaultFont;
+    }
+
     private void scrollMessage(String message, float showTimeSeconds, int yPos) {
         messageTimeLeft = showTimeSeconds;
         messageX = width;
@@ -75,48 +140,65 @@ public class RandomSimulation implements Simulation {
         this.message = message;
     }
 
-    private void flip() {
-        Raster t = visibleRaster;
-        visibleRaster = updatedRaster;
-        updatedRaster = t;
-        renderer.setRaster(visibleRaster);
-        updatedRaster.copyFrom(visibleRaster);
-    }
-
     @Override
     public void update(double currentTime, double deltaTime) {
 
+        // Calculate the next step from the current one, which may be shown by the renderer at the same time
+        final Raster nextRaster = frames.getWriteBuffer();
+        final long currentStep = step++;
+
+        // The halo of the current raster was filled when it was completed
+        fireRule.apply(nextRaster, currentRaster, noise, seed, currentStep, engine);
+
+        // Sparks are added to the next step, so that the current one is never modified
+        noise.setSeed(NoiseStreams.seedFor(seed, currentStep, -1));
+        smallSparks.emit(noise, width, height, new SparkEmitter.SparkTarget() {
+            @Override public void spark(int x, int y) {
+                final float value = nextRaster.getUnchecked(x, y) + 0.0f + 0.2f * noise.nextGaussian();
+                setSpark(nextRaster, x, y, value);
+            }
+        });
+        bigSparks.emit(noise, width, height, new SparkEmitter.SparkTarget() {
+            @Override public void spark(int x, int y) {
+                final float value = nextRaster.getUnchecked(x, y) + 0.5f + 2.0f * noise.nextGaussian();
+                setSpark(nextRaster, x, y, value);
+            }
+        });
+
         if (messageTimeLeft > 0) {
+            // Reseeded each step, so that a restored checkpoint draws the same text noise
+            font.setSeed(NoiseStreams.seedFor(seed, currentStep, -2));
+
             int y = (int) (Math.sin(currentTime * 2) * 5 + messageY);
             int fontSize = 3;
             messageTimeLeft -= deltaTime;
-/*            font.drawString(visibleRaster,
+/*            font.drawString(nextRaster,
                             messageX,
                             y+1,
                             message,
                             fontSize,
                             -0.2f, 0);
-            font.drawString(visibleRaster,
+            font.drawString(nextRaster,
                             messageX+1,
                             y,
                             message,
                             fontSize,
                             0.1f, -0.1f);
 */
-/*            font.drawString(visibleRaster,
+/*            font.drawString(nextRaster,
                             messageX-1,
                             y,
                             message,
                             fontSize,
                             -0.801f, 0);
                             */
-            font.drawString(visibleRaster,
+            font.drawString(nextRaster,
                             messageX + 1,
                             y-1,
                             message,
                             fontSize,
                             0.85f, -0.17f);
-            font.drawString(visibleRaster,
+            font.drawString(nextRaster,
                             messageX,
                             y,
                             message,
@@ -125,49 +207,59 @@ public class RandomSimulation implements Simulation {
             messageX -= 1;
         }
 
+        if (overlay != null) overlay.draw(nextRaster);
 
-        for (int x = 0; x < width ; x++) {
-            for (int y = 0; y < height; y++) {
-
-                float old = visibleRaster.get(x, y);
-
-                if (random.nextFloat() < 0.0001f) {
-                    final float value = old + 0.0f + 0.2f * (float) (random.nextGaussian());
-                    visibleRaster.set(x,y, value);
-                    visibleRaster.set(x,y+1, value);
-                    visibleRaster.set(x,y-1, value);
-                    visibleRaster.set(x+1,y, value);
-                    visibleRaster.set(x-1,y, value);
-                }
-                if (random.nextFloat() < 0.00002f) {
-                    final float value = old + 0.5f + 2.0f * (float) (random.nextGaussian());
-                    visibleRaster.set(x,y, value);
-                    visibleRaster.set(x,y+1, value);
-                    visibleRaster.set(x,y-1, value);
-                    visibleRaster.set(x+1,y, value);
-                    visibleRaster.set(x-1,y, value);
-                }
-
-                old = visibleRaster.get(x, y);
-                final float up = visibleRaster.get(x, y-1);
-                final float down = visibleRaster.get(x, y+1);
-                final float left = visibleRaster.get(x-1, y+1);
-                final float right = visibleRaster.get(x+1, y+1);
-
-                float cooldown = random.nextFloat() * 0.01f;
-                float newValue = (old * 3 + down * 5 + left + right + up) / 11f - cooldown;
-                updatedRaster.set(x,y, newValue);
-
-                // Bottom source
-                if (y == height - 1) {
-                    updatedRaster.set(x,y, 0.2f+1.2f*(float) (Math.max(-0.15f, random.nextGaussian())));
-                }
+        // Fill the ghost cells, so that the stencil can read the neighbours of edge cells directly in the next step
+        nextRaster.updateHalo();
 
-            }
-        }
+        // Hand the completed step to the renderer, and keep it for calculating the next step
+        currentRaster = nextRaster;
+        frames.publish();
+    }
+
+    public float getCooldownRate() {
+        return cooldownRate;
+    }
 
+    /**
+     * @param cooldownRate largest amount each cell cools down by in a step, the cooldown of each cell is random up to this.
+     */
+    public void setCooldownRate(float cooldownRate) {
+        Check.positiveOrZero(cooldownRate, "cooldownRate");
+        this.cooldownRate = cooldownRate;
+        fireRule = createFireRule(cooldownRate);
+    }
 
+    /**
+     * Heat rises from below and spreads sideways, each cell cools down randomly, and the bottom row is a random heat
+     * source.
+     */
+    private static StencilRule createFireRule(float cooldownRate) {
+        return new StencilRule()
+                .weight(0, 0, 3)
+                .weight(0, 1, 5)
+                .weight(-1, 1, 1)
+                .weight(1, 1, 1)
+                .weight(0, -1, 1)
+                .divide(11)
+                .noise(-cooldownRate)
+                .gaussianRow(-1, 0.2f, 1.2f, -0.15f);
+    }
 
+    /**
+     * @param overlayShown true to draw the instrumentation timings onto the simulated raster, while instrumentation is
+     *                     enabled.  The text heats up the fire like the scroller text does.
+     */
+    public void setOverlayShown(boolean overlayShown) {
+        overlay = overlayShown ? new InstrumentationOverlay(font) : null;
+    }
+
+    private void setSpark(Raster raster, int x, int y, float value) {
+        raster.set(x,y, value);
+        raster.set(x,y+1, value);
+        raster.set(x,y-1, value);
+        raster.set(x+1,y, value);
+        raster.set(x-1,y, value);
     }
 
     private <T> T pickOneRandomly(List<T> alternatives, Random random) {
@@ -178,13 +270,62 @@ public class RandomSimulation implements Simulation {
         return alternatives[random.nextInt(alternatives.length)];
     }
 
-    @Override public void render() {
-        flip();
+    @Override public void render(double alpha) {
+        // The renderer picks up the latest published step itself
+        if (screen != null) screen.reRender();
+    }
+
+    @Override public Map<String, Raster> getRasters() {
+        return Collections.singletonMap("heat", currentRaster);
+    }
 
-        screen.reRender();
+    @Override public void writeState(DataOutput out) throws IOException {
+        out.writeLong(seed);
+        out.writeLong(step);
+        out.writeFloat(cooldownRate);
+        out.writeFloat(messageTimeLeft);
+        out.writeInt(messageX);
+        out.writeInt(messageY);
+        out.writeUTF(message);
+    }
+
+    @Override public void readState(DataInput in) throws IOException {
+        seed = in.readLong();
+        step = in.readLong();
+        setCooldownRate(in.readFloat());
+        messageTimeLeft = in.readFloat();
+        messageX = in.readInt();
+        messageY = in.readInt();
+        message = in.readUTF();
+    }
+
+    @Override public void dispose() {
+        if (rasterPool != null) {
+            for (Raster raster : frameRasters) {
+                rasterPool.release(raster);
+            }
+        }
     }
 
     @Override public JComponent getUI() {
-        return screen;
+        // The renderer is only created for the user interface, headless runs do not need it
+        if (screen == null) screen = new SimulationScreen(createRenderer());
+        return screen.getComponent();
+    }
+
+    private RasterRenderer createRenderer() {
+        final ColorGradient gradient = new ColorGradient();
+        gradient.addColor(-0.4, 0.0, 0.0, 0.0);
+        gradient.addColor( 0.0, 0.3, 0.3, 0.2);
+        gradient.addColor( 0.2, 0.6, 0.2, 0.1);
+        gradient.addColor( 0.4, 0.9, 0.2, 0.0);
+        gradient.addColor( 0.6, 1.0, 0.4, 0.0);
+        gradient.addColor( 0.8, 1.0, 1.0, 0.0);
+        gradient.addColor( 1.0, 1.0, 1.0, 0.5);
+
+        final RasterRenderer renderer = new RasterRenderer(currentRaster, gradient, 0, 0, 1, 4);
+        renderer.setFrames(frames);
+        renderer.useColorLookupTable(-0.4f, 1.0f, ColorLookupTable.DEFAULT_SIZE);
+        return renderer;
     }
 }
\ No newline at end of file
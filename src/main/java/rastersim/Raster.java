@@ -3,29 +3,82 @@ package rastersim;
 
 import org.flowutils.Check;
 
+import java.util.Arrays;
+
 import static org.flowutils.Maths.*;
 
 /**
  * Two dimensional float array with utility functions.
+ *
+ * The cells are stored row by row with a halo of ghost cells around the edges.  The halo is filled according to the
+ * edge mode by updateHalo(), after which stencil kernels can read the neighbours of edge cells with plain array
+ * indexing, using getData(), getStride() and rawIndex().
+ *
+ * The active tiles, pyramid and changed tiles attached to the raster are marked by every operation that writes cells:
+ * the setters, fill(), writeRow(), copyFrom(), add(), divergence(), setBoundaries(), and the diffusion, advection and
+ * projection operations, including their StencilEngine versions, FieldPipeline, Advector and StencilRule.  add() only
+ * marks the cells where the source is not zero, and setBoundaries() only the edge cells whose values it changes, so
+ * that adding a small source or setting the boundaries every step does not wake the quiet tiles of a sparse
+ * simulation.  After writing to the backing array directly, call markChanged().
  */
-public final class Raster {
+public final class Raster implements FloatGrid {
+
+    /**
+     * Width of the ghost cell halo used when none is specified.
+     */
+    public static final int DEFAULT_HALO = 1;
+
     private final int w;
     private final int h;
-    private final boolean wrap;
+    private final EdgeMode edgeMode;
+    private final int halo;
+    private final int stride;
+    private final int origin;
 
     private final float [] data ;
 
+    private ActiveTiles activeTiles;
+    private RasterPyramid pyramid;
+    private ChangedTiles changedTiles;
+
     public Raster(int w, int h, boolean wrap) {
+        this(w, h, wrap ? EdgeMode.WRAP : EdgeMode.CLAMP);
+    }
+
+    public Raster(int w, int h, EdgeMode edgeMode) {
+        this(w, h, edgeMode, DEFAULT_HALO);
+    }
+
+    /**
+     * @param halo number of ghost cells to allocate outside each edge.
+     */
+    public Raster(int w, int h, EdgeMode edgeMode, int halo) {
+        Check.positive(w, "w");
+        Check.positive(h, "h");
+        Check.notNull(edgeMode, "edgeMode");
+        Check.positiveOrZero(halo, "halo");
+
         this.w = w;
         this.h = h;
-        this.wrap = wrap;
-        data = new float[w * h];
+        this.edgeMode = edgeMode;
+        this.halo = halo;
+        stride = w + 2 * halo;
+        origin = halo + halo * stride;
+        data = new float[stride * (h + 2 * halo)];
     }
 
     public float get(int x, int y) {
         return data[index(x, y)];
     }
 
+    /**
+     * @return value at the specified location, without mapping it onto the raster.
+     *         Coordinates up to getHalo() cells outside the raster read the halo as of the last updateHalo().
+     */
+    public float getUnchecked(int x, int y) {
+        return data[origin + x + y * stride];
+    }
+
     public float getInterpolated(float x, float y) {
         int x0 = fastFloor(x);
         int y0 = fastFloor(y);
@@ -33,17 +86,42 @@ public final class Raster {
         int y1 = y0 + 1;
         float cx = x - x0;
         float cy = y - y0;
-        final float yr0 = mix(cx, get(x0, y0), get(x1, y0));
-        final float yr1 = mix(cx, get(x0, y1), get(x1, y1));
-        return mix(cy, yr0, yr1);
+        if (x0 >= 0 && x1 < w && y0 >= 0 && y1 < h) {
+            // Inside the raster, sample the data directly
+            final int i = origin + x0 + y0 * stride;
+            final float yr0 = mix(cx, data[i],          data[i + 1]);
+            final float yr1 = mix(cx, data[i + stride], data[i + stride + 1]);
+            return mix(cy, yr0, yr1);
+        }
+        else {
+            final float yr0 = mix(cx, get(x0, y0), get(x1, y0));
+            final float yr1 = mix(cx, get(x0, y1), get(x1, y1));
+            return mix(cy, yr0, yr1);
+        }
     }
 
     public void set(int x, int y, float v) {
-        data[index(x, y)] = v;
+        if (x < 0 || x >= w) x = edgeMode.resolve(x, w);
+        if (y < 0 || y >= h) y = edgeMode.resolve(y, h);
+
+        data[origin + x + y * stride] = v;
+        if (activeTiles != null) activeTiles.wake(x, y);
+        if (pyramid != null) pyramid.markDirty(x, y);
+        if (changedTiles != null) changedTiles.markChanged(x, y);
+    }
+
+    /**
+     * Sets the value at the specified location, without mapping it onto the raster.
+     */
+    public void setUnchecked(int x, int y, float v) {
+        data[origin + x + y * stride] = v;
+        if (activeTiles != null) activeTiles.wake(x, y);
+        if (pyramid != null) pyramid.markDirty(x, y);
+        if (changedTiles != null) changedTiles.markChanged(x, y);
     }
 
     public void set(int x, int y, float v, boolean wrap) {
-        if (wrap || (x >= 0 && x < w && y >= 0 && y < h)) data[index(x, y)] = v;
+        if (wrap || (x >= 0 && x < w && y >= 0 && y < h)) set(x, y, v);
     }
 
     public void fillRect(int x, int y, int w, int h, float v, boolean wrap) {
@@ -54,6 +132,80 @@ public final class Raster {
         }
     }
 
+    /**
+     * @return tracker that is woken when cells are written, or null if none.
+     */
+    public ActiveTiles getActiveTiles() {
+        return activeTiles;
+    }
+
+    /**
+     * @param activeTiles tracker to wake when cells are written, or null to not track writes.
+     *                    Should be the same size as this raster.
+     */
+    public void setActiveTiles(ActiveTiles activeTiles) {
+        if (activeTiles != null) checkSizeMatches(activeTiles);
+        this.activeTiles = activeTiles;
+    }
+
+    public ChangedTiles getChangedTiles() {
+        return changedTiles;
+    }
+
+    /**
+     * @param changedTiles tracker to mark when cells are written, or null to not track writes.
+     *                     Should be the same size as this raster.
+     */
+    public void setChangedTiles(ChangedTiles changedTiles) {
+        if (changedTiles != null) {
+            Check.equal(changedTiles.getW(), "changed tiles width", w, "raster width");
+            Check.equal(changedTiles.getH(), "changed tiles height", h, "raster height");
+        }
+        this.changedTiles = changedTiles;
+    }
+
+    /**
+     * Creates a pyramid of coarser levels of this raster, replacing any earlier one.  The operations of the raster,
+     * StencilEngine and FieldPipeline mark the cells they write dirty; only after writing to the backing array directly
+     * call markChanged() for the changed area.
+     */
+    public RasterPyramid createPyramid(RasterPyramid.Reduction reduction) {
+        pyramid = new RasterPyramid(this, reduction);
+        return pyramid;
+    }
+
+    /**
+     * @return the pyramid created with createPyramid(), or null if none.
+     */
+    public RasterPyramid getPyramid() {
+        return pyramid;
+    }
+
+    public void removePyramid() {
+        pyramid = null;
+    }
+
+    /**
+     * @return the interpolated value at the specified location at a level of the pyramid, with level 0 being this
+     *         raster.  Levels above 0 require a pyramid.
+     */
+    public float sample(float x, float y, int level) {
+        if (level == 0) return getInterpolated(x, y);
+        if (pyramid == null) throw new IllegalStateException("Sampling level " + level + " requires a pyramid, create one with createPyramid()");
+
+        return pyramid.sample(x, y, level);
+    }
+
+    /**
+     * Wakes the tiles of the active tile tracker, marks the pyramid dirty and marks the changed tiles, if any, in the
+     * area from x0, y0 (inclusive) to x1, y1 (exclusive).  Call after writing to the backing array directly.
+     */
+    public void markChanged(int x0, int y0, int x1, int y1) {
+        if (activeTiles != null) activeTiles.wakeArea(x0, y0, x1, y1);
+        if (pyramid != null) pyramid.markDirty(x0, y0, x1, y1);
+        if (changedTiles != null) changedTiles.markChanged(x0, y0, x1, y1);
+    }
+
     public int getW() {
         return w;
     }
@@ -62,81 +214,204 @@ public final class Raster {
         return h;
     }
 
+    public EdgeMode getEdgeMode() {
+        return edgeMode;
+    }
+
+    public long getCellCount() {
+        return (long) w * h;
+    }
+
+    public boolean isWrap() {
+        return edgeMode == EdgeMode.WRAP;
+    }
+
+    /**
+     * @return number of ghost cells outside each edge.
+     */
+    public int getHalo() {
+        return halo;
+    }
+
+    /**
+     * @return distance between vertically adjacent cells in the array returned by getData().
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * @return the backing array, including the halo.  Use rawIndex() to locate cells in it.
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    /**
+     * @return index of the specified location in the backing array, without mapping it onto the raster.
+     */
+    public int rawIndex(int x, int y) {
+        return origin + x + y * stride;
+    }
+
     private int index(int x, int y) {
-        if (wrap) {
-            // Wrap edges
-            while (x < 0) x += w;
-            while (y < 0) y += h;
-            x = x % w;
-            y = y % h;
+        if (x < 0 || x >= w) x = edgeMode.resolve(x, w);
+        if (y < 0 || y >= h) y = edgeMode.resolve(y, h);
+
+        return origin + x + y * stride;
+    }
+
+    /**
+     * Fills the ghost cells around the raster from the edge cells according to the edge mode.
+     * Call after modifying the raster and before reading outside it with getUnchecked() or raw indexing.
+     */
+    public void updateHalo() {
+        if (halo == 0) return;
+
+        updateHaloColumns();
+
+        // Top and bottom ghost rows, including the corners
+        for (int g = 1; g <= halo; g++) {
+            System.arraycopy(data, (halo + edgeMode.resolve(-g, h)) * stride,        data, (halo - g) * stride,         stride);
+            System.arraycopy(data, (halo + edgeMode.resolve(h - 1 + g, h)) * stride, data, (halo + h - 1 + g) * stride, stride);
         }
-        else  {
-            // Clamp to edges
-            if (x < 0) x = 0;
-            if (x > w) x = w;
-            if (y < 0) y = 0;
-            if (y > h) y = h;
+    }
+
+    /**
+     * Fills the left and right ghost columns of the rows of the raster according to the edge mode.
+     */
+    void updateHaloColumns() {
+        for (int y = 0; y < h; y++) {
+            final int row = origin + y * stride;
+            for (int g = 1; g <= halo; g++) {
+                data[row - g]         = data[row + edgeMode.resolve(-g, w)];
+                data[row + w - 1 + g] = data[row + edgeMode.resolve(w - 1 + g, w)];
+            }
         }
+    }
 
-        return x + y * w;
+    public void readRow(int y, float[] target, int offset) {
+        System.arraycopy(data, index(0, y), target, offset, w);
+    }
+
+    public void writeRow(int y, float[] source, int offset) {
+        if (y < 0 || y >= h) y = edgeMode.resolve(y, h);
+
+        System.arraycopy(source, offset, data, origin + y * stride, w);
+        if (activeTiles != null) activeTiles.wakeArea(0, y, w, y + 1);
+        if (pyramid != null) pyramid.markDirty(0, y, w, y + 1);
+        if (changedTiles != null) changedTiles.markChanged(0, y, w, y + 1);
     }
 
     public void copyFrom(Raster other) {
+        checkSizeMatches(other);
+
         System.arraycopy(other.data, 0, data, 0, data.length);
+        if (activeTiles != null) activeTiles.wakeAll();
+        if (pyramid != null) pyramid.markAllDirty();
+        if (changedTiles != null) changedTiles.markAllChanged();
     }
 
     public void add(Raster source, float scale, float offset) {
         checkSizeMatches(source);
 
-        for (int i = 0; i < data.length; i++) {
-            data[i] += source.data[i] * scale + offset;
-        }
+        addRange(source, scale, offset, 0, data.length);
+        markAdded(source, offset);
     }
 
     public void diffuse(Raster source, float diffusion, float deltaTime, float cellSizeMeter, int b) {
         checkSizeMatches(source);
 
+        final long startTime = Instrumentation.start();
         for (int k = 0; k < 20; k++) {
             diffuseStep(source, diffusion, deltaTime, cellSizeMeter);
 
             setBoundaries(b);
         }
+        Instrumentation.stop(Instrumentation.DIFFUSE, startTime);
     }
 
-    public void setBoundaries(int b) {
-        for (int x = 1; x < w-1; x++) {
-            data[x]           = (b==2 ? -1 : 1) * data[x + 1*w];
-            data[x + (h-1)*w] = (b==2 ? -1 : 1) * data[x + (h-2)*w];
-        }
-        for (int y = 1; y < h - 1; y++) {
-            data[y*w]       = (b==1 ? -1 : 1) * data[1   + y * w];
-            data[w-1 + y*w] = (b==1 ? -1 : 1) * data[w-2 + y * w];
+    /**
+     * Diffuses the source into this raster by solving the implicit diffusion equation in place, with red-black
+     * Gauss-Seidel iterations and successive over-relaxation.  Stops when the largest residual, computed during the
+     * sweeps, drops below the tolerance.
+     *
+     * @param omega relaxation factor in the range 0 until 2, 1 for plain Gauss-Seidel, or 0 to use the optimal factor
+     *              from optimalDiffusionOmega().  Factors of 2 or more diverge.
+     * @param tolerance the largest acceptable residual, in the units of the raster values.
+     * @param maxIterations maximum number of red-black sweeps to do.
+     * @return number of iterations used.
+     */
+    public int diffuse(Raster source, float diffusion, float deltaTime, float cellSizeMeter, int b, float omega, float tolerance, int maxIterations) {
+        checkSizeMatches(source);
+        checkRelaxationFactor(omega);
+
+        final float a = diffusionRate(diffusion, deltaTime, cellSizeMeter);
+        final float c = 1 + 4 * a;
+        final float relaxation = omega > 0 ? omega : optimalDiffusionOmega(a, w, h);
+
+        // The source is close to the result for small diffusion rates
+        final long startTime = Instrumentation.start();
+        copyFrom(source);
+
+        int iteration = 0;
+        while (iteration < maxIterations) {
+            float residual = relaxRedBlackRows(source, a, c, relaxation, 0, 1, h - 1);
+            setBoundaries(b);
+            residual = Math.max(residual, relaxRedBlackRows(source, a, c, relaxation, 1, 1, h - 1));
+            setBoundaries(b);
+            iteration++;
+
+            if (residual <= tolerance) break;
         }
+        markChanged(0, 0, w, h);
+        Instrumentation.stop(Instrumentation.DIFFUSE, startTime);
+
+        return iteration;
+    }
+
+    static void checkRelaxationFactor(float omega) {
+        if (omega < 0 || omega >= 2) throw new IllegalArgumentException("The relaxation factor should be in the range 0 until 2, but was " + omega);
+    }
+
+    /**
+     * @return the relaxation factor giving the fastest convergence when diffusing with the specified rate
+     *         (as calculated by diffusionRate) on a grid of the specified size.
+     */
+    public static float optimalDiffusionOmega(float diffusionRate, int w, int h) {
+        // Spectral radius of the Jacobi iteration for the diffusion equation
+        final double jacobiRadius = 4.0 * diffusionRate / (1.0 + 4.0 * diffusionRate) * Math.cos(Math.PI / Math.max(w, h));
+        return (float) (2.0 / (1.0 + Math.sqrt(1.0 - jacobiRadius * jacobiRadius)));
+    }
 
-        set(0,   0,   (get(1,   0  ) + get(0,   1  )) / 2f);
-        set(0,   h-1, (get(1,   h-1) + get(0,   h-2)) / 2f);
-        set(w-1, 0,   (get(w-2,   0) + get(w-1, 1  )) / 2f);
-        set(w-1, h-1, (get(1,   h-1) + get(0,   h-2)) / 2f);
+    public void setBoundaries(int b) {
+        setBoundaryRows(b, 1, w - 1);
+        setBoundaryColumns(b, 1, h - 1);
+        setBoundaryCorners();
     }
 
     public void diffuseStep(Raster source, float diffusion, float deltaTime, float cellSizeMeter) {
         checkSizeMatches(source);
 
-        float cellsPerMeter = 1f / cellSizeMeter;
-        float a = deltaTime * diffusion * cellsPerMeter * cellsPerMeter;
+        diffuseRows(source, diffusionRate(diffusion, deltaTime, cellSizeMeter), 1, h - 1);
+        markChanged(0, 0, w, h);
+    }
 
-        final float[] sourceData = source.data;
+    /**
+     * Like diffuseStep(), but only processes the active tiles and records their changes.
+     * Call activeTiles.endStep() after all operations of the simulation step.
+     */
+    public void diffuseStep(final Raster source, float diffusion, float deltaTime, float cellSizeMeter, ActiveTiles activeTiles) {
+        checkSizeMatches(source);
+        checkSizeMatches(activeTiles);
 
-        for (int y = 1; y < h-1; y++) {
-            for (int x = 1; x < w-1; x++) {
-                data[x+y*w] = (sourceData[x + y*w] +
-                             a * (sourceData[x+1 + y*w] +
-                                  sourceData[x-1 + y*w] +
-                                  sourceData[x + (y+1)*w] +
-                                  sourceData[x + (y-1)*w]))
-                            / (1 + 4 * a);
+        final float a = diffusionRate(diffusion, deltaTime, cellSizeMeter);
+        activeTiles.processTileRows(0, activeTiles.getTilesY(), 1, new ActiveTiles.AreaTask() {
+            @Override public float processArea(int x0, int x1, int y0, int y1) {
+                return diffuseArea(source, a, x0, x1, y0, y1);
             }
-        }
+        });
+        markActiveTilesChanged(activeTiles);
     }
 
     public void advect(int b, Raster source, Raster xVel, Raster yVel, float deltaTime, float cellSizeMeter) {
@@ -144,22 +419,227 @@ public final class Raster {
         checkSizeMatches(xVel);
         checkSizeMatches(yVel);
 
-        float cellsPerMeter = 1f / cellSizeMeter;
-        float dt0 = deltaTime * cellsPerMeter;
+        final long startTime = Instrumentation.start();
+        advectRows(source, xVel, yVel, deltaTime * (1f / cellSizeMeter), 1, h - 1);
+        markChanged(0, 0, w, h);
 
-        for (int y = 1; y < h - 1; y++) {
-            for (int x = 1; x < w - 1; x++) {
-                float xSource = x - dt0 * xVel.get(x, y);
-                float ySource = y - dt0 * yVel.get(x, y);
+        setBoundaries(b);
+        Instrumentation.stop(Instrumentation.ADVECT, startTime);
+    }
 
-                clamp(xSource, 0.5f, w - 0.5f);
-                clamp(ySource, 0.5f, h - 0.5f);
+    /**
+     * Like advect(), but only processes the active tiles and records their changes.
+     * Call activeTiles.endStep() after all operations of the simulation step.
+     */
+    public void advect(int b, final Raster source, final Raster xVel, final Raster yVel, float deltaTime, float cellSizeMeter, ActiveTiles activeTiles) {
+        checkSizeMatches(source);
+        checkSizeMatches(xVel);
+        checkSizeMatches(yVel);
+        checkSizeMatches(activeTiles);
 
-                data[x + y * w] = source.getInterpolated(xSource, ySource);
+        final long startTime = Instrumentation.start();
+        final float dt0 = deltaTime * (1f / cellSizeMeter);
+        activeTiles.processTileRows(0, activeTiles.getTilesY(), 1, new ActiveTiles.AreaTask() {
+            @Override public float processArea(int x0, int x1, int y0, int y1) {
+                return advectArea(source, xVel, yVel, dt0, x0, x1, y0, y1);
             }
-        }
+        });
+        markActiveTilesChanged(activeTiles);
 
         setBoundaries(b);
+        Instrumentation.stop(Instrumentation.ADVECT, startTime);
+    }
+
+    /**
+     * Adds the scaled source to the backing array cells from fromIndex (inclusive) to toIndex (exclusive).
+     */
+    void addRange(Raster source, float scale, float offset, int fromIndex, int toIndex) {
+        RasterKernels.get().add(data, source.data, scale, offset, fromIndex, toIndex);
+    }
+
+    /**
+     * Marks the cells changed by adding a source: all of them if the offset is not zero, otherwise the span of the
+     * cells in each row where the source is not zero.
+     */
+    void markAdded(Raster source, float offset) {
+        if (activeTiles == null && pyramid == null && changedTiles == null) return;
+
+        if (offset != 0) {
+            markChanged(0, 0, w, h);
+            return;
+        }
+
+        final float[] sourceData = source.data;
+        for (int y = 0; y < h; y++) {
+            final int row = origin + y * stride;
+            int x0 = 0;
+            while (x0 < w && sourceData[row + x0] == 0) x0++;
+            if (x0 == w) continue;
+
+            int x1 = w;
+            while (sourceData[row + x1 - 1] == 0) x1--;
+            markChanged(x0, y, x1, y + 1);
+        }
+    }
+
+    /**
+     * Marks the tiles that a sparse operation processed, which are the active tiles of the tracker, as changed.
+     * The tracker itself records the changes of the operation, and is not woken.
+     */
+    void markActiveTilesChanged(ActiveTiles tracker) {
+        final ActiveTiles woken = activeTiles != tracker ? activeTiles : null;
+        if (woken == null && pyramid == null && changedTiles == null) return;
+
+        final int tileSize = tracker.getTileSize();
+        for (int ty = 0; ty < tracker.getTilesY(); ty++) {
+            for (int tx = 0; tx < tracker.getTilesX(); tx++) {
+                if (!tracker.isActive(tx, ty)) continue;
+
+                final int x0 = tx * tileSize;
+                final int y0 = ty * tileSize;
+                if (woken != null) woken.wakeArea(x0, y0, x0 + tileSize, y0 + tileSize);
+                if (pyramid != null) pyramid.markDirty(x0, y0, x0 + tileSize, y0 + tileSize);
+                if (changedTiles != null) changedTiles.markChanged(x0, y0, x0 + tileSize, y0 + tileSize);
+            }
+        }
+    }
+
+    /**
+     * Mirrors the top and bottom edge cells from x0 (inclusive) to x1 (exclusive).
+     */
+    void setBoundaryRows(int b, int x0, int x1) {
+        final int top = origin;
+        final int bottom = origin + (h - 1) * stride;
+        final float sign = b==2 ? -1 : 1;
+        markEdgeChanges(x0, 0,     1, 0, x1 - x0, stride,  sign);
+        markEdgeChanges(x0, h - 1, 1, 0, x1 - x0, -stride, sign);
+
+        final RasterKernels kernels = RasterKernels.get();
+        kernels.scaleCopy(data, top + x0,    data, top + x0 + stride,    x1 - x0, sign);
+        kernels.scaleCopy(data, bottom + x0, data, bottom + x0 - stride, x1 - x0, sign);
+    }
+
+    /**
+     * Mirrors the left and right edge cells from y0 (inclusive) to y1 (exclusive).
+     */
+    void setBoundaryColumns(int b, int y0, int y1) {
+        markEdgeChanges(0,     y0, 0, 1, y1 - y0, 1,  b==1 ? -1 : 1);
+        markEdgeChanges(w - 1, y0, 0, 1, y1 - y0, -1, b==1 ? -1 : 1);
+
+        for (int y = y0; y < y1; y++) {
+            final int row = origin + y * stride;
+            data[row]         = (b==1 ? -1 : 1) * data[row + 1];
+            data[row + w - 1] = (b==1 ? -1 : 1) * data[row + w - 2];
+        }
+    }
+
+    /**
+     * Sets the corners to the average of their neighbours, after the edges have been set.
+     */
+    void setBoundaryCorners() {
+        setCorner(0,   0,   (get(1,   0  ) + get(0,   1  )) / 2f);
+        setCorner(0,   h-1, (get(1,   h-1) + get(0,   h-2)) / 2f);
+        setCorner(w-1, 0,   (get(w-2,   0) + get(w-1, 1  )) / 2f);
+        setCorner(w-1, h-1, (get(w-2, h-1) + get(w-1, h-2)) / 2f);
+    }
+
+    private void setCorner(int x, int y, float v) {
+        // Unchanged corners are not marked, so that they do not wake quiet tiles
+        if (get(x, y) != v) setUnchecked(x, y, v);
+    }
+
+    /**
+     * Marks the edge cells that setting them to the scaled cells at the offset will change, for count cells starting
+     * at x, y and stepping by dx, dy.
+     */
+    private void markEdgeChanges(int x, int y, int dx, int dy, int count, int offset, float sign) {
+        if (activeTiles == null && pyramid == null && changedTiles == null) return;
+
+        final int step = dx + dy * stride;
+        int first = -1;
+        int last = -1;
+        int i = origin + x + y * stride;
+        for (int k = 0; k < count; k++, i += step) {
+            // Also true for NaN
+            if (data[i] != sign * data[i + offset]) {
+                if (first < 0) first = k;
+                last = k;
+            }
+        }
+        if (first >= 0) markChanged(x + first * dx, y + first * dy, x + last * dx + 1, y + last * dy + 1);
+    }
+
+    /**
+     * Diffuses the interior rows from y0 (inclusive) to y1 (exclusive), which must lie within 1 and h-1.
+     */
+    void diffuseRows(Raster source, float a, int y0, int y1) {
+        final float divisor = 1 + 4 * a;
+
+        final RasterKernels kernels = RasterKernels.get();
+        for (int y = y0; y < y1; y++) {
+            kernels.diffuseRow(data, source.data, origin + 1 + y * stride, w - 2, stride, a, divisor);
+        }
+    }
+
+    /**
+     * Diffuses the interior area from x0, y0 (inclusive) to x1, y1 (exclusive), which must lie within 1 and w-1, h-1.
+     * @return the largest absolute change of a cell from the source.
+     */
+    float diffuseArea(Raster source, float a, int x0, int x1, int y0, int y1) {
+        final float divisor = 1 + 4 * a;
+        final float[] sourceData = source.data;
+
+        final RasterKernels kernels = RasterKernels.get();
+        float maxChange = 0;
+        for (int y = y0; y < y1; y++) {
+            final int row = origin + x0 + y * stride;
+            kernels.diffuseRow(data, sourceData, row, x1 - x0, stride, a, divisor);
+            for (int i = row; i < row + x1 - x0; i++) {
+                maxChange = Math.max(maxChange, Math.abs(data[i] - sourceData[i]));
+            }
+        }
+        return maxChange;
+    }
+
+    /**
+     * Advects the interior rows from y0 (inclusive) to y1 (exclusive), which must lie within 1 and h-1.
+     * @param dt0 time step in cells per velocity unit.
+     */
+    void advectRows(Raster source, Raster xVel, Raster yVel, float dt0, int y0, int y1) {
+        advectArea(source, xVel, yVel, dt0, 1, w - 1, y0, y1);
+    }
+
+    /**
+     * Advects the interior area from x0, y0 (inclusive) to x1, y1 (exclusive), which must lie within 1 and w-1, h-1.
+     * @param dt0 time step in cells per velocity unit.
+     * @return the largest absolute change of a cell from the source.
+     */
+    float advectArea(Raster source, Raster xVel, Raster yVel, float dt0, int x0, int x1, int y0, int y1) {
+        final float[] xVelData = xVel.data;
+        final float[] yVelData = yVel.data;
+        final float[] sourceData = source.data;
+
+        float maxChange = 0;
+        for (int y = y0; y < y1; y++) {
+            int i = origin + x0 + y * stride;
+            for (int x = x0; x < x1; x++, i++) {
+                // Keep the sampled cells within the raster, as the edges are set by the boundaries and not the halo
+                final float xSource = clamp(x - dt0 * xVelData[i], 0.5f, w - 1.5f);
+                final float ySource = clamp(y - dt0 * yVelData[i], 0.5f, h - 1.5f);
+
+                data[i] = source.getInterpolated(xSource, ySource);
+                maxChange = Math.max(maxChange, Math.abs(data[i] - sourceData[i]));
+            }
+        }
+        return maxChange;
+    }
+
+    /**
+     * @return the diffusion per time step, relative to the cell size.
+     */
+    public static float diffusionRate(float diffusion, float deltaTime, float cellSizeMeter) {
+        float cellsPerMeter = 1f / cellSizeMeter;
+        return deltaTime * diffusion * cellsPerMeter * cellsPerMeter;
     }
 
     public void densitySimulationStep(Raster previousDensity, Raster xVelocity, Raster yVelocity, float diffusion, float deltaTimeSeconds, float cellSizeMeter) {
@@ -169,28 +649,188 @@ public final class Raster {
     }
 
     public static void velocityStep(Raster xVel, Raster yVel, Raster prevXVel, Raster prevYVel, Raster xForce, Raster yForce, float viscosity, float deltaTimeSeconds, float cellSizeMeter) {
+        velocityStep(xVel, yVel, prevXVel, prevYVel, xForce, yForce, viscosity, deltaTimeSeconds, cellSizeMeter, new RedBlackSorPressureSolver());
+    }
+
+    /**
+     * Adds the forces to the velocity, diffuses it, and advects it along itself, keeping it divergence free.
+     * The resulting velocity is left in xVel and yVel, the previous velocity rasters are used as scratch space.
+     */
+    public static void velocityStep(Raster xVel, Raster yVel, Raster prevXVel, Raster prevYVel, Raster xForce, Raster yForce, float viscosity, float deltaTimeSeconds, float cellSizeMeter, PressureSolver pressureSolver) {
         xVel.add(xForce, deltaTimeSeconds, 0);
         yVel.add(yForce, deltaTimeSeconds, 0);
 
         prevXVel.diffuse(xVel, viscosity, deltaTimeSeconds, cellSizeMeter, 1);
         prevYVel.diffuse(yVel, viscosity, deltaTimeSeconds, cellSizeMeter, 2);
 
+        // Make the diffused velocity mass conserving, so that the advection is well behaved
+        project(prevXVel, prevYVel, xVel, yVel, cellSizeMeter, pressureSolver);
 
+        xVel.advect(1, prevXVel, prevXVel, prevYVel, deltaTimeSeconds, cellSizeMeter);
+        yVel.advect(2, prevYVel, prevXVel, prevYVel, deltaTimeSeconds, cellSizeMeter);
 
-        // TODO
+        project(xVel, yVel, prevXVel, prevYVel, cellSizeMeter, pressureSolver);
     }
 
     public static void project(Raster xVel, Raster yVel, Raster p, Raster div, float cellSizeMeter) {
-        
+        project(xVel, yVel, p, div, cellSizeMeter, new RedBlackSorPressureSolver());
+    }
+
+    /**
+     * Removes the divergence from the velocity field, by solving for the pressure and subtracting its gradient.
+     * @param p scratch raster for the pressure.
+     * @param div scratch raster for the divergence.
+     */
+    public static void project(Raster xVel, Raster yVel, Raster p, Raster div, float cellSizeMeter, PressureSolver pressureSolver) {
+        xVel.checkSizeMatches(yVel);
+        xVel.checkSizeMatches(p);
+        xVel.checkSizeMatches(div);
+
+        final long startTime = Instrumentation.start();
+        div.divergence(xVel, yVel, cellSizeMeter);
+
+        p.fill(0);
+        pressureSolver.solve(p, div);
+
+        xVel.subtractGradientRows(p, 0.5f / cellSizeMeter, 1, 1, xVel.h - 1);
+        yVel.subtractGradientRows(p, 0.5f / cellSizeMeter, xVel.stride, 1, xVel.h - 1);
+        xVel.markChanged(0, 0, xVel.w, xVel.h);
+        yVel.markChanged(0, 0, yVel.w, yVel.h);
+        xVel.setBoundaries(1);
+        yVel.setBoundaries(2);
+        Instrumentation.stop(Instrumentation.PROJECT, startTime);
+    }
+
+    public void fill(float v) {
+        Arrays.fill(data, v);
+        if (activeTiles != null) activeTiles.wakeAll();
+        if (pyramid != null) pyramid.markAllDirty();
+        if (changedTiles != null) changedTiles.markAllChanged();
+    }
+
+    /**
+     * Sets this raster to the divergence of the velocity field, scaled for use as the right hand side of the pressure
+     * equation.  The mean is removed, as the pressure equation with closed edges only has a solution when it is zero.
+     */
+    public void divergence(Raster xVel, Raster yVel, float cellSizeMeter) {
+        checkSizeMatches(xVel);
+        checkSizeMatches(yVel);
+
+        final float[] xVelData = xVel.data;
+        final float[] yVelData = yVel.data;
+        final float scale = -0.5f * cellSizeMeter;
+
+        double sum = 0;
+        for (int y = 1; y < h - 1; y++) {
+            final int rowStart = origin + 1 + y * stride;
+            final int rowEnd = rowStart + w - 2;
+            for (int i = rowStart; i < rowEnd; i++) {
+                final float d = scale * (xVelData[i + 1] - xVelData[i - 1] +
+                                         yVelData[i + stride] - yVelData[i - stride]);
+                data[i] = d;
+                sum += d;
+            }
+        }
+
+        final float mean = (float) (sum / ((w - 2) * (h - 2)));
+        for (int y = 1; y < h - 1; y++) {
+            final int rowStart = origin + 1 + y * stride;
+            final int rowEnd = rowStart + w - 2;
+            for (int i = rowStart; i < rowEnd; i++) {
+                data[i] -= mean;
+            }
+        }
+        markChanged(0, 0, w, h);
+
+        setBoundaries(0);
+    }
+
+    /**
+     * Subtracts the central difference of p along the axis given by the array offset between neighbours.
+     */
+    void subtractGradientRows(Raster p, float scale, int offset, int y0, int y1) {
+        final float[] pData = p.data;
+        for (int y = y0; y < y1; y++) {
+            final int rowStart = origin + 1 + y * stride;
+            final int rowEnd = rowStart + w - 2;
+            for (int i = rowStart; i < rowEnd; i++) {
+                data[i] -= scale * (pData[i + offset] - pData[i - offset]);
+            }
+        }
+    }
 
+    /**
+     * One Jacobi iteration of c * x - a * (sum of neighbours of x) = rhs over the interior rows from y0 to y1,
+     * reading x from previous and writing it to this raster.
+     * @return the largest residual of previous on the processed rows.
+     */
+    float relaxJacobiRows(Raster previous, Raster rhs, float a, float c, int y0, int y1) {
+        final float[] x = previous.data;
+        final float[] b = rhs.data;
+
+        float maxResidual = 0;
+        for (int y = y0; y < y1; y++) {
+            final int rowStart = origin + 1 + y * stride;
+            final int rowEnd = rowStart + w - 2;
+            for (int i = rowStart; i < rowEnd; i++) {
+                final float v = (b[i] + a * (x[i + 1] + x[i - 1] + x[i + stride] + x[i - stride])) / c;
+                maxResidual = Math.max(maxResidual, Math.abs(v - x[i]));
+                data[i] = v;
+            }
+        }
+        return maxResidual * c;
+    }
 
+    /**
+     * Over-relaxes the cells of one colour of a checkerboard towards the solution of
+     * c * x - a * (sum of neighbours of x) = rhs, over the interior rows from y0 to y1.
+     * As the neighbours of a cell have the other colour, the rows can be processed in any order.
+     * @param parity 0 to relax the cells where x + y is even, 1 for the cells where it is odd.
+     * @return the largest residual of the relaxed cells before relaxing them.
+     */
+    float relaxRedBlackRows(Raster rhs, float a, float c, float omega, int parity, int y0, int y1) {
+        final float[] b = rhs.data;
+
+        float maxResidual = 0;
+        for (int y = y0; y < y1; y++) {
+            final int rowStart = origin + y * stride;
+            final int rowEnd = rowStart + w - 1;
+            for (int i = rowStart + 1 + ((y + 1 + parity) & 1); i < rowEnd; i += 2) {
+                final float delta = (b[i] + a * (data[i + 1] + data[i - 1] + data[i + stride] + data[i - stride])) / c - data[i];
+                maxResidual = Math.max(maxResidual, Math.abs(delta));
+                data[i] += omega * delta;
+            }
+        }
+        return maxResidual * c;
     }
 
+    /**
+     * @return the largest residual of c * x - a * (sum of neighbours of x) = rhs over the interior rows from y0 to y1.
+     */
+    float residualRows(Raster rhs, float a, float c, int y0, int y1) {
+        final float[] b = rhs.data;
+
+        float maxResidual = 0;
+        for (int y = y0; y < y1; y++) {
+            final int rowStart = origin + 1 + y * stride;
+            final int rowEnd = rowStart + w - 2;
+            for (int i = rowStart; i < rowEnd; i++) {
+                final float r = b[i] - (c * data[i] - a * (data[i + 1] + data[i - 1] + data[i + stride] + data[i - stride]));
+                maxResidual = Math.max(maxResidual, Math.abs(r));
+            }
+        }
+        return maxResidual;
+    }
 
+    void checkSizeMatches(ActiveTiles activeTiles) {
+        Check.equal(activeTiles.getW(), "active tiles width", w, "raster width");
+        Check.equal(activeTiles.getH(), "active tiles height", h, "raster height");
+    }
 
-    private void checkSizeMatches(Raster source) {
+    void checkSizeMatches(Raster source) {
         Check.equal(source.w, "source width", w, "target width");
         Check.equal(source.h, "source height", h, "target height");
+        Check.equal(source.halo, "source halo", halo, "target halo");
     }
 
 
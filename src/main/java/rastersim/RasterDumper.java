@@ -0,0 +1,63 @@
+package rastersim;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes rasters to files in the portable float map (PFM) format, which many image tools can read.
+ */
+public final class RasterDumper {
+
+    private final File directory;
+
+    public RasterDumper(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Writes the raster to a file named after the raster and the step.
+     * @return the written file.
+     */
+    public File dump(FloatGrid raster, String name, long step) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the directory " + directory.getPath());
+        }
+
+        final File file = new File(directory, String.format("%s_%08d.pfm", name, step));
+        write(raster, file);
+        return file;
+    }
+
+    /**
+     * Writes the raster to the specified file in the PFM format.
+     */
+    public static void write(FloatGrid raster, File file) throws IOException {
+        final int w = raster.getW();
+        final int h = raster.getH();
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            // Negative scale indicates little endian data
+            out.write(("Pf\n" + w + " " + h + "\n-1.0\n").getBytes(StandardCharsets.US_ASCII));
+
+            // Rows are stored from the bottom up
+            final ByteBuffer row = ByteBuffer.allocate(w * 4).order(ByteOrder.LITTLE_ENDIAN);
+            final float[] values = new float[w];
+            for (int y = h - 1; y >= 0; y--) {
+                raster.readRow(y, values, 0);
+                row.clear();
+                row.asFloatBuffer().put(values);
+                out.write(row.array());
+            }
+        }
+    }
+}
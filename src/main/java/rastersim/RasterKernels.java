@@ -0,0 +1,107 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+/**
+ * Inner loops of the raster operations, working on rows of the raw raster arrays.
+ *
+ * There is a scalar implementation that always works, and a vectorized implementation using the incubating Java
+ * Vector API, which is only available when it was compiled in (the "vector" Maven profile) and the JVM is started
+ * with --add-modules jdk.incubator.vector.  The implementation is picked at startup from the rastersim.kernels system
+ * property: "scalar", "vector", or "auto" (the default) to use the vectorized one when it is supported.
+ *
+ * Both implementations do the same floating point operations in the same order for each cell.
+ */
+public abstract class RasterKernels {
+
+    private static final String VECTOR_KERNELS_CLASS = "rastersim.VectorRasterKernels";
+
+    private static final RasterKernels SCALAR = new ScalarRasterKernels();
+    private static final RasterKernels VECTOR = loadVectorKernels();
+
+    private static volatile RasterKernels active = select(System.getProperty("rastersim.kernels", "auto"));
+
+    /**
+     * @return the kernels used by the raster operations.
+     */
+    public static RasterKernels get() {
+        return active;
+    }
+
+    public static void set(RasterKernels kernels) {
+        Check.notNull(kernels, "kernels");
+        active = kernels;
+    }
+
+    public static RasterKernels scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * @return the vectorized kernels, or null if they are not available on this JVM.
+     */
+    public static RasterKernels vector() {
+        return VECTOR;
+    }
+
+    private static RasterKernels select(String mode) {
+        if (mode.equals("scalar")) return SCALAR;
+        else if (mode.equals("vector")) {
+            if (VECTOR == null) throw new IllegalStateException("Vectorized raster kernels requested, but they are not available.  " +
+                                                                "They need to be compiled with the vector profile and run with --add-modules jdk.incubator.vector");
+            return VECTOR;
+        }
+        else if (mode.equals("auto")) return VECTOR != null ? VECTOR : SCALAR;
+        else throw new IllegalArgumentException("Unknown raster kernels '" + mode + "', expected scalar, vector or auto");
+    }
+
+    private static RasterKernels loadVectorKernels() {
+        try {
+            final RasterKernels kernels = (RasterKernels) Class.forName(VECTOR_KERNELS_CLASS).getDeclaredConstructor().newInstance();
+            return kernels.isSupported() ? kernels : null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not compiled in, or the vector module is not available
+            return null;
+        }
+    }
+
+    public abstract String getName();
+
+    /**
+     * @return true if the kernels can run efficiently on this machine.
+     */
+    protected abstract boolean isSupported();
+
+    /**
+     * target[i] += source[i] * scale + offset for the cells from fromIndex (inclusive) to toIndex (exclusive).
+     */
+    public abstract void add(float[] target, float[] source, float scale, float offset, int fromIndex, int toIndex);
+
+    /**
+     * target[i] = source[i] * scale for length cells.
+     */
+    public abstract void scaleCopy(float[] target, int targetStart, float[] source, int sourceStart, int length, float scale);
+
+    /**
+     * One diffusion step for length cells of a row, with the 5-point stencil:
+     * target[i] = (source[i] + a * (right + left + down + up)) / divisor.
+     */
+    public abstract void diffuseRow(float[] target, float[] source, int rowStart, int length, int stride, float a, float divisor);
+
+    /**
+     * The weighted sum of five neighbours for length cells of a row, as in the first pass of a StencilRule:
+     * sum[x] = (source[i + offsets[0]] * weights[0] + ... + source[i + offsets[4]] * weights[4]) / divisor,
+     * where i = row + x.
+     */
+    public abstract void weightedSumRow(float[] sum, float[] source, int row, int length, int[] offsets, float[] weights, float divisor);
+
+    /**
+     * target[i] = HalfFloat.toFloat(source[i]) for length cells.
+     */
+    public abstract void halfToFloat(float[] target, int targetStart, short[] source, int sourceStart, int length);
+
+    /**
+     * target[i] = HalfFloat.fromFloat(source[i]) for length cells.
+     */
+    public abstract void floatToHalf(short[] target, int targetStart, float[] source, int sourceStart, int length);
+}
@@ -0,0 +1,75 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps released rasters for reuse, so that simulations created one after another do not each allocate new rasters.
+ * Thread safe.
+ */
+public final class RasterPool {
+
+    private final Map<String, Queue<Raster>> freeRasters = new ConcurrentHashMap<String, Queue<Raster>>();
+    private final AtomicLong createdRasters = new AtomicLong();
+    private final AtomicLong reusedRasters = new AtomicLong();
+
+    /**
+     * @return a released raster of the specified size, edge mode and halo with all cells set to zero,
+     *         or a new one if none is available.
+     */
+    public Raster acquire(int w, int h, EdgeMode edgeMode, int halo) {
+        final Raster raster = queue(w, h, edgeMode, halo).poll();
+        if (raster == null) {
+            createdRasters.incrementAndGet();
+            return new Raster(w, h, edgeMode, halo);
+        }
+
+        reusedRasters.incrementAndGet();
+        raster.setActiveTiles(null);
+        raster.setChangedTiles(null);
+        raster.removePyramid();
+        raster.fill(0);
+        return raster;
+    }
+
+    public Raster acquire(int w, int h, EdgeMode edgeMode) {
+        return acquire(w, h, edgeMode, Raster.DEFAULT_HALO);
+    }
+
+    /**
+     * Returns a raster to the pool.  It must not be used by the caller afterwards.
+     */
+    public void release(Raster raster) {
+        Check.notNull(raster, "raster");
+        queue(raster.getW(), raster.getH(), raster.getEdgeMode(), raster.getHalo()).add(raster);
+    }
+
+    /**
+     * @return number of rasters allocated by acquire() because no released one was available.
+     */
+    public long getCreatedRasters() {
+        return createdRasters.get();
+    }
+
+    /**
+     * @return number of released rasters handed out again by acquire().
+     */
+    public long getReusedRasters() {
+        return reusedRasters.get();
+    }
+
+    private Queue<Raster> queue(int w, int h, EdgeMode edgeMode, int halo) {
+        final String key = w + "x" + h + " " + edgeMode + " " + halo;
+        Queue<Raster> queue = freeRasters.get(key);
+        if (queue == null) {
+            freeRasters.putIfAbsent(key, new ConcurrentLinkedQueue<Raster>());
+            queue = freeRasters.get(key);
+        }
+        return queue;
+    }
+}
@@ -0,0 +1,241 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.util.Arrays;
+
+/**
+ * Coarser versions of a raster, each level half the size of the one below it, for rendering zoomed out views and
+ * sampling at a coarse scale without reading every cell.  Level 0 is the raster itself.
+ *
+ * The pyramid is kept up to date incrementally: every operation writing to the raster marks the tiles it writes to as
+ * dirty, and update() recomputes only the cells of the coarser levels above dirty tiles.  Created with Raster.createPyramid().
+ * Writes and updates should not be done at the same time from different threads.
+ */
+public final class RasterPyramid {
+
+    /**
+     * How each cell of a level is computed from the 2x2 block of cells below it.
+     */
+    public enum Reduction {
+        /**
+         * Average of the block, for showing the raster zoomed out.
+         */
+        MEAN,
+
+        /**
+         * Largest value of the block, so that small peaks remain visible in the coarser levels.
+         */
+        MAX
+    }
+
+    /**
+     * Size of the squares that dirty cells are tracked in, in the cells of each level.  Must be even.
+     */
+    private static final int TILE_SIZE = 64;
+
+    private final Raster base;
+    private final Reduction reduction;
+    private final Raster[] levels;
+
+    // Dirty tiles of each level except the coarsest, which the level above it has not been updated from
+    private final boolean[][] dirtyTiles;
+    private final int[] tilesX;
+    private boolean dirty;
+
+    RasterPyramid(Raster base, Reduction reduction) {
+        Check.notNull(base, "base");
+        Check.notNull(reduction, "reduction");
+
+        this.base = base;
+        this.reduction = reduction;
+
+        int levelCount = 1;
+        for (int w = base.getW(), h = base.getH(); w > 1 || h > 1; w = (w + 1) / 2, h = (h + 1) / 2) {
+            levelCount++;
+        }
+
+        levels = new Raster[levelCount];
+        dirtyTiles = new boolean[levelCount - 1][];
+        tilesX = new int[levelCount];
+        levels[0] = base;
+        for (int level = 0; level < levelCount; level++) {
+            if (level > 0) {
+                final Raster below = levels[level - 1];
+                levels[level] = new Raster((below.getW() + 1) / 2, (below.getH() + 1) / 2, base.getEdgeMode());
+            }
+
+            tilesX[level] = (levels[level].getW() + TILE_SIZE - 1) / TILE_SIZE;
+            if (level < levelCount - 1) {
+                final int tilesY = (levels[level].getH() + TILE_SIZE - 1) / TILE_SIZE;
+                dirtyTiles[level] = new boolean[tilesX[level] * tilesY];
+            }
+        }
+
+        markAllDirty();
+    }
+
+    public Raster getBase() {
+        return base;
+    }
+
+    public Reduction getReduction() {
+        return reduction;
+    }
+
+    /**
+     * @return number of levels including the base raster, down to a level of a single cell.
+     */
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /**
+     * @return the raster of the specified level, as of the last update().  Level 0 is the base raster.
+     */
+    public Raster getLevel(int level) {
+        return levels[level];
+    }
+
+    /**
+     * @return the coarsest level that still has at least the specified number of cells in both directions,
+     *         such as the level matching the size of an image the raster is shown in.
+     */
+    public int levelForSize(int w, int h) {
+        int level = 0;
+        while (level < levels.length - 1 && levels[level + 1].getW() >= w && levels[level + 1].getH() >= h) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Marks the base raster cell as changed.
+     */
+    public void markDirty(int x, int y) {
+        if (x >= 0 && x < base.getW() && y >= 0 && y < base.getH() && dirtyTiles.length > 0) {
+            dirtyTiles[0][x / TILE_SIZE + (y / TILE_SIZE) * tilesX[0]] = true;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Marks the base raster cells from x0, y0 (inclusive) to x1, y1 (exclusive) as changed, clipped to the raster.
+     */
+    public void markDirty(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+        x1 = Math.min(base.getW(), x1);
+        y1 = Math.min(base.getH(), y1);
+        if (x0 >= x1 || y0 >= y1 || dirtyTiles.length == 0) return;
+
+        for (int ty = y0 / TILE_SIZE; ty <= (y1 - 1) / TILE_SIZE; ty++) {
+            Arrays.fill(dirtyTiles[0], x0 / TILE_SIZE + ty * tilesX[0], (x1 - 1) / TILE_SIZE + 1 + ty * tilesX[0], true);
+        }
+        dirty = true;
+    }
+
+    public void markAllDirty() {
+        if (dirtyTiles.length == 0) return;
+
+        Arrays.fill(dirtyTiles[0], true);
+        dirty = true;
+    }
+
+    /**
+     * Recomputes the cells of the coarser levels that lie above the dirty tiles.
+     */
+    public void update() {
+        if (!dirty) return;
+
+        for (int level = 1; level < levels.length; level++) {
+            final boolean[] dirtyBelow = dirtyTiles[level - 1];
+            final int tilesXBelow = tilesX[level - 1];
+            final Raster below = levels[level - 1];
+            final Raster target = levels[level];
+
+            for (int tile = 0; tile < dirtyBelow.length; tile++) {
+                if (!dirtyBelow[tile]) continue;
+                dirtyBelow[tile] = false;
+
+                // The tile below covers half as many cells in this level, rounded up at the far edges
+                final int tx = tile % tilesXBelow;
+                final int ty = tile / tilesXBelow;
+                final int x0 = tx * TILE_SIZE / 2;
+                final int y0 = ty * TILE_SIZE / 2;
+                final int x1 = Math.min(target.getW(), (tx + 1) * TILE_SIZE / 2);
+                final int y1 = Math.min(target.getH(), (ty + 1) * TILE_SIZE / 2);
+                reduce(below, target, x0, y0, x1, y1);
+
+                if (level < levels.length - 1) {
+                    dirtyTiles[level][tx / 2 + (ty / 2) * tilesX[level]] = true;
+                }
+            }
+            target.updateHalo();
+        }
+
+        dirty = false;
+    }
+
+    /**
+     * @return the interpolated value at the base raster location at the specified level, after updating the pyramid
+     *         if needed.  The cell centers of the coarser levels lie between the base cells they cover.
+     */
+    public float sample(float x, float y, int level) {
+        update();
+
+        if (level == 0) return base.getInterpolated(x, y);
+
+        final float scale = 1f / (1 << level);
+        return levels[level].getInterpolated((x + 0.5f) * scale - 0.5f, (y + 0.5f) * scale - 0.5f);
+    }
+
+    /**
+     * Computes the cells from x0, y0 (inclusive) to x1, y1 (exclusive) of the target level from the level below it.
+     */
+    private void reduce(Raster below, Raster target, int x0, int y0, int x1, int y1) {
+        final float[] source = below.getData();
+        final float[] data = target.getData();
+        final int belowW = below.getW();
+        final int belowH = below.getH();
+        final int belowStride = below.getStride();
+
+        for (int y = y0; y < y1; y++) {
+            final boolean fullHeight = 2 * y + 1 < belowH;
+            int i = target.rawIndex(x0, y);
+            int s = below.rawIndex(2 * x0, 2 * y);
+            for (int x = x0; x < x1; x++, i++, s += 2) {
+                if (fullHeight && 2 * x + 1 < belowW) {
+                    if (reduction == Reduction.MAX) {
+                        data[i] = Math.max(Math.max(source[s], source[s + 1]),
+                                           Math.max(source[s + belowStride], source[s + belowStride + 1]));
+                    }
+                    else {
+                        data[i] = (source[s] + source[s + 1] + source[s + belowStride] + source[s + belowStride + 1]) * 0.25f;
+                    }
+                }
+                else {
+                    // Partial block at the right or bottom edge of an odd sized level
+                    data[i] = reducePartial(source, s, belowStride, 2 * x + 1 < belowW, fullHeight);
+                }
+            }
+        }
+    }
+
+    private float reducePartial(float[] source, int s, int stride, boolean hasRight, boolean hasBottom) {
+        float max = source[s];
+        float sum = source[s];
+        int count = 1;
+        if (hasRight) {
+            max = Math.max(max, source[s + 1]);
+            sum += source[s + 1];
+            count++;
+        }
+        if (hasBottom) {
+            max = Math.max(max, source[s + stride]);
+            sum += source[s + stride];
+            count++;
+        }
+        return reduction == Reduction.MAX ? max : sum / count;
+    }
+}
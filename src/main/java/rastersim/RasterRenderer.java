@@ -1,23 +1,66 @@
 package rastersim;
 
+import org.flowutils.Check;
 import org.flowutils.gradient.ColorFunction;
 import org.flowutils.rawimage.RawImage;
 import org.flowutils.rawimage.RawImageRenderer;
 
 import java.awt.*;
+import java.util.List;
+
+import static org.flowutils.Maths.*;
 
 /**
+ * Renders a raster into an image, scaled to the image size.
+ *
+ * If the raster has a pyramid (see Raster.createPyramid()), the coarsest level with at least as many cells as the
+ * image has pixels is rendered instead, after bringing the pyramid up to date, so that large rasters can be previewed
+ * without reading every cell.
  *
+ * With useDirtyTiles(), only the tiles of cells whose values changed visibly since they were last rendered are
+ * redrawn, and the changed areas of the image are reported, so that mostly static rasters cost little to show.
  */
 public class RasterRenderer implements RawImageRenderer {
 
+    /**
+     * Width and height in cells of the tiles compared by useDirtyTiles() when none is specified.
+     */
+    public static final int DEFAULT_DIRTY_TILE_SIZE = 32;
+
     private Raster raster;
+    private TripleBuffer<Raster> frames;
     private int leftBorder;
     private int rightBorder;
     private int topBorder;
     private int bottomBorder;
 
     private ColorFunction colorFunction;
+    private ColorLookupTable colorLookupTable;
+
+    // Raster cell shown in each image column and row, and the colors of a raster row, for the lookup table path
+    private int[] columnCells;
+    private int[] rowCells;
+    private int[] rowColors;
+    private int mappedImageW;
+    private int mappedImageH;
+    private int mappedRasterW;
+    private int mappedRasterH;
+
+    // First image column and row showing each raster column and row, and the image size after the last ones
+    private int[] columnPixels;
+    private int[] rowPixels;
+
+    // Values of the cells as last rendered into the shown image, compared to find the dirty tiles
+    private int dirtyTileSize;
+    private float changeThreshold;
+    private float[] shownValues;
+    private RawImage shownImage;
+    private ChangedTiles shownChangedTiles;
+    private int[] shownVersions;
+    private boolean[] dirtyTiles;
+    private int shownLevel;
+    private int shownLeft;
+    private int shownTop;
 
     public RasterRenderer(Raster raster, ColorFunction colorFunction) {
         this(raster, colorFunction, 0, 0, 0, 0);
@@ -45,23 +88,130 @@ public class RasterRenderer implements RawImageRenderer {
         this.raster = raster;
     }
 
+    /**
+     * Renders the newest frame published to the specified buffer, instead of a fixed raster.
+     * The renderer acts as the consumer of the buffer, so nothing else should acquire frames from it.
+     */
+    public void setFrames(TripleBuffer<Raster> frames) {
+        this.frames = frames;
+    }
+
     public ColorFunction getColorFunction() {
         return colorFunction;
     }
 
     public void setColorFunction(ColorFunction colorFunction) {
         this.colorFunction = colorFunction;
+        if (colorLookupTable != null) {
+            useColorLookupTable(colorLookupTable.getMin(), colorLookupTable.getMax(), colorLookupTable.getSize());
+        }
+        shownValues = null;
+    }
+
+    public ColorLookupTable getColorLookupTable() {
+        return colorLookupTable;
+    }
+
+    /**
+     * Renders using the color function sampled into a lookup table over the specified value range, writing the pixels
+     * directly into the image.  Much faster than calling the color function for every cell, but the colors are
+     * quantized to the number of samples.
+     */
+    public void useColorLookupTable(float min, float max, int size) {
+        colorLookupTable = new ColorLookupTable(colorFunction, min, max, size);
+        shownValues = null;
+    }
+
+    /**
+     * Renders by calling the color function for every cell.
+     */
+    public void disableColorLookupTable() {
+        colorLookupTable = null;
+        shownValues = null;
+    }
+
+    public int getDirtyTileSize() {
+        return dirtyTileSize;
+    }
+
+    /**
+     * Renders only the tiles in which some cell differs by more than the threshold from the value it was last rendered
+     * with, so each cell shown differs by at most the threshold from its current value.  With a color lookup table,
+     * values are compared after clamping them to its range, as all values beyond it have the same color.  The first
+     * render into an image, and renders after the image or raster size changes, draw the whole image.  The image
+     * should not be modified by others between renders.
+     * @param tileSize width and height of the tiles in cells.
+     * @param threshold largest change of a cell value that is not redrawn, such as the value range of a color in the
+     *                  lookup table.
+     */
+    public synchronized void useDirtyTiles(int tileSize, float threshold) {
+        Check.positive(tileSize, "tileSize");
+        Check.positiveOrZero(threshold, "threshold");
+
+        dirtyTileSize = tileSize;
+        changeThreshold = threshold;
+        shownValues = null;
+    }
+
+    /**
+     * Renders every cell in every frame.
+     */
+    public synchronized void disableDirtyTiles() {
+        dirtyTileSize = 0;
+        shownValues = null;
     }
 
     @Override public void renderImage(RawImage target) {
+        renderImage(target, null);
+    }
+
+    /**
+     * Synchronized, as the frame buffer only supports one consumer and the image may be rendered both by the
+     * simulator thread and by Swing.
+     * @param changedAreas if not null, the areas of the image that were drawn are added to it.
+     */
+    public synchronized void renderImage(RawImage target, List<Rectangle> changedAreas) {
+
+        if (frames != null) raster = frames.acquireLatest();
 
         int w = target.getWidth();
         int h = target.getHeight();
 
-        int rasterW = raster.getW() - leftBorder - rightBorder;
-        int rasterH = raster.getH() - topBorder - bottomBorder;
-
         if (raster != null) {
+            int rasterW = raster.getW() - leftBorder - rightBorder;
+            int rasterH = raster.getH() - topBorder - bottomBorder;
+
+            // Render the level of the pyramid matching the image size, leaving out the cells overlapping the borders
+            Raster source = raster;
+            int left = leftBorder;
+            int top = topBorder;
+            int level = 0;
+            final RasterPyramid pyramid = raster.getPyramid();
+            if (pyramid != null) {
+                while (level + 1 < pyramid.getLevelCount() && (rasterW >> (level + 1)) >= w && (rasterH >> (level + 1)) >= h) {
+                    level++;
+                }
+
+                if (level > 0) {
+                    pyramid.update();
+                    source = pyramid.getLevel(level);
+                    left = (leftBorder + (1 << level) - 1) >> level;
+                    top = (topBorder + (1 << level) - 1) >> level;
+                    rasterW = ((raster.getW() - rightBorder) >> level) - left;
+                    rasterH = ((raster.getH() - bottomBorder) >> level) - top;
+                }
+            }
+
+            if (dirtyTileSize > 0 && renderDirtyTiles(target, changedAreas, source, level, left, top, w, h, rasterW, rasterH)) {
+                return;
+            }
+
+            if (changedAreas != null) changedAreas.add(new Rectangle(0, 0, w, h));
+            if (colorLookupTable != null) {
+                renderWithLookupTable(target, source, left, top, w, h, rasterW, rasterH);
+                return;
+            }
+
             float pixelW = 1f * w / rasterW;
             float pixelH = 1f * h / rasterH;
 
@@ -70,7 +220,7 @@ public class RasterRenderer implements RawImageRenderer {
                     int x1 = (int) (x     * pixelW);
                     int y1 = (int) (y     * pixelH);
 
-                    final float value = raster.get(x + leftBorder, y + topBorder);
+                    final float value = source.get(x + left, y + top);
                     final int colorCode = colorFunction.colorCodeForValue(value);
 
                     target.fillRect(x1, y1, (int)pixelW + 1, (int)pixelH + 1, colorCode);
@@ -79,8 +229,236 @@ public class RasterRenderer implements RawImageRenderer {
         }
         else {
             target.fillRect(0,0, w, h, Color.WHITE.getRGB());
+            if (changedAreas != null) changedAreas.add(new Rectangle(0, 0, w, h));
+            shownValues = null;
+        }
+
+    }
+
+    /**
+     * Redraws the tiles that changed visibly since the last render, and records the values shown.
+     * @return false if the whole image has to be rendered instead, after recording the values of all cells as shown.
+     */
+    private boolean renderDirtyTiles(RawImage target, List<Rectangle> changedAreas, Raster source, int level, int left, int top, int w, int h, int rasterW, int rasterH) {
+        updateCellMapping(w, h, rasterW, rasterH);
+
+        // Everything is drawn if the image or the cells shown are not the ones last rendered
+        final boolean all = shownValues == null || shownValues.length != rasterW * rasterH || target != shownImage ||
+                            level != shownLevel || left != shownLeft || top != shownTop;
+        final int tilesX = (rasterW + dirtyTileSize - 1) / dirtyTileSize;
+        final int tilesY = (rasterH + dirtyTileSize - 1) / dirtyTileSize;
+        if (all) {
+            if (shownValues == null || shownValues.length != rasterW * rasterH) shownValues = new float[rasterW * rasterH];
+            shownVersions = new int[tilesX * tilesY];
+            dirtyTiles = new boolean[tilesX * tilesY];
+            shownImage = target;
+            shownLevel = level;
+            shownLeft = left;
+            shownTop = top;
+        }
+
+        // Tiles of a raster that tracks its writes only need to be compared if they were written since the last render
+        final ChangedTiles changedTiles = level == 0 ? raster.getChangedTiles() : null;
+        final boolean tracked = !all && changedTiles != null && changedTiles == shownChangedTiles;
+        shownChangedTiles = changedTiles;
+
+        final float[] data = source.getData();
+        final float min = colorLookupTable != null ? colorLookupTable.getMin() : Float.NEGATIVE_INFINITY;
+        final float max = colorLookupTable != null ? colorLookupTable.getMax() : Float.POSITIVE_INFINITY;
+        int dirtyCount = 0;
+        for (int tile = 0; tile < tilesX * tilesY; tile++) {
+            final int cellX0 = (tile % tilesX) * dirtyTileSize;
+            final int cellY0 = (tile / tilesX) * dirtyTileSize;
+            final int cellX1 = Math.min(cellX0 + dirtyTileSize, rasterW);
+            final int cellY1 = Math.min(cellY0 + dirtyTileSize, rasterH);
+
+            // Read the version before the cells, so that later writes are seen by the next render
+            boolean dirty = all;
+            if (changedTiles != null) {
+                final int version = changedTiles.getVersion(left + cellX0, top + cellY0, left + cellX1, top + cellY1);
+                if (!all && (!tracked || version != shownVersions[tile])) {
+                    dirty = isChanged(data, source, left, top, rasterW, cellX0, cellX1, cellY0, cellY1, min, max);
+                }
+                shownVersions[tile] = version;
+            }
+            else if (!all) {
+                dirty = isChanged(data, source, left, top, rasterW, cellX0, cellX1, cellY0, cellY1, min, max);
+            }
+
+            if (dirty) {
+                for (int y = cellY0; y < cellY1; y++) {
+                    System.arraycopy(data, source.rawIndex(left + cellX0, top + y), shownValues, y * rasterW + cellX0, cellX1 - cellX0);
+                }
+                dirtyCount++;
+            }
+            dirtyTiles[tile] = dirty;
+        }
+
+        // Rendering the whole image is faster than drawing most of it tile by tile.  It shows the current value of
+        // every cell, so those are recorded as shown
+        if (all || dirtyCount * 4 > tilesX * tilesY * 3) {
+            if (!all) {
+                for (int y = 0; y < rasterH; y++) {
+                    System.arraycopy(data, source.rawIndex(left, top + y), shownValues, y * rasterW, rasterW);
+                }
+            }
+            return false;
+        }
+
+        for (int tileY = 0; tileY < tilesY; tileY++) {
+            final int cellY0 = tileY * dirtyTileSize;
+            final int cellY1 = Math.min(cellY0 + dirtyTileSize, rasterH);
+
+            // Dirty tiles next to each other in a row of tiles are drawn and reported as one area
+            int areaX0 = -1;
+            for (int tileX = 0; tileX <= tilesX; tileX++) {
+                final boolean dirty = tileX < tilesX && dirtyTiles[tileX + tileY * tilesX];
+                if (dirty && areaX0 < 0) areaX0 = tileX * dirtyTileSize;
+                if (!dirty && areaX0 >= 0) {
+                    final int cellX1 = Math.min(tileX * dirtyTileSize, rasterW);
+                    drawCells(target, w, areaX0, cellX1, cellY0, cellY1, rasterW);
+                    if (changedAreas != null) addArea(changedAreas, areaX0, cellX1, cellY0, cellY1);
+                    areaX0 = -1;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if some cell in the area differs by more than the change threshold from the value shown, when both
+     *         are clamped to min and max.
+     */
+    private boolean isChanged(float[] data, Raster source, int left, int top, int rasterW, int cellX0, int cellX1, int cellY0, int cellY1, float min, float max) {
+        final float[] shown = shownValues;
+        final float threshold = changeThreshold;
+        for (int y = cellY0; y < cellY1; y++) {
+            final int offset = source.rawIndex(left, top + y) - y * rasterW;
+            for (int i = y * rasterW + cellX0; i < y * rasterW + cellX1; i++) {
+                // Also true for NaN
+                if (!(Math.abs(clamp(data[offset + i], min, max) - clamp(shown[i], min, max)) <= threshold)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Draws the shown values of the cells in the area into the image pixels that show them.
+     */
+    private void drawCells(RawImage target, int w, int cellX0, int cellX1, int cellY0, int cellY1, int rasterW) {
+        final int[] pixels = target.getBuffer();
+        final int px0 = columnPixels[cellX0];
+        final int px1 = columnPixels[cellX1];
+        final ColorLookupTable lookupTable = colorLookupTable;
+
+        int previousCellY = -1;
+        for (int py = rowPixels[cellY0]; py < rowPixels[cellY1]; py++) {
+            final int cellY = rowCells[py];
+            final int rowStart = py * w;
+
+            if (cellY == previousCellY) {
+                System.arraycopy(pixels, rowStart - w + px0, pixels, rowStart + px0, px1 - px0);
+            }
+            else {
+                final int cellRowStart = cellY * rasterW;
+                if (lookupTable != null) {
+                    for (int x = cellX0; x < cellX1; x++) {
+                        rowColors[x] = lookupTable.colorCodeForValue(shownValues[cellRowStart + x]);
+                    }
+                }
+                else {
+                    for (int x = cellX0; x < cellX1; x++) {
+                        rowColors[x] = colorFunction.colorCodeForValue(shownValues[cellRowStart + x]);
+                    }
+                }
+                for (int px = px0; px < px1; px++) {
+                    pixels[rowStart + px] = rowColors[columnCells[px]];
+                }
+                previousCellY = cellY;
+            }
         }
+    }
+
+    private void addArea(List<Rectangle> changedAreas, int cellX0, int cellX1, int cellY0, int cellY1) {
+        final int px0 = columnPixels[cellX0];
+        final int py0 = rowPixels[cellY0];
+        final int areaW = columnPixels[cellX1] - px0;
+        final int areaH = rowPixels[cellY1] - py0;
+        if (areaW > 0 && areaH > 0) changedAreas.add(new Rectangle(px0, py0, areaW, areaH));
+    }
+
+    private void renderWithLookupTable(RawImage target, Raster source, int left, int top, int w, int h, int rasterW, int rasterH) {
+        updateCellMapping(w, h, rasterW, rasterH);
+
+        final int[] pixels = target.getBuffer();
+        final float[] data = source.getData();
+        final ColorLookupTable lookupTable = colorLookupTable;
+
+        int previousCellY = -1;
+        for (int py = 0; py < h; py++) {
+            final int cellY = rowCells[py];
+            final int rowStart = py * w;
+
+            if (cellY == previousCellY) {
+                // Same raster row as the image row above
+                System.arraycopy(pixels, rowStart - w, pixels, rowStart, w);
+            }
+            else {
+                // Look up the colors of the raster row once, then spread them over the image row
+                final int cellRowStart = source.rawIndex(left, cellY + top);
+                for (int x = 0; x < rasterW; x++) {
+                    rowColors[x] = lookupTable.colorCodeForValue(data[cellRowStart + x]);
+                }
+                for (int px = 0; px < w; px++) {
+                    pixels[rowStart + px] = rowColors[columnCells[px]];
+                }
+                previousCellY = cellY;
+            }
+        }
+    }
+
+    private void updateCellMapping(int w, int h, int rasterW, int rasterH) {
+        if (w != mappedImageW || h != mappedImageH || rasterW != mappedRasterW || rasterH != mappedRasterH) {
+            columnCells = cellMapping(w, rasterW);
+            rowCells = cellMapping(h, rasterH);
+            columnPixels = pixelMapping(columnCells, rasterW);
+            rowPixels = pixelMapping(rowCells, rasterH);
+            rowColors = new int[rasterW];
+
+            mappedImageW = w;
+            mappedImageH = h;
+            mappedRasterW = rasterW;
+            mappedRasterH = rasterH;
+        }
+    }
+
+    /**
+     * @return for each pixel, the last raster cell whose scaled rectangle covers it, as in the color function path.
+     */
+    private static int[] cellMapping(int pixels, int cells) {
+        final int[] mapping = new int[pixels];
+        for (int p = 0; p < pixels; p++) {
+            mapping[p] = Math.min(cells - 1, lastCellCovering(p, pixels, cells));
+        }
+        return mapping;
+    }
+
+    /**
+     * @return for each cell, the first pixel showing it or a later cell, and the number of pixels for cells.
+     */
+    private static int[] pixelMapping(int[] cellMapping, int cells) {
+        final int[] mapping = new int[cells + 1];
+        int pixel = 0;
+        for (int cell = 0; cell <= cells; cell++) {
+            while (pixel < cellMapping.length && cellMapping[pixel] < cell) pixel++;
+            mapping[cell] = pixel;
+        }
+        return mapping;
+    }
 
+    private static int lastCellCovering(int pixel, int pixels, int cells) {
+        // Largest cell c with c * pixels / cells <= pixel
+        return (int) (((long) (pixel + 1) * cells + pixels - 1) / pixels) - 1;
     }
 
 }
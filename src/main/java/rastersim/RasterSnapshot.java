@@ -0,0 +1,193 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes rasters in a compact binary snapshot format.
+ *
+ * A snapshot is a header followed by the cells row by row as little endian floats, without the halo.  The header holds
+ * the magic number, the format version, the edge mode and the size, also little endian.  The cells are transferred
+ * in large blocks through a direct buffer, so that the channel can write them without further copying.
+ */
+public final class RasterSnapshot {
+
+    /**
+     * "RSNP" in little endian byte order.
+     */
+    public static final int MAGIC = 0x504E5352;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 16;
+
+    // Size of the blocks the cells are transferred in
+    private static final int TRANSFER_BYTES = 1 << 20;
+
+    private RasterSnapshot() {
+    }
+
+    public static void write(FloatGrid raster, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(raster, channel);
+        }
+    }
+
+    /**
+     * Writes the raster to the channel at its current position.
+     */
+    public static void write(FloatGrid raster, WritableByteChannel channel) throws IOException {
+        final int w = raster.getW();
+        final int h = raster.getH();
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putShort((short) VERSION).put((byte) raster.getEdgeMode().ordinal()).put((byte) 0);
+        header.putInt(w).putInt(h);
+        header.flip();
+        writeFully(channel, header);
+
+        final ByteBuffer block = allocateBlock(w);
+        final FloatBuffer floats = block.asFloatBuffer();
+        final float[] row = raster instanceof Raster ? null : new float[w];
+        int y = 0;
+        while (y < h) {
+            floats.clear();
+            while (y < h && floats.remaining() >= w) {
+                if (row == null) {
+                    final Raster source = (Raster) raster;
+                    floats.put(source.getData(), source.rawIndex(0, y), w);
+                }
+                else {
+                    raster.readRow(y, row, 0);
+                    floats.put(row);
+                }
+                y++;
+            }
+
+            block.clear();
+            block.limit(floats.position() * 4);
+            writeFully(channel, block);
+        }
+    }
+
+    /**
+     * @return new raster with the size, edge mode and contents of the snapshot in the file.
+     */
+    public static Raster read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return read(channel);
+        }
+    }
+
+    /**
+     * @return new raster with the size, edge mode and contents of the snapshot at the current position of the channel.
+     */
+    public static Raster read(ReadableByteChannel channel) throws IOException {
+        final ByteBuffer header = readHeader(channel);
+        final Raster raster = new Raster(header.getInt(8), header.getInt(12), EdgeMode.values()[header.get(6)]);
+        readCells(channel, raster);
+        return raster;
+    }
+
+    /**
+     * Reads the snapshot in the file into the target, which must have the same size.
+     */
+    public static void read(File file, FloatGrid target) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            read(channel, target);
+        }
+    }
+
+    /**
+     * Reads the snapshot at the current position of the channel into the target, which must have the same size.
+     */
+    public static void read(ReadableByteChannel channel, FloatGrid target) throws IOException {
+        final ByteBuffer header = readHeader(channel);
+        Check.equal(header.getInt(8), "snapshot width", target.getW(), "target width");
+        Check.equal(header.getInt(12), "snapshot height", target.getH(), "target height");
+        readCells(channel, target);
+    }
+
+    private static ByteBuffer readHeader(ReadableByteChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header);
+
+        if (header.getInt(0) != MAGIC) throw new IOException("Not a raster snapshot");
+        if (header.getShort(4) != VERSION) throw new IOException("Unsupported raster snapshot version " + header.getShort(4));
+        if (header.get(6) < 0 || header.get(6) >= EdgeMode.values().length) throw new IOException("Unknown edge mode " + header.get(6));
+        return header;
+    }
+
+    private static void readCells(ReadableByteChannel channel, FloatGrid target) throws IOException {
+        final int w = target.getW();
+        final int h = target.getH();
+
+        final ByteBuffer block = allocateBlock(w);
+        final FloatBuffer floats = block.asFloatBuffer();
+        final float[] row = target instanceof Raster ? null : new float[w];
+        int y = 0;
+        while (y < h) {
+            final int rows = Math.min(h - y, block.capacity() / (4 * w));
+            block.clear();
+            block.limit(rows * w * 4);
+            readFully(channel, block);
+
+            floats.clear();
+            for (int i = 0; i < rows; i++, y++) {
+                if (row == null) {
+                    final Raster raster = (Raster) target;
+                    floats.get(raster.getData(), raster.rawIndex(0, y), w);
+                }
+                else {
+                    floats.get(row);
+                    target.writeRow(y, row, 0);
+                }
+            }
+        }
+
+        if (target instanceof Raster) {
+            ((Raster) target).markChanged(0, 0, w, h);
+            ((Raster) target).updateHalo();
+        }
+    }
+
+    /**
+     * @return little endian direct buffer holding a whole number of rows, at least one.
+     */
+    static ByteBuffer allocateBlock(int w) {
+        final int rows = Math.max(1, TRANSFER_BYTES / (4 * w));
+        return ByteBuffer.allocateDirect(rows * w * 4).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        if (!readAvailable(channel, buffer)) throw new EOFException("Unexpected end of data");
+    }
+
+    /**
+     * Fills the buffer from the channel.
+     * @return false if the channel ended before the buffer was full.
+     */
+    static boolean readAvailable(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) return false;
+        }
+        return true;
+    }
+}
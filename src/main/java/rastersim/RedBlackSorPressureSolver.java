@@ -0,0 +1,89 @@
+package rastersim;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Solves the pressure equation with red-black Gauss-Seidel iterations and successive over-relaxation.
+ * The cells of each colour are independent, so the rows can be processed in parallel.
+ */
+public final class RedBlackSorPressureSolver extends PressureSolverBase {
+
+    private final float omega;
+    private final StencilEngine engine;
+
+    /**
+     * Creates a solver that picks the relaxation factor based on the raster size.
+     */
+    public RedBlackSorPressureSolver() {
+        this(DEFAULT_TOLERANCE, 1000, 0);
+    }
+
+    /**
+     * @param omega relaxation factor between 0 and 2, 1 for plain Gauss-Seidel, or 0 to pick the factor that is
+     *              optimal for the Poisson equation on the raster size.
+     */
+    public RedBlackSorPressureSolver(float tolerance, int maxIterations, float omega) {
+        this(tolerance, maxIterations, omega, null);
+    }
+
+    /**
+     * @param engine engine used to process the rows in parallel, or null to process them in the calling thread.
+     */
+    public RedBlackSorPressureSolver(float tolerance, int maxIterations, float omega, StencilEngine engine) {
+        super(tolerance, maxIterations);
+        if (omega < 0 || omega >= 2) throw new IllegalArgumentException("The relaxation factor should be in the range 0 until 2, but was " + omega);
+
+        this.omega = omega;
+        this.engine = engine;
+    }
+
+    /**
+     * @return the relaxation factor that gives the fastest convergence for the Poisson equation on the specified grid.
+     */
+    public static float optimalOmega(int w, int h) {
+        return (float) (2.0 / (1.0 + Math.sin(Math.PI / Math.max(w, h))));
+    }
+
+    public float getOmega() {
+        return omega;
+    }
+
+    @Override public int solve(Raster p, Raster div) {
+        p.checkSizeMatches(div);
+
+        final float relaxation = omega > 0 ? omega : optimalOmega(p.getW(), p.getH());
+
+        int iteration = 0;
+        float residual = Float.POSITIVE_INFINITY;
+        while (iteration < getMaxIterations()) {
+            residual = Math.max(relax(p, div, relaxation, 0),
+                                relax(p, div, relaxation, 1));
+            iteration++;
+
+            if (residual <= getTolerance()) break;
+        }
+        p.markChanged(0, 0, p.getW(), p.getH());
+
+        setResidual(residual);
+        return iteration;
+    }
+
+    private float relax(final Raster p, final Raster div, final float relaxation, final int parity) {
+        final float residual;
+        if (engine == null) {
+            residual = p.relaxRedBlackRows(div, 1, 4, relaxation, parity, 1, p.getH() - 1);
+        }
+        else {
+            final AtomicInteger maxResidualBits = new AtomicInteger();
+            engine.forEachBand(1, p.getH() - 1, p.getW(), new StencilEngine.BandTask() {
+                @Override public void processRows(int y0, int y1) {
+                    StencilEngine.accumulateMax(maxResidualBits, p.relaxRedBlackRows(div, 1, 4, relaxation, parity, y0, y1));
+                }
+            });
+            residual = Float.intBitsToFloat(maxResidualBits.get());
+        }
+
+        p.setBoundaries(0);
+        return residual;
+    }
+}
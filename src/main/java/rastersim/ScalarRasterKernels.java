@@ -0,0 +1,60 @@
+package rastersim;
+
+/**
+ * Plain loop implementation of the raster kernels.
+ */
+final class ScalarRasterKernels extends RasterKernels {
+
+    @Override public String getName() {
+        return "scalar";
+    }
+
+    @Override protected boolean isSupported() {
+        return true;
+    }
+
+    @Override public void add(float[] target, float[] source, float scale, float offset, int fromIndex, int toIndex) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            target[i] += source[i] * scale + offset;
+        }
+    }
+
+    @Override public void scaleCopy(float[] target, int targetStart, float[] source, int sourceStart, int length, float scale) {
+        for (int i = 0; i < length; i++) {
+            target[targetStart + i] = scale * source[sourceStart + i];
+        }
+    }
+
+    @Override public void diffuseRow(float[] target, float[] source, int rowStart, int length, int stride, float a, float divisor) {
+        final int rowEnd = rowStart + length;
+        for (int i = rowStart; i < rowEnd; i++) {
+            target[i] = (source[i] +
+                         a * (source[i + 1] +
+                              source[i - 1] +
+                              source[i + stride] +
+                              source[i - stride]))
+                        / divisor;
+        }
+    }
+
+    @Override public void weightedSumRow(float[] sum, float[] source, int row, int length, int[] offsets, float[] weights, float divisor) {
+        final int a = row + offsets[0], b = row + offsets[1], c = row + offsets[2], d = row + offsets[3], e = row + offsets[4];
+        final float wa = weights[0], wb = weights[1], wc = weights[2], wd = weights[3], we = weights[4];
+        for (int x = 0; x < length; x++) {
+            sum[x] = (source[a + x] * wa + source[b + x] * wb + source[c + x] * wc + source[d + x] * wd + source[e + x] * we) / divisor;
+        }
+    }
+
+    @Override public void halfToFloat(float[] target, int targetStart, short[] source, int sourceStart, int length) {
+        final float[] floats = HalfFloat.FLOATS;
+        for (int i = 0; i < length; i++) {
+            target[targetStart + i] = floats[source[sourceStart + i] & 0xFFFF];
+        }
+    }
+
+    @Override public void floatToHalf(short[] target, int targetStart, float[] source, int sourceStart, int length) {
+        for (int i = 0; i < length; i++) {
+            target[targetStart + i] = HalfFloat.fromFloat(source[sourceStart + i]);
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package rastersim;
 
 import javax.swing.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
 
 /**
  *
@@ -9,7 +13,37 @@ public interface Simulation {
 
     void update(double currentTime, double deltaTime);
 
-    void render();
+    /**
+     * Shows the latest step in the user interface, if it has been created.
+     * @param alpha fraction of a time step that has passed since the latest update, from 0 until 1, for interpolating
+     *              between the latest two steps.
+     */
+    void render(double alpha);
 
+    /**
+     * @return the rasters holding the state of the simulation, by name.
+     */
+    Map<String, Raster> getRasters();
+
+    /**
+     * Writes the state of the simulation that is not held in its rasters, such as the step count and random seeds,
+     * for a Checkpoint.
+     */
+    void writeState(DataOutput out) throws IOException;
+
+    /**
+     * Reads the state written by writeState().
+     */
+    void readState(DataInput in) throws IOException;
+
+    /**
+     * Releases the rasters of the simulation, for example back to a RasterPool.  The simulation is not used afterwards.
+     */
+    void dispose();
+
+    /**
+     * Creates the user interface the first time it is called.
+     * Not called when running headless, so simulations should not load any Swing or AWT classes before it.
+     */
     JComponent getUI();
-}
\ No newline at end of file
+}
@@ -0,0 +1,17 @@
+package rastersim;
+
+import java.util.Map;
+
+/**
+ * Creates the simulations of an ensemble run from their parameters.
+ */
+public interface SimulationFactory {
+
+    /**
+     * @param parameters value of each parameter of the grid for this run, by name.
+     * @param rasters pool the simulation should take its rasters from, and return them to when disposed.
+     * @param engine engine the simulation should run its stencils on, shared with the other runs.
+     * @return a new simulation, that is only used from one thread at a time.
+     */
+    Simulation create(Map<String, Double> parameters, RasterPool rasters, StencilEngine engine);
+}
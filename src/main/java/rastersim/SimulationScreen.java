@@ -0,0 +1,88 @@
+package rastersim;
+
+import org.flowutils.rawimage.RawImage;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Swing panel showing a rendered simulation.
+ *
+ * Kept separate from the simulations, so that the Swing classes are only loaded when the panel is created.
+ */
+final class SimulationScreen {
+
+    private final RasterPanel panel;
+
+    SimulationScreen(RasterRenderer renderer) {
+        panel = new RasterPanel(renderer);
+    }
+
+    void reRender() {
+        panel.reRender();
+    }
+
+    JComponent getComponent() {
+        return panel;
+    }
+
+    /**
+     * Renders into an image of the panel size, and repaints only the areas of it that the renderer changed.
+     */
+    private static final class RasterPanel extends JComponent {
+        private final RasterRenderer renderer;
+        private final List<Rectangle> changedAreas = new ArrayList<Rectangle>();
+        private RawImage rawImage;
+        private BufferedImage image;
+
+        RasterPanel(RasterRenderer renderer) {
+            this.renderer = renderer;
+            setOpaque(true);
+        }
+
+        void reRender() {
+            final int w = getWidth();
+            final int h = getHeight();
+            if (w <= 0 || h <= 0) return;
+
+            final List<Rectangle> areas;
+            synchronized (this) {
+                if (rawImage == null || rawImage.getWidth() != w || rawImage.getHeight() != h) {
+                    rawImage = new RawImage(w, h);
+                    image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+                }
+
+                changedAreas.clear();
+                renderer.renderImage(rawImage, changedAreas);
+
+                // Copy the changed areas into the image shown
+                final int[] source = rawImage.getBuffer();
+                final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                for (Rectangle area : changedAreas) {
+                    for (int y = area.y; y < area.y + area.height; y++) {
+                        System.arraycopy(source, area.x + y * w, pixels, area.x + y * w, area.width);
+                    }
+                }
+                areas = new ArrayList<Rectangle>(changedAreas);
+            }
+
+            for (Rectangle area : areas) {
+                repaint(area);
+            }
+        }
+
+        @Override protected void paintComponent(Graphics g) {
+            synchronized (this) {
+                if (image != null) g.drawImage(image, 0, 0, null);
+                else {
+                    g.setColor(Color.WHITE);
+                    g.fillRect(0, 0, getWidth(), getHeight());
+                }
+            }
+        }
+    }
+}
@@ -1,84 +1,343 @@
 package rastersim;
 
+import org.flowutils.Check;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
 /**
+ * Updates a simulation with a fixed time step in its own thread, and renders it between the updates.
+ *
+ * Updates are done at the tick rate, catching up after slow frames with at most maxUpdatesPerFrame updates before the
+ * next render.  When further behind than that, the missing steps are dropped, so that the simulation runs slower than
+ * real time, or merged into one longer step, depending on the catch up policy.  The waits between frames park the
+ * thread and spin the last fraction of a millisecond, for more precise timing than sleeping.
  *
+ * The control methods can be called from any thread.
  */
 public class Simulator implements Runnable {
 
+    /**
+     * What to do with the steps that could not be caught up with within the update budget of a frame.
+     */
+    public enum CatchUp {
+        /**
+         * Skip the steps, so that the simulation falls behind real time.
+         */
+        DROP,
+
+        /**
+         * Do one update with the combined time step of the skipped steps.
+         */
+        MERGE
+    }
+
+    public static final double DEFAULT_TICK_RATE = 50;
+    public static final int DEFAULT_MAX_UPDATES_PER_FRAME = 5;
+
     private static final double NANOSEC_TO_SEC = 0.000000001;
+
+    // Waits shorter than this are spun instead of parked, as parking may overshoot
+    private static final long SPIN_NANOS = 1000000;
+
+    // Weight of the latest frame in the averaged metrics
+    private static final double METRIC_SMOOTHING = 0.05;
+
     private final Simulation simulation;
-    private final Thread thread;
+    private volatile Thread thread;
+
+    private volatile long timeStepNanos;
+    private volatile int maxUpdatesPerFrame = DEFAULT_MAX_UPDATES_PER_FRAME;
+    private volatile double maxFrameTime = 0.5;
+    private volatile CatchUp catchUp = CatchUp.DROP;
 
-    private double simulationTime;
-    private double timeStep = 0.02;
-    private double maxTimeStep = timeStep * 25;
+    private volatile boolean running = false;
+    private volatile boolean paused = false;
+    private final AtomicInteger requestedSteps = new AtomicInteger();
 
-    private boolean running = false;
+    private volatile double simulationTime;
+    private volatile long steps;
+    private volatile long droppedSteps;
+    private volatile long mergedSteps;
+    private volatile double averageUpdateSeconds;
+    private volatile double averageRenderSeconds;
+    private volatile double averageFrameSeconds;
+    private volatile double load;
 
     public Simulator(Simulation simulation) {
-        this.simulation = simulation;
+        this(simulation, DEFAULT_TICK_RATE);
+    }
 
-        thread = new Thread(this);
-        thread.setDaemon(true); // Stop when other threads have stopped.
-        start();
+    /**
+     * @param tickRate number of updates per second of simulated time.
+     */
+    public Simulator(Simulation simulation, double tickRate) {
+        Check.notNull(simulation, "simulation");
+        this.simulation = simulation;
+        setTickRate(tickRate);
     }
 
-    private void start() {
+    /**
+     * Starts updating the simulation in a new thread, if not already running.
+     */
+    public synchronized void start() {
         if (!running) {
             running = true;
+            thread = new Thread(this, "Simulator");
+            thread.setDaemon(true); // Stop when other threads have stopped.
             thread.start();
         }
     }
 
-    private void stop() {
-        running = false;
+    /**
+     * Stops the simulation thread after the current frame and waits for it to end.  Can be started again.
+     */
+    public synchronized void stop() {
+        if (running) {
+            running = false;
+            LockSupport.unpark(thread);
+            if (thread != Thread.currentThread()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
     }
 
+    /**
+     * Stops updating the simulation until resumed, while keeping the thread running.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    /**
+     * Continues updating a paused simulation from where it was paused, without catching up the paused time.
+     */
+    public void resume() {
+        paused = false;
+        wake();
+    }
+
+    /**
+     * Does one update and render of a paused simulation, in the simulation thread.  Ignored if not paused.
+     */
+    public void step() {
+        if (paused) {
+            requestedSteps.incrementAndGet();
+            wake();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @return number of updates per second of simulated time.
+     */
+    public double getTickRate() {
+        return 1.0 / getTimeStep();
+    }
+
+    public void setTickRate(double tickRate) {
+        Check.positive(tickRate, "tickRate");
+        timeStepNanos = Math.max(1, Math.round(1e9 / tickRate));
+    }
+
+    /**
+     * @return simulated time of one update, in seconds.
+     */
+    public double getTimeStep() {
+        return timeStepNanos * NANOSEC_TO_SEC;
+    }
+
+    public int getMaxUpdatesPerFrame() {
+        return maxUpdatesPerFrame;
+    }
+
+    /**
+     * @param maxUpdatesPerFrame largest number of updates done to catch up before rendering again.
+     */
+    public void setMaxUpdatesPerFrame(int maxUpdatesPerFrame) {
+        Check.positive(maxUpdatesPerFrame, "maxUpdatesPerFrame");
+        this.maxUpdatesPerFrame = maxUpdatesPerFrame;
+    }
+
+    public double getMaxFrameTime() {
+        return maxFrameTime;
+    }
+
+    /**
+     * @param maxFrameTime longest time in seconds counted for a frame.  Time beyond that, such as when the process was
+     *                     suspended, is ignored rather than caught up with.
+     */
+    public void setMaxFrameTime(double maxFrameTime) {
+        Check.positive(maxFrameTime, "maxFrameTime");
+        this.maxFrameTime = maxFrameTime;
+    }
+
+    public CatchUp getCatchUp() {
+        return catchUp;
+    }
+
+    public void setCatchUp(CatchUp catchUp) {
+        Check.notNull(catchUp, "catchUp");
+        this.catchUp = catchUp;
+    }
+
+    public double getSimulationTime() {
+        return simulationTime;
+    }
+
+    /**
+     * @return number of time steps simulated, including merged ones.
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return number of time steps skipped because the simulation could not keep up.
+     */
+    public long getDroppedSteps() {
+        return droppedSteps;
+    }
+
+    /**
+     * @return number of time steps that were merged into longer updates because the simulation could not keep up.
+     */
+    public long getMergedSteps() {
+        return mergedSteps;
+    }
+
+    /**
+     * @return average wall clock time of an update, in seconds.
+     */
+    public double getAverageUpdateSeconds() {
+        return averageUpdateSeconds;
+    }
+
+    /**
+     * @return average wall clock time of a render, in seconds.
+     */
+    public double getAverageRenderSeconds() {
+        return averageRenderSeconds;
+    }
+
+    /**
+     * @return average number of frames rendered per second.
+     */
+    public double getFramesPerSecond() {
+        return averageFrameSeconds > 0 ? 1.0 / averageFrameSeconds : 0;
+    }
+
+    /**
+     * @return average fraction of the time spent updating and rendering rather than waiting.
+     *         1 or more means the simulation can not keep up with the tick rate.
+     */
+    public double getLoad() {
+        return load;
+    }
 
     @Override
     public void run() {
-        double oldTime = currentTimeInSeconds();
-        double remainingTime = 0.0;
+        long previousTime = System.nanoTime();
+        long remainingNanos = 0;
 
-        while(running) {
-            double frameStartTime = currentTimeInSeconds();
-            double frameTime = frameStartTime - oldTime;
-            if (frameTime > maxTimeStep) frameTime = maxTimeStep;
+        while (running) {
+            if (paused) {
+                if (requestedSteps.get() > 0) {
+                    requestedSteps.decrementAndGet();
+                    update(timeStepNanos, 1);
+                    simulation.render(0);
+                }
+                else {
+                    LockSupport.park(this);
+                }
 
-            oldTime = frameStartTime;
+                // Do not catch up the paused time
+                previousTime = System.nanoTime();
+                remainingNanos = 0;
+                continue;
+            }
 
-            remainingTime += frameTime;
+            final long timeStep = timeStepNanos;
+            final long frameStartTime = System.nanoTime();
+            final long frameTime = Math.min(frameStartTime - previousTime, (long) (maxFrameTime * 1e9));
+            previousTime = frameStartTime;
+            remainingNanos += frameTime;
 
             // Update simulation
-            while ( remainingTime >= timeStep ) {
-                simulation.update(simulationTime, timeStep);
-                remainingTime -= timeStep;
-                simulationTime += timeStep;
+            int updates = 0;
+            while (remainingNanos >= timeStep && updates < maxUpdatesPerFrame) {
+                update(timeStep, 1);
+                remainingNanos -= timeStep;
+                updates++;
             }
 
-            // Render simulation
-            simulation.render();
+            // Running more updates to catch up would only make the next frame later still
+            if (remainingNanos >= timeStep) {
+                final long behindSteps = remainingNanos / timeStep;
+                if (catchUp == CatchUp.MERGE) {
+                    update(timeStep * behindSteps, behindSteps);
+                    mergedSteps += behindSteps;
+                    Instrumentation.count(Instrumentation.MERGED_STEPS, behindSteps);
+                }
+                else {
+                    droppedSteps += behindSteps;
+                    Instrumentation.count(Instrumentation.DROPPED_STEPS, behindSteps);
+                }
+                remainingNanos -= behindSteps * timeStep;
+            }
+
+            // Render simulation, with the fraction of a step that has passed since the latest update
+            final long renderStartTime = System.nanoTime();
+            simulation.render((double) remainingNanos / timeStep);
+            final long renderEndTime = System.nanoTime();
+            Instrumentation.record(Instrumentation.RENDER, renderEndTime - renderStartTime);
+            averageRenderSeconds = smooth(averageRenderSeconds, (renderEndTime - renderStartTime) * NANOSEC_TO_SEC);
+            averageFrameSeconds = smooth(averageFrameSeconds, frameTime * NANOSEC_TO_SEC);
+            if (frameTime > 0) load = smooth(load, (double) (renderEndTime - frameStartTime) / Math.max(frameTime, timeStep));
 
-            // Idle until next frame
-            final double frameEndTime = currentTimeInSeconds();
-            final double frameDuration = frameEndTime - frameStartTime;
-            double timeLeftInFrame = timeStep - frameDuration;
-            delay(timeLeftInFrame);
+            // Idle until the next update is due
+            waitUntil(frameStartTime + timeStep - remainingNanos);
         }
     }
 
-    private double currentTimeInSeconds() {
-        return System.nanoTime() * NANOSEC_TO_SEC;
+    private void update(long deltaNanos, long stepCount) {
+        final double deltaTime = deltaNanos * NANOSEC_TO_SEC;
+        final long startTime = System.nanoTime();
+        simulation.update(simulationTime, deltaTime);
+        final long updateNanos = System.nanoTime() - startTime;
+        Instrumentation.record(Instrumentation.UPDATE, updateNanos);
+        averageUpdateSeconds = smooth(averageUpdateSeconds, updateNanos * NANOSEC_TO_SEC);
+
+        simulationTime += deltaTime;
+        steps += stepCount;
     }
 
-    private void delay(final double timeSeconds) {
-        if (timeSeconds > 0) {
-            // Sleep
-            try {
-                Thread.sleep((long) (timeSeconds *1000));
-            } catch (InterruptedException e) {
-                // ignore
-            }
+    private void waitUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        while (remaining > 0 && running && !paused) {
+            if (remaining > SPIN_NANOS) LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+            else Thread.yield();
+            remaining = deadline - System.nanoTime();
         }
     }
-}
\ No newline at end of file
+
+    private void wake() {
+        final Thread simulationThread = thread;
+        if (simulationThread != null) LockSupport.unpark(simulationThread);
+    }
+
+    private static double smooth(double average, double value) {
+        return average == 0 ? value : average + (value - average) * METRIC_SMOOTHING;
+    }
+}
@@ -0,0 +1,244 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * HaloTransport over TCP sockets, for workers in separate processes or on separate machines.
+ *
+ * Each worker listens on its own address and connects to the workers with lower ranks, so that every pair of workers
+ * shares one connection.  Each connection has a sender thread, so that sending does not wait for the other worker.
+ */
+public final class SocketHaloTransport implements HaloTransport {
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 30000;
+    private static final long CONNECT_RETRY_MILLIS = 50;
+
+    private final int rank;
+    private final int size;
+    private final ServerSocket serverSocket;
+    private final Connection[] connections;
+
+    /**
+     * Connects to the other workers, waiting until they are all up.
+     * @param addresses address of each worker, indexed by rank.
+     */
+    public SocketHaloTransport(int rank, List<InetSocketAddress> addresses) throws IOException {
+        Check.notNull(addresses, "addresses");
+        if (rank < 0 || rank >= addresses.size()) throw new IllegalArgumentException("The rank " + rank + " has no address");
+
+        this.rank = rank;
+        size = addresses.size();
+        connections = new Connection[size];
+        serverSocket = new ServerSocket();
+        try {
+            serverSocket.bind(addresses.get(rank));
+
+            for (int other = 0; other < rank; other++) {
+                final Socket socket = connect(addresses.get(other));
+                new DataOutputStream(socket.getOutputStream()).writeInt(rank);
+                connections[other] = new Connection(socket, other);
+            }
+
+            // The workers with higher ranks get as long to connect as connect() waits for the lower ranks
+            final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+            for (int accepted = rank + 1; accepted < size; accepted++) {
+                final Socket socket = accept(deadline);
+                final int other;
+                try {
+                    socket.setSoTimeout(remainingMillis(deadline));
+                    other = new DataInputStream(socket.getInputStream()).readInt();
+                    socket.setSoTimeout(0);
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+                if (other <= rank || other >= size || connections[other] != null) {
+                    socket.close();
+                    throw new IOException("Unexpected connection from worker " + other);
+                }
+                connections[other] = new Connection(socket, other);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private Socket accept(long deadline) throws IOException {
+        try {
+            serverSocket.setSoTimeout(remainingMillis(deadline));
+            return serverSocket.accept();
+        } catch (SocketTimeoutException e) {
+            final StringBuilder missing = new StringBuilder();
+            for (int other = rank + 1; other < size; other++) {
+                if (connections[other] == null) missing.append(missing.length() > 0 ? ", " : "").append(other);
+            }
+            throw new SocketTimeoutException("Worker " + rank + " timed out after " + CONNECT_TIMEOUT_MILLIS + " ms waiting for workers " + missing + " to connect");
+        }
+    }
+
+    /**
+     * @return milliseconds until the deadline, at least 1, as a socket timeout of 0 waits forever.
+     */
+    private static int remainingMillis(long deadline) {
+        return (int) Math.max(1, deadline - System.currentTimeMillis());
+    }
+
+    private static Socket connect(InetSocketAddress address) throws IOException {
+        // The other worker may not be listening yet
+        final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while (true) {
+            final Socket socket = new Socket();
+            try {
+                socket.connect(address);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (ConnectException e) {
+                socket.close();
+                if (System.currentTimeMillis() > deadline) throw e;
+                try {
+                    Thread.sleep(CONNECT_RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while connecting to " + address);
+                }
+            }
+        }
+    }
+
+    @Override public int getRank() {
+        return rank;
+    }
+
+    @Override public int getSize() {
+        return size;
+    }
+
+    @Override public void send(int rank, float[] values, int offset, int length) throws IOException {
+        connection(rank).send(values, offset, length);
+    }
+
+    @Override public void receive(int rank, float[] values, int offset, int length) throws IOException {
+        connection(rank).receive(values, offset, length);
+    }
+
+    /**
+     * Stops the sender threads after they have sent the queued messages, and closes the connections.
+     */
+    @Override public void close() throws IOException {
+        IOException error = null;
+        for (Connection connection : connections) {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }
+        serverSocket.close();
+        if (error != null) throw error;
+    }
+
+    private Connection connection(int rank) {
+        if (rank < 0 || rank >= size || connections[rank] == null) throw new IllegalArgumentException("No connection to worker " + rank);
+        return connections[rank];
+    }
+
+    /**
+     * Connection to one other worker.  Messages are sent as their length followed by the values.
+     */
+    private static final class Connection {
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        private final Socket socket;
+        private final int rank;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final BlockingQueue<ByteBuffer> outgoing = new LinkedBlockingQueue<ByteBuffer>();
+        private final Thread sender;
+        private volatile IOException sendError;
+        private byte[] receiveBuffer = new byte[0];
+
+        Connection(Socket socket, int rank) throws IOException {
+            this.socket = socket;
+            this.rank = rank;
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            sender = new Thread(new Runnable() {
+                @Override public void run() {
+                    sendMessages();
+                }
+            }, "SocketHaloTransport sender to worker " + rank);
+            sender.setDaemon(true);
+            sender.start();
+        }
+
+        void send(float[] values, int offset, int length) throws IOException {
+            if (sendError != null) throw sendError;
+
+            final ByteBuffer message = ByteBuffer.allocate(length * 4).order(ByteOrder.LITTLE_ENDIAN);
+            message.asFloatBuffer().put(values, offset, length);
+            outgoing.add(message);
+        }
+
+        void receive(float[] values, int offset, int length) throws IOException {
+            final int received = in.readInt();
+            if (received != length) throw new IOException("Expected " + length + " values from worker " + rank + ", but received " + received);
+
+            if (receiveBuffer.length < length * 4) receiveBuffer = new byte[length * 4];
+            in.readFully(receiveBuffer, 0, length * 4);
+            ByteBuffer.wrap(receiveBuffer, 0, length * 4).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values, offset, length);
+        }
+
+        private void sendMessages() {
+            try {
+                while (true) {
+                    final ByteBuffer message = outgoing.take();
+                    if (message == END) break;
+
+                    out.writeInt(message.capacity() / 4);
+                    out.write(message.array());
+                    if (outgoing.isEmpty()) out.flush();
+                }
+                out.flush();
+            } catch (IOException e) {
+                sendError = e;
+            } catch (InterruptedException e) {
+                sendError = new InterruptedIOException("Interrupted while sending to worker " + rank);
+            }
+        }
+
+        void close() throws IOException {
+            try {
+                outgoing.add(END);
+                sender.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sender.interrupt();
+            } finally {
+                socket.close();
+            }
+            if (sendError != null) throw sendError;
+        }
+    }
+}
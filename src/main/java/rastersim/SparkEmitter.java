@@ -0,0 +1,74 @@
+package rastersim;
+
+/**
+ * Picks the cells where rare random events happen, when each cell has the same small probability per step.
+ *
+ * Instead of testing every cell, the number of events in a step is drawn from the Poisson distribution,
+ * and that many cells are picked at random.
+ */
+public final class SparkEmitter {
+
+    /**
+     * Above this expected count, the Poisson distribution is approximated with the normal distribution.
+     */
+    private static final double NORMAL_APPROXIMATION_LIMIT = 30;
+
+    private final double probability;
+
+    /**
+     * @param probability chance of an event in each cell per step.
+     */
+    public SparkEmitter(double probability) {
+        if (probability < 0 || probability > 1) throw new IllegalArgumentException("The probability should be in the range 0 to 1, but was " + probability);
+        this.probability = probability;
+    }
+
+    public double getProbability() {
+        return probability;
+    }
+
+    /**
+     * @return number of events among the specified number of cells in one step.
+     */
+    public int sampleCount(NoiseSource noise, long cells) {
+        final double expected = probability * cells;
+        if (expected <= 0) return 0;
+
+        if (expected < NORMAL_APPROXIMATION_LIMIT) {
+            // Knuth's method, multiply uniform values until the product drops below e^-expected
+            final double limit = Math.exp(-expected);
+            int count = 0;
+            double product = noise.nextFloat();
+            while (product > limit) {
+                count++;
+                product *= noise.nextFloat();
+            }
+            return count;
+        }
+        else {
+            final long count = Math.round(expected + Math.sqrt(expected) * noise.nextGaussian());
+            return (int) Math.max(0, Math.min(cells, count));
+        }
+    }
+
+    /**
+     * Receives the cells picked by the emitter.
+     */
+    public interface SparkTarget {
+        void spark(int x, int y);
+    }
+
+    /**
+     * Picks the cells of a raster where events happen in this step, and passes them to the target.
+     * @return number of picked cells.
+     */
+    public int emit(NoiseSource noise, int w, int h, SparkTarget target) {
+        final int count = sampleCount(noise, (long) w * h);
+        for (int i = 0; i < count; i++) {
+            final int x = noise.nextInt(w);
+            final int y = noise.nextInt(h);
+            target.spark(x, y);
+        }
+        return count;
+    }
+}
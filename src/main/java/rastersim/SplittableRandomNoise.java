@@ -0,0 +1,48 @@
+package rastersim;
+
+import java.util.SplittableRandom;
+
+/**
+ * Noise source using the JDK SplittableRandom, with exact gaussian values.
+ */
+public final class SplittableRandomNoise implements NoiseSource {
+
+    private SplittableRandom random;
+
+    public SplittableRandomNoise() {
+        random = new SplittableRandom();
+    }
+
+    public SplittableRandomNoise(long seed) {
+        setSeed(seed);
+    }
+
+    @Override public void setSeed(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    @Override public float nextFloat() {
+        return (random.nextInt() >>> 8) * (1f / (1 << 24));
+    }
+
+    @Override public int nextInt(int bound) {
+        return random.nextInt(bound);
+    }
+
+    @Override public float nextGaussian() {
+        // Marsaglia polar method
+        double u, v, s;
+        do {
+            u = 2 * random.nextDouble() - 1;
+            v = 2 * random.nextDouble() - 1;
+            s = u * u + v * v;
+        } while (s >= 1 || s == 0);
+        return (float) (u * Math.sqrt(-2 * Math.log(s) / s));
+    }
+
+    @Override public NoiseSource copy() {
+        final SplittableRandomNoise copy = new SplittableRandomNoise();
+        copy.random = random.split();
+        return copy;
+    }
+}
@@ -0,0 +1,329 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Raster operations in parallel, by splitting the raster into bands of rows that are processed on a ForkJoinPool.
+ *
+ * Each operation returns only after all bands are done, so consecutive operations (such as the iterations of diffuse)
+ * are separated by a barrier.  Every cell is computed with the same arithmetic as the serial Raster methods, so the
+ * results are bit-identical to them.
+ *
+ * In deterministic mode the rows are always split into bands of the same size, independent of the parallelism, so that
+ * any per-band results are combined in the same order on every run and machine.
+ */
+public final class StencilEngine {
+
+    /**
+     * Number of rows in a band in deterministic mode.
+     */
+    public static final int DETERMINISTIC_BAND_ROWS = 32;
+
+    private static final int MIN_BAND_ROWS = 8;
+    private static final int BANDS_PER_THREAD = 4;
+    private static final int MIN_PARALLEL_CELLS = 64 * 64;
+
+    private static StencilEngine shared;
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final boolean deterministic;
+
+    /**
+     * Processes a range of rows.
+     */
+    public interface BandTask {
+        /**
+         * @param y0 first row to process.
+         * @param y1 row after the last row to process.
+         */
+        void processRows(int y0, int y1);
+    }
+
+    /**
+     * @return engine using the common ForkJoinPool, in deterministic mode.
+     */
+    public static synchronized StencilEngine getShared() {
+        if (shared == null) shared = new StencilEngine(ForkJoinPool.commonPool(), true);
+        return shared;
+    }
+
+    /**
+     * Creates an engine with its own pool of the specified number of threads.
+     */
+    public StencilEngine(int parallelism, boolean deterministic) {
+        this(new ForkJoinPool(parallelism), deterministic);
+    }
+
+    public StencilEngine(ForkJoinPool pool, boolean deterministic) {
+        Check.notNull(pool, "pool");
+
+        this.pool = pool;
+        this.parallelism = pool.getParallelism();
+        this.deterministic = deterministic;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    public void add(Raster target, final Raster source, final float scale, final float offset) {
+        target.checkSizeMatches(source);
+
+        final Raster t = target;
+        final int stride = target.getStride();
+        final int rows = target.getData().length / stride;
+        forEachBand(0, rows, target.getW(), new BandTask() {
+            @Override public void processRows(int y0, int y1) {
+                t.addRange(source, scale, offset, y0 * stride, y1 * stride);
+            }
+        });
+        target.markAdded(source, offset);
+    }
+
+    public void diffuse(Raster target, Raster source, float diffusion, float deltaTime, float cellSizeMeter, int b) {
+        target.checkSizeMatches(source);
+
+        final long startTime = Instrumentation.start();
+        for (int k = 0; k < 20; k++) {
+            diffuseStep(target, source, diffusion, deltaTime, cellSizeMeter);
+
+            setBoundaries(target, b);
+        }
+        Instrumentation.stop(Instrumentation.DIFFUSE, startTime);
+    }
+
+    /**
+     * Parallel version of the red-black SOR diffusion in Raster.diffuse.  The residual is the largest over all bands,
+     * so the iteration count and the result are the same as for the serial version.
+     * @param omega relaxation factor in the range 0 until 2, 1 for plain Gauss-Seidel, or 0 to use the optimal factor
+     *              from Raster.optimalDiffusionOmega().
+     * @return number of iterations used.
+     */
+    public int diffuse(final Raster target, final Raster source, float diffusion, float deltaTime, float cellSizeMeter, int b, float omega, float tolerance, int maxIterations) {
+        target.checkSizeMatches(source);
+        Raster.checkRelaxationFactor(omega);
+
+        final float a = Raster.diffusionRate(diffusion, deltaTime, cellSizeMeter);
+        final float c = 1 + 4 * a;
+        final float relaxation = omega > 0 ? omega : Raster.optimalDiffusionOmega(a, target.getW(), target.getH());
+
+        final long startTime = Instrumentation.start();
+        copy(target, source);
+
+        final AtomicInteger maxResidualBits = new AtomicInteger();
+        int iteration = 0;
+        while (iteration < maxIterations) {
+            maxResidualBits.set(0);
+            for (int parity = 0; parity < 2; parity++) {
+                final int p = parity;
+                forEachBand(1, target.getH() - 1, target.getW(), new BandTask() {
+                    @Override public void processRows(int y0, int y1) {
+                        accumulateMax(maxResidualBits, target.relaxRedBlackRows(source, a, c, relaxation, p, y0, y1));
+                    }
+                });
+                setBoundaries(target, b);
+            }
+            iteration++;
+
+            if (Float.intBitsToFloat(maxResidualBits.get()) <= tolerance) break;
+        }
+        target.markChanged(0, 0, target.getW(), target.getH());
+        Instrumentation.stop(Instrumentation.DIFFUSE, startTime);
+
+        return iteration;
+    }
+
+    public void copy(Raster target, final Raster source) {
+        target.checkSizeMatches(source);
+
+        final float[] targetData = target.getData();
+        final float[] sourceData = source.getData();
+        final int stride = target.getStride();
+        forEachBand(0, targetData.length / stride, target.getW(), new BandTask() {
+            @Override public void processRows(int y0, int y1) {
+                System.arraycopy(sourceData, y0 * stride, targetData, y0 * stride, (y1 - y0) * stride);
+            }
+        });
+        target.markChanged(0, 0, target.getW(), target.getH());
+    }
+
+    public void diffuseStep(Raster target, final Raster source, float diffusion, float deltaTime, float cellSizeMeter) {
+        target.checkSizeMatches(source);
+
+        final Raster t = target;
+        final float a = Raster.diffusionRate(diffusion, deltaTime, cellSizeMeter);
+        forEachBand(1, target.getH() - 1, target.getW(), new BandTask() {
+            @Override public void processRows(int y0, int y1) {
+                t.diffuseRows(source, a, y0, y1);
+            }
+        });
+        target.markChanged(0, 0, target.getW(), target.getH());
+    }
+
+    /**
+     * Parallel version of CompactRaster.diffuseStep.
+     */
+    public void diffuseStep(final CompactRaster target, final CompactRaster source, float diffusion, float deltaTime, float cellSizeMeter) {
+        if (target == source) throw new IllegalArgumentException("The target may not be the source raster");
+        Check.equal(source.getW(), "source width", target.getW(), "target width");
+        Check.equal(source.getH(), "source height", target.getH(), "target height");
+
+        final float a = Raster.diffusionRate(diffusion, deltaTime, cellSizeMeter);
+        forEachBand(1, target.getH() - 1, target.getW(), new BandTask() {
+            @Override public void processRows(int y0, int y1) {
+                target.diffuseRows(source, a, y0, y1);
+            }
+        });
+    }
+
+    /**
+     * Parallel version of the sparse Raster.diffuseStep, processing the tile rows of the active tiles in bands.
+     */
+    public void diffuseStep(Raster target, final Raster source, float diffusion, float deltaTime, float cellSizeMeter, final ActiveTiles activeTiles) {
+        target.checkSizeMatches(source);
+        target.checkSizeMatches(activeTiles);
+
+        final Raster t = target;
+        final float a = Raster.diffusionRate(diffusion, deltaTime, cellSizeMeter);
+        final ActiveTiles.AreaTask areaTask = new ActiveTiles.AreaTask() {
+            @Override public float processArea(int x0, int x1, int y0, int y1) {
+                return t.diffuseArea(source, a, x0, x1, y0, y1);
+            }
+        };
+        forEachBand(0, activeTiles.getTilesY(), target.getW() * activeTiles.getTileSize(), new BandTask() {
+            @Override public void processRows(int tileY0, int tileY1) {
+                activeTiles.processTileRows(tileY0, tileY1, 1, areaTask);
+            }
+        });
+        target.markActiveTilesChanged(activeTiles);
+    }
+
+    public void advect(Raster target, int b, final Raster source, final Raster xVel, final Raster yVel, float deltaTime, float cellSizeMeter) {
+        target.checkSizeMatches(source);
+        target.checkSizeMatches(xVel);
+        target.checkSizeMatches(yVel);
+
+        final Raster t = target;
+        final float dt0 = deltaTime * (1f / cellSizeMeter);
+        final long startTime = Instrumentation.start();
+        forEachBand(1, target.getH() - 1, target.getW(), new BandTask() {
+            @Override public void processRows(int y0, int y1) {
+                t.advectRows(source, xVel, yVel, dt0, y0, y1);
+            }
+        });
+        target.markChanged(0, 0, target.getW(), target.getH());
+
+        setBoundaries(target, b);
+        Instrumentation.stop(Instrumentation.ADVECT, startTime);
+    }
+
+    /**
+     * Parallel version of the sparse Raster.advect, processing the tile rows of the active tiles in bands.
+     */
+    public void advect(Raster target, int b, final Raster source, final Raster xVel, final Raster yVel, float deltaTime, float cellSizeMeter, final ActiveTiles activeTiles) {
+        target.checkSizeMatches(source);
+        target.checkSizeMatches(xVel);
+        target.checkSizeMatches(yVel);
+        target.checkSizeMatches(activeTiles);
+
+        final Raster t = target;
+        final float dt0 = deltaTime * (1f / cellSizeMeter);
+        final long startTime = Instrumentation.start();
+        final ActiveTiles.AreaTask areaTask = new ActiveTiles.AreaTask() {
+            @Override public float processArea(int x0, int x1, int y0, int y1) {
+                return t.advectArea(source, xVel, yVel, dt0, x0, x1, y0, y1);
+            }
+        };
+        forEachBand(0, activeTiles.getTilesY(), target.getW() * activeTiles.getTileSize(), new BandTask() {
+            @Override public void processRows(int tileY0, int tileY1) {
+                activeTiles.processTileRows(tileY0, tileY1, 1, areaTask);
+            }
+        });
+        target.markActiveTilesChanged(activeTiles);
+
+        setBoundaries(target, b);
+        Instrumentation.stop(Instrumentation.ADVECT, startTime);
+    }
+
+    /**
+     * Sets the boundaries in the calling thread, as the edges are too few cells to split, and marking the changed
+     * edge cells in the trackers of the raster is not thread safe.
+     */
+    public void setBoundaries(Raster target, int b) {
+        target.setBoundaries(b);
+    }
+
+    /**
+     * Splits the rows y0 until y1 into bands and processes them in parallel, returning when all are done.
+     * @param rowWidth number of cells in a row, used to avoid splitting small workloads.
+     */
+    public void forEachBand(int y0, int y1, int rowWidth, BandTask task) {
+        final int rows = y1 - y0;
+        if (rows <= 0) return;
+
+        final int bandRows = bandRows(rows);
+        if (parallelism <= 1 || rows <= bandRows || (long) rows * rowWidth < MIN_PARALLEL_CELLS) {
+            task.processRows(y0, y1);
+        }
+        else {
+            pool.invoke(new BandAction(task, y0, y1, bandRows));
+        }
+    }
+
+    /**
+     * @return number of rows in each band when splitting the specified number of rows.
+     */
+    public int bandRows(int rows) {
+        if (deterministic) return DETERMINISTIC_BAND_ROWS;
+        else return Math.max(MIN_BAND_ROWS, (rows + parallelism * BANDS_PER_THREAD - 1) / (parallelism * BANDS_PER_THREAD));
+    }
+
+    /**
+     * Raises the non-negative float stored as bits in the accumulator to value, if value is larger.
+     * The result does not depend on the order of the calls.
+     */
+    public static void accumulateMax(AtomicInteger maxBits, float value) {
+        // The bit patterns of non-negative floats are ordered the same way as their values
+        final int bits = Float.floatToIntBits(Math.max(0f, value));
+        int current = maxBits.get();
+        while (bits > current && !maxBits.compareAndSet(current, bits)) {
+            current = maxBits.get();
+        }
+    }
+
+    private static final class BandAction extends RecursiveAction {
+        private final BandTask task;
+        private final int y0;
+        private final int y1;
+        private final int bandRows;
+
+        private BandAction(BandTask task, int y0, int y1, int bandRows) {
+            this.task = task;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.bandRows = bandRows;
+        }
+
+        @Override protected void compute() {
+            final int bands = (y1 - y0 + bandRows - 1) / bandRows;
+            if (bands <= 1) {
+                task.processRows(y0, y1);
+            }
+            else {
+                // Split at a band boundary, so the bands are the same however the work is divided
+                final int mid = y0 + (bands / 2) * bandRows;
+                invokeAll(new BandAction(task, y0, mid, bandRows),
+                          new BandAction(task, mid, y1, bandRows));
+            }
+        }
+    }
+}
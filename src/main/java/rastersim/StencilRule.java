@@ -0,0 +1,374 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Update rule for the cells of a raster, declared as the weights of the neighbours read, followed by terms added to
+ * each cell, instead of a hand written loop.  Each cell of the target becomes:
+ *
+ *   (sum of weight * neighbour in the order the weights were added) / divisor * scale + constant
+ *   + scale of each source raster * its cell + scale of each noise term * uniform random value from 0 to 1
+ *
+ * after which whole rows can be replaced by gaussian noise, as sources at the edges of the raster.
+ *
+ * The rule is compiled for the rasters it is applied to into flat arrays of index offsets and weights, and applied a
+ * row at a time in a few passes over the row: the first weights in one pass specialized for their number, each further
+ * weight or term in a pass of its own.  Each pass is a simple loop over contiguous arrays that the JIT compiles to
+ * vector instructions where the machine has them, and the pass over the first five weights runs through RasterKernels,
+ * so that it uses the vectorized kernels when they are available.  A new rule thus runs about as fast as a hand
+ * written loop.  Passes for unused terms, a divisor or scale of 1 and a constant of 0 are left out.
+ *
+ * The random values of each row are drawn from a NoiseSource seeded with NoiseStreams.seedFor(seed, step, row), first
+ * for each noise term in the order they were added and then for a gaussian row, so the result is the same however the
+ * rows are divided between threads.
+ */
+public final class StencilRule {
+
+    private final List<int[]> offsets = new ArrayList<int[]>();
+    private final List<Float> weights = new ArrayList<Float>();
+    private float divisor = 1;
+    private float scale = 1;
+    private float constant = 0;
+    private final List<Raster> sources = new ArrayList<Raster>();
+    private final List<Float> sourceScales = new ArrayList<Float>();
+    private final List<Float> noiseScales = new ArrayList<Float>();
+    private final List<GaussianRow> gaussianRows = new ArrayList<GaussianRow>();
+    private int reach;
+
+    /**
+     * Adds a neighbour to the weighted sum.  The same neighbour may be added more than once.
+     * @param dx column of the neighbour relative to the cell, at most the halo of the source raster away.
+     * @param dy row of the neighbour relative to the cell, positive downwards.
+     * @return this rule, for chaining.
+     */
+    public StencilRule weight(int dx, int dy, float weight) {
+        offsets.add(new int[]{dx, dy});
+        weights.add(weight);
+        reach = Math.max(reach, Math.max(Math.abs(dx), Math.abs(dy)));
+        return this;
+    }
+
+    /**
+     * @param divisor the weighted sum is divided by this, which gives different rounding than scaling with its inverse.
+     */
+    public StencilRule divide(float divisor) {
+        if (divisor == 0) throw new IllegalArgumentException("The divisor may not be zero");
+        this.divisor = divisor;
+        return this;
+    }
+
+    /**
+     * @param scale the weighted sum is multiplied by this, after dividing it by the divisor.
+     */
+    public StencilRule scale(float scale) {
+        this.scale = scale;
+        return this;
+    }
+
+    /**
+     * @param constant added to each cell.
+     */
+    public StencilRule constant(float constant) {
+        this.constant = constant;
+        return this;
+    }
+
+    /**
+     * Adds the cells of a raster, such as a heat or density source, scaled.
+     * @param source raster of the same size and halo as the target the rule is applied to.
+     */
+    public StencilRule source(Raster source, float scale) {
+        Check.notNull(source, "source");
+        sources.add(source);
+        sourceScales.add(scale);
+        return this;
+    }
+
+    /**
+     * Adds an independent uniform random value from 0 until scale to each cell.  A negative scale subtracts it.
+     */
+    public StencilRule noise(float scale) {
+        noiseScales.add(scale);
+        return this;
+    }
+
+    /**
+     * Replaces a row with random values offset + scale * max(minGaussian, gaussian random value), after the rest of
+     * the rule.
+     * @param row row to replace, with negative values counting from the bottom, so that -1 is the bottom row.
+     */
+    public StencilRule gaussianRow(int row, float offset, float scale, float minGaussian) {
+        gaussianRows.add(new GaussianRow(row, offset, scale, minGaussian));
+        return this;
+    }
+
+    /**
+     * @return true if applying the rule needs random values.
+     */
+    public boolean usesNoise() {
+        return !noiseScales.isEmpty() || !gaussianRows.isEmpty();
+    }
+
+    /**
+     * @return the largest distance of a neighbour from the cell, which the halo of the source raster must cover.
+     */
+    public int getReach() {
+        return reach;
+    }
+
+    /**
+     * Applies the rule to every cell, reading the source and writing the target.  The halo of the source must be up
+     * to date, and the halo of the target is not updated.
+     * @param noise used for the random values, reseeded for every row.  May be null if the rule does not use noise.
+     * @param seed base seed of the random values.
+     * @param step simulation step, so that every step gets different random values.
+     */
+    public void apply(Raster target, Raster source, NoiseSource noise, long seed, long step) {
+        final Kernel kernel = compile(target, source, noise);
+        kernel.processRows(0, target.getH(), noise, seed, step);
+        target.markChanged(0, 0, target.getW(), target.getH());
+    }
+
+    /**
+     * Like apply(), but processes bands of rows in parallel on the engine.
+     */
+    public void apply(Raster target, Raster source, NoiseSource noise, final long seed, final long step, StencilEngine engine) {
+        Check.notNull(engine, "engine");
+
+        final Kernel kernel = compile(target, source, noise);
+
+        // Each band draws from its own copy of the noise source, made here as copying changes the state of the source,
+        // which is not thread safe.  The bands start at multiples of bandRows
+        final int bandRows = engine.bandRows(target.getH());
+        final NoiseSource[] bandNoise = new NoiseSource[(target.getH() + bandRows - 1) / bandRows];
+        if (noise != null) {
+            for (int i = 0; i < bandNoise.length; i++) {
+                bandNoise[i] = noise.copy();
+            }
+        }
+
+        engine.forEachBand(0, target.getH(), target.getW(), new StencilEngine.BandTask() {
+            @Override public void processRows(int y0, int y1) {
+                kernel.processRows(y0, y1, bandNoise[y0 / bandRows], seed, step);
+            }
+        });
+        target.markChanged(0, 0, target.getW(), target.getH());
+    }
+
+    /**
+     * Turns the declared rule into flat arrays for the row loops of the specified rasters.
+     */
+    private Kernel compile(Raster target, Raster source, NoiseSource noise) {
+        Check.notNull(target, "target");
+        Check.notNull(source, "source");
+        if (weights.isEmpty()) throw new IllegalStateException("The rule has no neighbour weights");
+        if (target == source) throw new IllegalArgumentException("The target may not be the source raster");
+        if (usesNoise() && noise == null) throw new IllegalArgumentException("The rule uses noise, but no noise source was given");
+        if (reach > source.getHalo()) throw new IllegalArgumentException("The rule reads cells " + reach + " away, but the source halo is " + source.getHalo());
+        target.checkSizeMatches(source);
+
+        final int stride = source.getStride();
+        final int[] rawOffsets = new int[weights.size()];
+        final float[] rawWeights = new float[weights.size()];
+        for (int i = 0; i < rawOffsets.length; i++) {
+            rawOffsets[i] = offsets.get(i)[0] + offsets.get(i)[1] * stride;
+            rawWeights[i] = weights.get(i);
+        }
+
+        final float[][] sourceData = new float[sources.size()][];
+        final float[] rawSourceScales = new float[sources.size()];
+        for (int i = 0; i < sourceData.length; i++) {
+            target.checkSizeMatches(sources.get(i));
+            sourceData[i] = sources.get(i).getData();
+            rawSourceScales[i] = sourceScales.get(i);
+        }
+
+        final float[] rawNoiseScales = new float[noiseScales.size()];
+        for (int i = 0; i < rawNoiseScales.length; i++) {
+            rawNoiseScales[i] = noiseScales.get(i);
+        }
+
+        // Rows replaced with gaussian noise, by row, at most one per row with the last added one winning
+        final GaussianRow[] rows = new GaussianRow[target.getH()];
+        for (GaussianRow row : gaussianRows) {
+            final int y = row.row < 0 ? target.getH() + row.row : row.row;
+            if (y < 0 || y >= target.getH()) throw new IllegalArgumentException("The gaussian row " + row.row + " is outside the raster");
+            rows[y] = row;
+        }
+
+        return new Kernel(target, source, rawOffsets, rawWeights, divisor, scale, constant, sourceData, rawSourceScales, rawNoiseScales, rows);
+    }
+
+    private static final class GaussianRow {
+        final int row;
+        final float offset;
+        final float scale;
+        final float minGaussian;
+
+        GaussianRow(int row, float offset, float scale, float minGaussian) {
+            this.row = row;
+            this.offset = offset;
+            this.scale = scale;
+            this.minGaussian = minGaussian;
+        }
+    }
+
+    /**
+     * A rule compiled for a pair of rasters.
+     */
+    private static final class Kernel {
+        private final float[] target;
+        private final float[] source;
+        private final int w;
+        private final int origin;
+        private final int stride;
+        private final int[] offsets;
+        private final float[] weights;
+        private final float divisor;
+        private final float scale;
+        private final float constant;
+        private final float[][] sources;
+        private final float[] sourceScales;
+        private final float[] noiseScales;
+        private final GaussianRow[] gaussianRows;
+        private final boolean usesNoise;
+
+        Kernel(Raster target, Raster source, int[] offsets, float[] weights, float divisor, float scale, float constant,
+               float[][] sources, float[] sourceScales, float[] noiseScales, GaussianRow[] gaussianRows) {
+            this.target = target.getData();
+            this.source = source.getData();
+            this.w = target.getW();
+            this.origin = target.rawIndex(0, 0);
+            this.stride = target.getStride();
+            this.offsets = offsets;
+            this.weights = weights;
+            this.divisor = divisor;
+            this.scale = scale;
+            this.constant = constant;
+            this.sources = sources;
+            this.sourceScales = sourceScales;
+            this.noiseScales = noiseScales;
+            this.gaussianRows = gaussianRows;
+
+            boolean anyGaussianRows = false;
+            for (GaussianRow row : gaussianRows) {
+                anyGaussianRows |= row != null;
+            }
+            usesNoise = noiseScales.length > 0 || anyGaussianRows;
+        }
+
+        void processRows(int y0, int y1, NoiseSource random, long seed, long step) {
+            final float[] sum = new float[w];
+            final float[][] noise = new float[noiseScales.length][w];
+            for (int y = y0; y < y1; y++) {
+                final int row = origin + y * stride;
+
+                // Draw the random values first, so that the arithmetic loops below can be vectorized
+                if (usesNoise) random.setSeed(NoiseStreams.seedFor(seed, step, y));
+                for (float[] values : noise) {
+                    for (int x = 0; x < w; x++) {
+                        values[x] = random.nextFloat();
+                    }
+                }
+
+                final boolean divided = sumNeighbours(sum, row);
+                finish(sum, row, noise, divided);
+
+                final GaussianRow gaussianRow = gaussianRows[y];
+                if (gaussianRow != null) {
+                    for (int x = 0; x < w; x++) {
+                        target[row + x] = gaussianRow.offset + gaussianRow.scale * Math.max(gaussianRow.minGaussian, random.nextGaussian());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sums the weighted neighbours, with the first weights in a single pass specialized for their count.
+         * @return true if the sums were also divided by the divisor.
+         */
+        private boolean sumNeighbours(float[] sum, int row) {
+            final float[] s = source;
+            int k;
+            if (offsets.length >= 5) {
+                // With five weights the whole sum is known, so it is divided in the same pass.  Dividing by 1 is exact
+                if (offsets.length == 5) {
+                    RasterKernels.get().weightedSumRow(sum, s, row, w, offsets, weights, divisor);
+                    return true;
+                }
+                RasterKernels.get().weightedSumRow(sum, s, row, w, offsets, weights, 1);
+                k = 5;
+            }
+            else if (offsets.length >= 3) {
+                final int a = row + offsets[0], b = row + offsets[1], c = row + offsets[2];
+                final float wa = weights[0], wb = weights[1], wc = weights[2];
+                for (int x = 0; x < w; x++) {
+                    sum[x] = s[a + x] * wa + s[b + x] * wb + s[c + x] * wc;
+                }
+                k = 3;
+            }
+            else {
+                final int a = row + offsets[0];
+                final float wa = weights[0];
+                for (int x = 0; x < w; x++) {
+                    sum[x] = s[a + x] * wa;
+                }
+                k = 1;
+            }
+
+            for (; k < offsets.length; k++) {
+                final int a = row + offsets[k];
+                final float wa = weights[k];
+                for (int x = 0; x < w; x++) {
+                    sum[x] += s[a + x] * wa;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Divides, scales and adds the other terms to the sums, and stores them in the target row.
+         */
+        private void finish(float[] sum, int row, float[][] noise, boolean divided) {
+            final float[] t = target;
+            if (divisor != 1 && !divided) {
+                for (int x = 0; x < w; x++) {
+                    sum[x] /= divisor;
+                }
+            }
+            if (scale != 1 || constant != 0) {
+                for (int x = 0; x < w; x++) {
+                    sum[x] = sum[x] * scale + constant;
+                }
+            }
+            for (int k = 0; k < sources.length; k++) {
+                final float[] values = sources[k];
+                final float sourceScale = sourceScales[k];
+                for (int x = 0; x < w; x++) {
+                    sum[x] += values[row + x] * sourceScale;
+                }
+            }
+
+            if (noise.length == 0) {
+                System.arraycopy(sum, 0, t, row, w);
+                return;
+            }
+
+            for (int k = 0; k < noise.length - 1; k++) {
+                final float[] values = noise[k];
+                final float noiseScale = noiseScales[k];
+                for (int x = 0; x < w; x++) {
+                    sum[x] += values[x] * noiseScale;
+                }
+            }
+            final float[] values = noise[noise.length - 1];
+            final float noiseScale = noiseScales[noise.length - 1];
+            for (int x = 0; x < w; x++) {
+                t[row + x] = sum[x] + values[x] * noiseScale;
+            }
+        }
+    }
+}
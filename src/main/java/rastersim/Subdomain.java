@@ -0,0 +1,208 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.io.IOException;
+
+/**
+ * The rows of a distributed raster that one worker owns, when a simulation is split across workers in horizontal
+ * strips.
+ *
+ * Each worker keeps its strip in a local Raster of the full width, whose top and bottom ghost rows hold copies of the
+ * neighbouring workers' edge rows.  The ghost rows are exchanged over a HaloTransport so that they contain what
+ * Raster.updateHalo() would put there in a single raster of the full size, including wrapping around from the last
+ * worker to the first with EdgeMode.WRAP.  A stencil step on the local raster then gives the same result as on the
+ * full raster.
+ */
+public final class Subdomain {
+
+    private final int globalW;
+    private final int globalH;
+    private final EdgeMode edgeMode;
+    private final int halo;
+    private final HaloTransport transport;
+    private final int y0;
+    private final int y1;
+    private final int upRank;
+    private final int downRank;
+
+    /**
+     * @param halo number of ghost rows and columns, as needed by the stencils run on the local rasters.
+     *             Each worker must own more rows than this.
+     */
+    public Subdomain(int globalW, int globalH, EdgeMode edgeMode, int halo, HaloTransport transport) {
+        Check.positive(globalW, "globalW");
+        Check.positive(globalH, "globalH");
+        Check.notNull(edgeMode, "edgeMode");
+        Check.positiveOrZero(halo, "halo");
+        Check.notNull(transport, "transport");
+
+        this.globalW = globalW;
+        this.globalH = globalH;
+        this.edgeMode = edgeMode;
+        this.halo = halo;
+        this.transport = transport;
+
+        final int size = transport.getSize();
+        final int rank = transport.getRank();
+        y0 = (int) ((long) globalH * rank / size);
+        y1 = (int) ((long) globalH * (rank + 1) / size);
+        if ((long) globalH / size <= halo) throw new IllegalArgumentException("Each of the " + size + " workers needs more than " + halo + " of the " + globalH + " rows");
+
+        // Neighbours in the rows above and below, -1 at the edges of the raster unless it wraps to another worker
+        final boolean wrap = edgeMode == EdgeMode.WRAP && size > 1;
+        upRank = rank > 0 ? rank - 1 : (wrap ? size - 1 : -1);
+        downRank = rank < size - 1 ? rank + 1 : (wrap ? 0 : -1);
+    }
+
+    public int getGlobalW() {
+        return globalW;
+    }
+
+    public int getGlobalH() {
+        return globalH;
+    }
+
+    public EdgeMode getEdgeMode() {
+        return edgeMode;
+    }
+
+    public int getHalo() {
+        return halo;
+    }
+
+    public HaloTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return first row of the full raster owned by this worker.
+     */
+    public int getY0() {
+        return y0;
+    }
+
+    /**
+     * @return row after the last row of the full raster owned by this worker.
+     */
+    public int getY1() {
+        return y1;
+    }
+
+    public int getRows() {
+        return y1 - y0;
+    }
+
+    /**
+     * @return a local raster for the rows owned by this worker, with local row 0 being row getY0() of the full raster.
+     */
+    public Raster createRaster() {
+        return new Raster(globalW, getRows(), edgeMode, halo);
+    }
+
+    /**
+     * Fills the ghost cells of the local raster, exchanging the edge rows with the neighbouring workers.
+     */
+    public void updateHalo(Raster raster) throws IOException {
+        beginHaloExchange(raster);
+        finishHaloExchange(raster);
+    }
+
+    /**
+     * Sends the edge rows of the local raster to the neighbouring workers, without waiting for theirs.  The rows that
+     * do not read the ghost rows can be computed before calling finishHaloExchange().
+     */
+    public void beginHaloExchange(Raster raster) throws IOException {
+        checkRaster(raster);
+        if (halo == 0) return;
+
+        // The ghost columns are sent along with the rows, so that the corners of the ghost rows are right
+        raster.updateHaloColumns();
+
+        final float[] data = raster.getData();
+        final int length = halo * raster.getStride();
+        if (upRank >= 0) transport.send(upRank, data, raster.rawIndex(-halo, 0), length);
+        if (downRank >= 0) transport.send(downRank, data, raster.rawIndex(-halo, getRows() - halo), length);
+    }
+
+    /**
+     * Receives the edge rows of the neighbouring workers into the ghost rows of the local raster, waiting for them,
+     * and fills the ghost rows at the top and bottom of the full raster according to the edge mode.
+     */
+    public void finishHaloExchange(Raster raster) throws IOException {
+        checkRaster(raster);
+        if (halo == 0) return;
+
+        final float[] data = raster.getData();
+        final int stride = raster.getStride();
+        final int length = halo * stride;
+
+        // Each neighbour sends its top rows before its bottom rows, which matters when both neighbours are the same
+        if (downRank >= 0) transport.receive(downRank, data, raster.rawIndex(-halo, getRows()), length);
+        if (upRank >= 0) transport.receive(upRank, data, raster.rawIndex(-halo, -halo), length);
+
+        // Ghost rows outside the full raster mirror, repeat or wrap to rows owned by this worker
+        for (int g = 1; g <= halo; g++) {
+            if (upRank < 0) {
+                System.arraycopy(data, raster.rawIndex(-halo, edgeMode.resolve(-g, globalH)), data, raster.rawIndex(-halo, -g), stride);
+            }
+            if (downRank < 0) {
+                final int sourceRow = edgeMode.resolve(globalH - 1 + g, globalH) - y0;
+                System.arraycopy(data, raster.rawIndex(-halo, sourceRow), data, raster.rawIndex(-halo, getRows() - 1 + g), stride);
+            }
+        }
+    }
+
+    /**
+     * Runs a stencil over the rows of the local raster, overlapping the halo exchange with the rows that do not read
+     * the ghost rows.  The task gets local row numbers.
+     */
+    public void processRows(Raster raster, StencilEngine.BandTask task) throws IOException {
+        final int rows = getRows();
+        final int innerEnd = Math.max(halo, rows - halo);
+
+        beginHaloExchange(raster);
+        task.processRows(halo, innerEnd);
+        finishHaloExchange(raster);
+
+        task.processRows(0, halo);
+        task.processRows(innerEnd, rows);
+    }
+
+    /**
+     * Copies the rows owned by this worker from the local raster into a raster of the full size.
+     */
+    public void copyTo(Raster local, Raster global) {
+        checkRaster(local);
+        checkGlobal(global);
+
+        for (int y = 0; y < getRows(); y++) {
+            System.arraycopy(local.getData(), local.rawIndex(0, y), global.getData(), global.rawIndex(0, y0 + y), globalW);
+        }
+        global.markChanged(0, y0, globalW, y0 + getRows());
+    }
+
+    /**
+     * Copies the rows owned by this worker from a raster of the full size into the local raster.
+     */
+    public void copyFrom(Raster global, Raster local) {
+        checkRaster(local);
+        checkGlobal(global);
+
+        for (int y = 0; y < getRows(); y++) {
+            System.arraycopy(global.getData(), global.rawIndex(0, y0 + y), local.getData(), local.rawIndex(0, y), globalW);
+        }
+        local.markChanged(0, 0, globalW, getRows());
+    }
+
+    private void checkRaster(Raster raster) {
+        Check.equal(raster.getW(), "raster width", globalW, "subdomain width");
+        Check.equal(raster.getH(), "raster height", getRows(), "subdomain rows");
+        Check.equal(raster.getHalo(), "raster halo", halo, "subdomain halo");
+    }
+
+    private void checkGlobal(Raster global) {
+        Check.equal(global.getW(), "global raster width", globalW, "subdomain width");
+        Check.equal(global.getH(), "global raster height", globalH, "subdomain height");
+    }
+}
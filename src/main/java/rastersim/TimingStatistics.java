@@ -0,0 +1,48 @@
+package rastersim;
+
+/**
+ * Summary of a LatencyHistogram at one point in time, with the durations in milliseconds.
+ */
+public final class TimingStatistics {
+
+    private static final double NANOS_TO_MILLIS = 0.000001;
+
+    private final long count;
+    private final double mean;
+    private final double median;
+    private final double percentile99;
+    private final double max;
+
+    public TimingStatistics(LatencyHistogram histogram) {
+        count = histogram.getCount();
+        mean = histogram.getMean() * NANOS_TO_MILLIS;
+        median = histogram.getPercentile(50) * NANOS_TO_MILLIS;
+        percentile99 = histogram.getPercentile(99) * NANOS_TO_MILLIS;
+        max = histogram.getMax() * NANOS_TO_MILLIS;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getMedian() {
+        return median;
+    }
+
+    public double getPercentile99() {
+        return percentile99;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    @Override public String toString() {
+        return String.format("%.2f ms mean, %.2f ms median, %.2f ms p99, %.2f ms max, %d samples",
+                             mean, median, percentile99, max, count);
+    }
+}
@@ -0,0 +1,75 @@
+package rastersim;
+
+import org.flowutils.Check;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free exchange of frames from one producer thread to one consumer thread, using three buffers.
+ *
+ * The producer writes to its own buffer and publishes it, the consumer reads its own buffer and picks up the newest
+ * published one when it wants to.  Neither thread ever waits for the other, and a buffer is never written while the
+ * consumer reads it.  Frames the consumer did not pick up before the next was published are skipped.
+ *
+ * A published buffer is not handed back to the producer until it has published another buffer, so the producer
+ * can keep reading the last buffer it published while writing the next.
+ */
+public final class TripleBuffer<T> {
+
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final Object[] buffers;
+
+    /**
+     * Index of the buffer between the producer and the consumer, with the FRESH flag set if it was published after
+     * the consumer last picked a buffer up.  Exchanging it also makes the buffer contents visible to the other thread.
+     */
+    private final AtomicInteger middle = new AtomicInteger(1);
+
+    // Only accessed by the producer
+    private int writeIndex = 0;
+
+    // Only accessed by the consumer
+    private int readIndex = 2;
+
+    /**
+     * The first buffer is the initial write buffer, and the second buffer starts out as the published one.
+     */
+    public TripleBuffer(T first, T second, T third) {
+        Check.notNull(first, "first");
+        Check.notNull(second, "second");
+        Check.notNull(third, "third");
+
+        buffers = new Object[]{first, second, third};
+    }
+
+    /**
+     * @return the buffer the producer should write the next frame to.
+     */
+    @SuppressWarnings("unchecked")
+    public T getWriteBuffer() {
+        return (T) buffers[writeIndex];
+    }
+
+    /**
+     * Publishes the write buffer to the consumer.  Only called by the producer.
+     * @return the new write buffer.
+     */
+    public T publish() {
+        writeIndex = middle.getAndSet(writeIndex | FRESH) & INDEX_MASK;
+        return getWriteBuffer();
+    }
+
+    /**
+     * Picks up the most recently published buffer, if there is a new one.  Only called by the consumer.
+     * @return the newest published buffer.  It is not modified until the next call.
+     */
+    @SuppressWarnings("unchecked")
+    public T acquireLatest() {
+        if ((middle.get() & FRESH) != 0) {
+            readIndex = middle.getAndSet(readIndex) & INDEX_MASK;
+        }
+        return (T) buffers[readIndex];
+    }
+}
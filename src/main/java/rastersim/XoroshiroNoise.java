@@ -0,0 +1,59 @@
+package rastersim;
+
+/**
+ * Fast, non-synchronized noise source using the xoroshiro128+ generator, with table based gaussian values.
+ */
+public final class XoroshiroNoise implements NoiseSource {
+
+    private static final float FLOAT_UNIT = 1f / (1 << 24);
+
+    private long s0;
+    private long s1;
+
+    public XoroshiroNoise() {
+        this(System.nanoTime());
+    }
+
+    public XoroshiroNoise(long seed) {
+        setSeed(seed);
+    }
+
+    @Override public void setSeed(long seed) {
+        // Expand the seed with SplitMix64, which never gives an all zero state
+        s0 = NoiseStreams.mix(seed + 0x9E3779B97F4A7C15L);
+        s1 = NoiseStreams.mix(seed + 2 * 0x9E3779B97F4A7C15L);
+        if (s0 == 0 && s1 == 0) s1 = 1;
+    }
+
+    public long nextLong() {
+        final long a = s0;
+        long b = s1;
+        final long result = a + b;
+
+        b ^= a;
+        s0 = Long.rotateLeft(a, 24) ^ b ^ (b << 16);
+        s1 = Long.rotateLeft(b, 37);
+
+        return result;
+    }
+
+    @Override public float nextFloat() {
+        // The high bits are the most random ones
+        return (nextLong() >>> 40) * FLOAT_UNIT;
+    }
+
+    @Override public int nextInt(int bound) {
+        if (bound <= 0) throw new IllegalArgumentException("The bound should be positive, but was " + bound);
+
+        // Scale a 31 bit value to the bound, the bias is negligible for the bounds used with noise
+        return (int) (((nextLong() >>> 33) * bound) >>> 31);
+    }
+
+    @Override public float nextGaussian() {
+        return GaussianTable.gaussian(nextLong() >>> 34);
+    }
+
+    @Override public NoiseSource copy() {
+        return new XoroshiroNoise(nextLong());
+    }
+}
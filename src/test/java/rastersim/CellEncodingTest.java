@@ -0,0 +1,120 @@
+package rastersim;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CellEncodingTest {
+
+    private static final CellEncoding FIXED16 = CellEncoding.fixed16(-1, 3);
+    private static final CellEncoding FIXED8 = CellEncoding.fixed8(-1, 3);
+
+    @Test
+    public void testFixedStoresEveryLevel() {
+        checkStoresEveryLevel(FIXED16);
+        checkStoresEveryLevel(FIXED8);
+    }
+
+    private void checkStoresEveryLevel(CellEncoding encoding) {
+        final int levels = 1 << encoding.getBitsPerCell();
+        final Object data = encoding.allocate(levels);
+        final float step = (encoding.getMax() - encoding.getMin()) / (levels - 1);
+        for (int level = 0; level < levels; level++) {
+            encoding.encode(data, level, encoding.getMin() + level * step);
+        }
+
+        final float[] values = new float[levels];
+        encoding.decode(data, 0, values, 0, levels);
+        assertEquals(encoding.getMin(), values[0], 0);
+        assertEquals(encoding.getMax(), values[levels - 1], encoding.getPrecision(encoding.getMax()));
+        for (int level = 0; level < levels; level++) {
+            assertEquals(encoding.getMin() + level * step, values[level], 0);
+            assertEquals(values[level], encoding.decode(data, level), 0);
+            if (level > 0) assertTrue(values[level] > values[level - 1]);
+        }
+    }
+
+    @Test
+    public void testFixedRoundsToNearestLevel() {
+        checkRoundsToNearestLevel(FIXED16);
+        checkRoundsToNearestLevel(FIXED8);
+    }
+
+    private void checkRoundsToNearestLevel(CellEncoding encoding) {
+        final Object data = encoding.allocate(1);
+        final java.util.Random random = new java.util.Random(1);
+        for (int i = 0; i < 100000; i++) {
+            final float value = encoding.getMin() + random.nextFloat() * (encoding.getMax() - encoding.getMin());
+            encoding.encode(data, 0, value);
+            assertEquals(value, encoding.decode(data, 0), encoding.getPrecision(value));
+        }
+    }
+
+    @Test
+    public void testFixedClampsToRange() {
+        checkClampsToRange(FIXED16);
+        checkClampsToRange(FIXED8);
+    }
+
+    private void checkClampsToRange(CellEncoding encoding) {
+        final float[] values = {-1.5f, -1000, -Float.MAX_VALUE, Float.NEGATIVE_INFINITY, 3.5f, 1000, Float.MAX_VALUE, Float.POSITIVE_INFINITY};
+        final float[] expected = {-1, -1, -1, -1, 3, 3, 3, 3};
+        final Object data = encoding.allocate(values.length);
+        encoding.encode(values, 0, data, 0, values.length);
+
+        final float[] decoded = new float[values.length];
+        encoding.decode(data, 0, decoded, 0, values.length);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(encoding + " " + values[i], expected[i], decoded[i], encoding.getPrecision(expected[i]));
+
+            encoding.encode(data, i, values[i]);
+            assertEquals(decoded[i], encoding.decode(data, i), 0);
+        }
+    }
+
+    @Test
+    public void testFixedStoresNaNAsMin() {
+        for (CellEncoding encoding : new CellEncoding[] {FIXED16, FIXED8}) {
+            final Object data = encoding.allocate(2);
+            encoding.encode(data, 0, Float.NaN);
+            encoding.encode(new float[] {Float.NaN}, 0, data, 1, 1);
+            assertEquals(encoding.getMin(), encoding.decode(data, 0), 0);
+            assertEquals(encoding.getMin(), encoding.decode(data, 1), 0);
+        }
+    }
+
+    @Test
+    public void testHalfKeepsSpecialValues() {
+        final CellEncoding encoding = CellEncoding.HALF;
+        final float[] values = {Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 1e6f, -0f};
+        final Object data = encoding.allocate(values.length);
+        encoding.encode(values, 0, data, 0, values.length);
+
+        assertTrue(Float.isNaN(encoding.decode(data, 0)));
+        assertEquals(Float.POSITIVE_INFINITY, encoding.decode(data, 1), 0);
+        assertEquals(Float.NEGATIVE_INFINITY, encoding.decode(data, 2), 0);
+        assertEquals(Float.POSITIVE_INFINITY, encoding.decode(data, 3), 0);
+        assertEquals(Float.floatToRawIntBits(-0f), Float.floatToRawIntBits(encoding.decode(data, 4)));
+    }
+
+    @Test
+    public void testInvalidRanges() {
+        final float[][] ranges = {{1, 1}, {2, 1}, {Float.NaN, 1}, {0, Float.NaN}, {0, Float.POSITIVE_INFINITY}, {Float.NEGATIVE_INFINITY, 0}};
+        for (float[] range : ranges) {
+            try {
+                CellEncoding.fixed16(range[0], range[1]);
+                fail("Expected an exception for " + range[0] + " to " + range[1]);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testEquality() {
+        assertEquals(CellEncoding.fixed16(-1, 3), FIXED16);
+        assertEquals(CellEncoding.fixed16(-1, 3).hashCode(), FIXED16.hashCode());
+        assertNotEquals(FIXED8, FIXED16);
+        assertNotEquals(CellEncoding.fixed16(-1, 2), FIXED16);
+    }
+}
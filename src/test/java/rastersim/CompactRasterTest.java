@@ -0,0 +1,97 @@
+package rastersim;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompactRasterTest {
+
+    private static final CellEncoding[] ENCODINGS = {CellEncoding.HALF, CellEncoding.fixed16(-1, 3), CellEncoding.fixed8(-1, 3)};
+
+    @Test
+    public void testAddMatchesRaster() {
+        for (CellEncoding encoding : ENCODINGS) {
+            final CompactRaster target = randomRaster(encoding, 1);
+            final CompactRaster source = randomRaster(encoding, 2);
+            final Raster expected = new Raster(target.getW(), target.getH(), target.getEdgeMode());
+            final Raster sourceValues = new Raster(target.getW(), target.getH(), target.getEdgeMode());
+            target.copyTo(expected);
+            source.copyTo(sourceValues);
+
+            expected.add(sourceValues, 0.37f, 0.01f);
+            target.add(source, 0.37f, 0.01f);
+
+            checkEqualsRounded(encoding, expected, target);
+        }
+    }
+
+    @Test
+    public void testDiffuseStepMatchesRaster() {
+        for (CellEncoding encoding : ENCODINGS) {
+            final CompactRaster source = randomRaster(encoding, 3);
+            final CompactRaster target = randomRaster(encoding, 4);
+            final Raster sourceValues = new Raster(source.getW(), source.getH(), source.getEdgeMode());
+            final Raster expected = new Raster(source.getW(), source.getH(), source.getEdgeMode());
+            source.copyTo(sourceValues);
+            target.copyTo(expected);
+
+            expected.diffuseStep(sourceValues, 0.2f, 0.1f, 0.5f);
+            target.diffuseStep(source, 0.2f, 0.1f, 0.5f);
+
+            checkEqualsRounded(encoding, expected, target);
+        }
+    }
+
+    @Test
+    public void testCopyFrom() {
+        for (CellEncoding encoding : ENCODINGS) {
+            final CompactRaster source = randomRaster(encoding, 5);
+            final CompactRaster target = new CompactRaster(source.getW(), source.getH(), source.getEdgeMode(), encoding);
+            target.copyFrom(source);
+            for (int y = 0; y < source.getH(); y++) {
+                for (int x = 0; x < source.getW(); x++) {
+                    assertEquals(source.get(x, y), target.get(x, y), 0);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCopyFromOtherEncoding() {
+        final CompactRaster source = new CompactRaster(4, 4, EdgeMode.CLAMP, CellEncoding.HALF);
+        new CompactRaster(4, 4, EdgeMode.CLAMP, CellEncoding.fixed8(0, 1)).copyFrom(source);
+    }
+
+    @Test
+    public void testByteCount() {
+        assertEquals(200, new CompactRaster(10, 10, EdgeMode.CLAMP, CellEncoding.HALF).getByteCount());
+        assertEquals(100, new CompactRaster(10, 10, EdgeMode.CLAMP, CellEncoding.fixed8(0, 1)).getByteCount());
+    }
+
+    /**
+     * Checks that each cell of the compact raster is the expected value rounded to the encoding.
+     */
+    private void checkEqualsRounded(CellEncoding encoding, Raster expected, CompactRaster actual) {
+        final Object rounded = encoding.allocate(1);
+        for (int y = 0; y < expected.getH(); y++) {
+            for (int x = 0; x < expected.getW(); x++) {
+                encoding.encode(rounded, 0, expected.get(x, y));
+                assertEquals(encoding + " at " + x + ", " + y, encoding.decode(rounded, 0), actual.get(x, y), 0);
+            }
+        }
+    }
+
+    private CompactRaster randomRaster(CellEncoding encoding, long seed) {
+        // Wide enough for the vector kernels and their scalar tails
+        final CompactRaster raster = new CompactRaster(75, 23, EdgeMode.WRAP, encoding);
+        final Random random = new Random(seed);
+        for (int y = 0; y < raster.getH(); y++) {
+            for (int x = 0; x < raster.getW(); x++) {
+                raster.set(x, y, random.nextFloat() * 2);
+            }
+        }
+        return raster;
+    }
+}
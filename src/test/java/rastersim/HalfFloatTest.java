@@ -0,0 +1,112 @@
+package rastersim;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HalfFloatTest {
+
+    @Test
+    public void testToFloatIsExact() {
+        for (int half = 0; half < 0x10000; half++) {
+            final int exponent = (half >>> 10) & 0x1F;
+            final int mantissa = half & 0x3FF;
+            final boolean negative = (half & 0x8000) != 0;
+            final float value = HalfFloat.toFloat((short) half);
+
+            if (exponent == 31) {
+                if (mantissa == 0) assertEquals(negative ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY, value, 0);
+                else assertTrue(Float.isNaN(value));
+            }
+            else {
+                // Subnormals have no implicit leading bit, and the exponent of the smallest normals
+                final double magnitude = exponent == 0 ? Math.scalb((double) mantissa, -24)
+                                                       : Math.scalb((double) (mantissa | 0x400), exponent - 25);
+                assertEquals(Integer.toHexString(half), Double.doubleToLongBits(negative ? -magnitude : magnitude),
+                             Double.doubleToLongBits(value));
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTripOfAllHalves() {
+        for (int half = 0; half < 0x10000; half++) {
+            final float value = HalfFloat.toFloat((short) half);
+            final int roundTrip = HalfFloat.fromFloat(value) & 0xFFFF;
+
+            // NaNs keep their sign and payload, and become quiet
+            if (Float.isNaN(value)) assertEquals(Integer.toHexString(half), half | 0x200, roundTrip);
+            else assertEquals(Integer.toHexString(half), half, roundTrip);
+        }
+    }
+
+    @Test
+    public void testRoundsToNearestEven() {
+        // Floats have enough bits for the exact midpoint between two consecutive halves, up to the one between the
+        // largest finite half and the infinity that an unbounded exponent would give next
+        for (int sign = 0; sign <= 0x8000; sign += 0x8000) {
+            for (int lower = 0; lower < 0x7C00; lower++) {
+                final int upper = lower + 1;
+                final float lowerValue = Math.abs(HalfFloat.toFloat((short) lower));
+                final float upperValue = upper == 0x7C00 ? 65536f : HalfFloat.toFloat((short) upper);
+                final float midpoint = (lowerValue + upperValue) / 2;
+                final float signum = sign == 0 ? 1 : -1;
+                final int even = (lower & 1) == 0 ? lower : upper;
+
+                assertEquals(sign | lower, HalfFloat.fromFloat(signum * lowerValue) & 0xFFFF);
+                assertEquals(sign | lower, HalfFloat.fromFloat(signum * Math.nextUp(lowerValue)) & 0xFFFF);
+                assertEquals(sign | lower, HalfFloat.fromFloat(signum * Math.nextDown(midpoint)) & 0xFFFF);
+                assertEquals(sign | even,  HalfFloat.fromFloat(signum * midpoint) & 0xFFFF);
+                assertEquals(sign | upper, HalfFloat.fromFloat(signum * Math.nextUp(midpoint)) & 0xFFFF);
+                assertEquals(sign | upper, HalfFloat.fromFloat(signum * Math.nextDown(upperValue)) & 0xFFFF);
+            }
+        }
+    }
+
+    @Test
+    public void testSpecialValues() {
+        assertEquals(0x0000, HalfFloat.fromFloat(0f) & 0xFFFF);
+        assertEquals(0x8000, HalfFloat.fromFloat(-0f) & 0xFFFF);
+        assertEquals(0x0000, HalfFloat.fromFloat(Float.MIN_VALUE) & 0xFFFF);
+        assertEquals(0x0001, HalfFloat.fromFloat(HalfFloat.MIN_VALUE) & 0xFFFF);
+        assertEquals(0x7BFF, HalfFloat.fromFloat(HalfFloat.MAX_VALUE) & 0xFFFF);
+        assertEquals(0x7C00, HalfFloat.fromFloat(1e6f) & 0xFFFF);
+        assertEquals(0x7C00, HalfFloat.fromFloat(Float.MAX_VALUE) & 0xFFFF);
+        assertEquals(0x7C00, HalfFloat.fromFloat(Float.POSITIVE_INFINITY) & 0xFFFF);
+        assertEquals(0xFC00, HalfFloat.fromFloat(Float.NEGATIVE_INFINITY) & 0xFFFF);
+        assertEquals(0x7E00, HalfFloat.fromFloat(Float.NaN) & 0xFFFF);
+        assertEquals(0xFE00, HalfFloat.fromFloat(Float.intBitsToFloat(0xFF800001)) & 0xFFFF);
+        assertEquals(1f, HalfFloat.toFloat((short) 0x3C00), 0);
+        assertEquals(-2f, HalfFloat.toFloat((short) 0xC000), 0);
+    }
+
+    @Test
+    public void testArrayConversionsMatchSingleValues() {
+        final short[] halves = new short[0x10000 + 13];
+        for (int i = 0; i < halves.length; i++) {
+            halves[i] = (short) (i * 40503);
+        }
+        final float[] values = new float[halves.length];
+        final java.util.Random random = new java.util.Random(1);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Float.intBitsToFloat(random.nextInt());
+        }
+
+        checkArrayConversions(RasterKernels.scalar(), halves, values);
+        if (RasterKernels.vector() != null) checkArrayConversions(RasterKernels.vector(), halves, values);
+    }
+
+    private void checkArrayConversions(RasterKernels kernels, short[] halves, float[] values) {
+        final float[] floats = new float[halves.length + 3];
+        kernels.halfToFloat(floats, 3, halves, 0, halves.length);
+        for (int i = 0; i < halves.length; i++) {
+            assertEquals(kernels.getName(), Float.floatToRawIntBits(HalfFloat.toFloat(halves[i])), Float.floatToRawIntBits(floats[3 + i]));
+        }
+
+        final short[] rounded = new short[values.length + 5];
+        kernels.floatToHalf(rounded, 5, values, 0, values.length);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(kernels.getName(), HalfFloat.fromFloat(values[i]), rounded[5 + i]);
+        }
+    }
+}
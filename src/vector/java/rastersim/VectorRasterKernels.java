@@ -0,0 +1,133 @@
+package rastersim;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import static jdk.incubator.vector.VectorOperators.*;
+
+/**
+ * Raster kernels vectorized with the incubating Java Vector API.
+ * Each lane does the same operations in the same order as the scalar kernels, and the row tails use the scalar code.
+ */
+final class VectorRasterKernels extends RasterKernels {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    // Integer and short lanes matching the float lanes, for the half precision conversions
+    private static final VectorSpecies<Integer> INT_SPECIES = VectorSpecies.of(int.class, SPECIES.vectorShape());
+    private static final VectorSpecies<Short> SHORT_SPECIES = VectorSpecies.of(short.class, VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+
+    /**
+     * Narrower vectors are unlikely to beat the scalar loops, which the JIT can vectorize partially on its own.
+     */
+    private static final int MIN_LANES = 4;
+
+    private final RasterKernels scalar = RasterKernels.scalar();
+
+    @Override public String getName() {
+        return "vector" + SPECIES.length();
+    }
+
+    @Override protected boolean isSupported() {
+        return SPECIES.length() >= MIN_LANES;
+    }
+
+    @Override public void add(float[] target, float[] source, float scale, float offset, int fromIndex, int toIndex) {
+        final int vectorEnd = fromIndex + SPECIES.loopBound(toIndex - fromIndex);
+        int i = fromIndex;
+        for (; i < vectorEnd; i += SPECIES.length()) {
+            final FloatVector s = FloatVector.fromArray(SPECIES, source, i);
+            final FloatVector t = FloatVector.fromArray(SPECIES, target, i);
+            t.add(s.mul(scale).add(offset)).intoArray(target, i);
+        }
+        scalar.add(target, source, scale, offset, i, toIndex);
+    }
+
+    @Override public void scaleCopy(float[] target, int targetStart, float[] source, int sourceStart, int length, float scale) {
+        final int vectorLength = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < vectorLength; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, source, sourceStart + i).mul(scale).intoArray(target, targetStart + i);
+        }
+        scalar.scaleCopy(target, targetStart + i, source, sourceStart + i, length - i, scale);
+    }
+
+    @Override public void diffuseRow(float[] target, float[] source, int rowStart, int length, int stride, float a, float divisor) {
+        final int vectorEnd = rowStart + SPECIES.loopBound(length);
+        int i = rowStart;
+        for (; i < vectorEnd; i += SPECIES.length()) {
+            final FloatVector center = FloatVector.fromArray(SPECIES, source, i);
+            final FloatVector neighbours = FloatVector.fromArray(SPECIES, source, i + 1)
+                    .add(FloatVector.fromArray(SPECIES, source, i - 1))
+                    .add(FloatVector.fromArray(SPECIES, source, i + stride))
+                    .add(FloatVector.fromArray(SPECIES, source, i - stride));
+            center.add(neighbours.mul(a)).div(divisor).intoArray(target, i);
+        }
+        scalar.diffuseRow(target, source, i, rowStart + length - i, stride, a, divisor);
+    }
+
+    @Override public void weightedSumRow(float[] sum, float[] source, int row, int length, int[] offsets, float[] weights, float divisor) {
+        final int a = row + offsets[0], b = row + offsets[1], c = row + offsets[2], d = row + offsets[3], e = row + offsets[4];
+        final float wa = weights[0], wb = weights[1], wc = weights[2], wd = weights[3], we = weights[4];
+        final int vectorLength = SPECIES.loopBound(length);
+        int x = 0;
+        for (; x < vectorLength; x += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, source, a + x).mul(wa)
+                    .add(FloatVector.fromArray(SPECIES, source, b + x).mul(wb))
+                    .add(FloatVector.fromArray(SPECIES, source, c + x).mul(wc))
+                    .add(FloatVector.fromArray(SPECIES, source, d + x).mul(wd))
+                    .add(FloatVector.fromArray(SPECIES, source, e + x).mul(we))
+                    .div(divisor)
+                    .intoArray(sum, x);
+        }
+
+        // Remaining cells, as in the scalar kernel
+        for (; x < length; x++) {
+            sum[x] = (source[a + x] * wa + source[b + x] * wb + source[c + x] * wc + source[d + x] * wd + source[e + x] * we) / divisor;
+        }
+    }
+
+    @Override public void halfToFloat(float[] target, int targetStart, short[] source, int sourceStart, int length) {
+        // Moving the exponent and mantissa of the halves to the float positions and multiplying by 2^(127 - 15)
+        // rebiases the exponent, and also normalizes subnormal halves.  The exponent of infinity and NaN is set after
+        // multiplying.  Gives the same bits as the table of HalfFloat.toFloat()
+        final int vectorLength = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < vectorLength; i += SPECIES.length()) {
+            final IntVector half = (IntVector) ShortVector.fromArray(SHORT_SPECIES, source, sourceStart + i).convertShape(S2I, INT_SPECIES, 0);
+            final IntVector abs = half.and(0x7FFF).lanewise(LSHL, 13);
+            abs.reinterpretAsFloats().mul(0x1p112f).reinterpretAsInts()
+               .or(half.and(0x8000).lanewise(LSHL, 16))
+               .lanewise(OR, 0x7F800000, abs.compare(GT, 0x0F7FFFFF))
+               .reinterpretAsFloats()
+               .intoArray(target, targetStart + i);
+        }
+        scalar.halfToFloat(target, targetStart + i, source, sourceStart + i, length - i);
+    }
+
+    @Override public void floatToHalf(short[] target, int targetStart, float[] source, int sourceStart, int length) {
+        // Computes the normal, subnormal and special half for every lane and selects one, instead of the branches
+        // of HalfFloat.fromFloat().  Normal halves round away the 13 lowest mantissa bits after rebiasing the exponent.
+        // For subnormal halves, adding 0.5, whose spacing is that of the subnormal halves, leaves the rounded
+        // mantissa in the low bits
+        final int vectorLength = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < vectorLength; i += SPECIES.length()) {
+            final IntVector bits = FloatVector.fromArray(SPECIES, source, sourceStart + i).reinterpretAsInts();
+            final IntVector abs = bits.and(0x7FFFFFFF);
+            final IntVector normal = abs.add(0xFFF - 0x38000000).add(abs.lanewise(LSHR, 13).and(1)).lanewise(LSHR, 13);
+            final IntVector subnormal = abs.reinterpretAsFloats().add(0.5f).reinterpretAsInts().sub(0x3F000000);
+            final IntVector special = abs.lanewise(LSHR, 13).and(0x3FF).or(0x7E00).blend(0x7C00, abs.compare(LE, 0x7F800000));
+            normal.blend(subnormal, abs.compare(LT, 0x38800000))
+                  .blend(special, abs.compare(GE, 0x47800000))
+                  .or(bits.lanewise(LSHR, 16).and(0x8000))
+                  .convertShape(I2S, SHORT_SPECIES, 0)
+                  .reinterpretAsShorts()
+                  .intoArray(target, targetStart + i);
+        }
+        scalar.floatToHalf(target, targetStart + i, source, sourceStart + i, length - i);
+    }
+}